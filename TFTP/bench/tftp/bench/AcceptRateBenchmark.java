@@ -0,0 +1,216 @@
+/*
+ * AcceptRateBenchmark.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+import tftp.log.Log;
+import tftp.log.LogLevel;
+import tftp.server.RequestIntake;
+import tftp.server.ReusePort;
+import tftp.server.Server;
+import tftp.server.ServerEngine;
+import tftp.server.thread.ExecutionMode;
+
+/**
+ * Measures how fast the threaded engine takes in requests on its listening port,
+ * for different numbers of listening sockets (see Server's listenerShards), as in a
+ * boot storm where many clients ask for a file at once. For each shard count an
+ * in-process server is started on an ephemeral loopback port and a number of sender
+ * threads send RRQs as fast as they can, each from many sockets so the requests
+ * have many TIDs for the kernel to spread across the shards. The file asked for
+ * doesn't exist, so workers only send an ERROR and the measurement is dominated by
+ * intake and dispatch rather than by transfers. Each round reports:
+ *
+ *  - accepted: requests taken off the listening sockets and queued for dispatch
+ *  - dropped: requests received while an intake queue was full
+ *  - kernel drops: requests dropped by the kernel because a socket buffer was full
+ *  - accepted/s: accepted requests over the time from the first request sent to
+ *    the last one taken in
+ *
+ * Results are printed and appended to a CSV file, one row per round.
+ *
+ * Usage: AcceptRateBenchmark [--shards 1,2,4,8] [--requests 200000] [--senders 4]
+ *                            [--sockets 256] [--out accept-rate-bench.csv] [--label text]
+ *
+ * Shard counts above 1 need SO_REUSEPORT (Java 9+ on Linux or BSD); elsewhere only
+ * the 1 shard round is run. --sockets is the number of sockets per sender.
+ */
+public class AcceptRateBenchmark {
+
+	private static final String CSV_HEADER = "label,shards,senders,sent,accepted,dropped,kernel_drops,wall_ms,accepted_per_s";
+	// the round is over once no request has been taken in for this long
+	private static final long QUIET_MS = 500;
+
+	private static int[] shardLevels = { 1, 2, 4, Runtime.getRuntime().availableProcessors() };
+	private static int requests = 200000;
+	private static int senders = 4;
+	private static int socketsPerSender = 256;
+	private static String outPath = "accept-rate-bench.csv";
+	private static String label = "";
+
+	public static void main(String[] args) throws Exception {
+		parseArgs(args);
+
+		// a message per request would dominate the measurement
+		Log.setLevel(LogLevel.OFF);
+
+		File out = new File(outPath);
+		boolean newFile = !out.exists() || out.length() == 0;
+		try (PrintWriter csv = new PrintWriter(new FileWriter(out, true))) {
+			if (newFile)
+				csv.println(CSV_HEADER);
+
+			System.out.printf("%6s %7s %9s %9s %9s %12s %8s %12s%n", "shards", "senders", "sent", "accepted", "dropped",
+					"kernel drops", "wall(ms)", "accepted/s");
+			for (int shards : shardLevels) {
+				if (shards > 1 && !ReusePort.isSupported()) {
+					System.out.printf("%6d skipped, SO_REUSEPORT is not supported here%n", shards);
+					continue;
+				}
+				String row = runRound(shards);
+				csv.println(row);
+				csv.flush();
+			}
+		}
+		System.out.println("results appended to " + out.getAbsolutePath());
+	}
+
+	private static String runRound(int shards) throws Exception {
+		File serverDir = Files.createTempDirectory("tftp-accept-bench").toFile();
+
+		// the server and engines still print a few lines of their own
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		}));
+
+		final Server server = new Server(ServerEngine.THREADED, ExecutionMode.PLATFORM, 0, shards);
+		server.setDirectory(serverDir.getPath());
+		Thread serverThread = new Thread("TFTPServer") {
+			@Override
+			public void run() { server.serveRequests(); }
+		};
+		serverThread.start();
+		while (server.getRequestIntakes() == null)
+			Thread.sleep(10);
+		RequestIntake[] intakes = server.getRequestIntakes();
+		long kernelDropsBefore = Math.max(0, intakes[0].getKernelDrops());
+
+		final InetAddress loopback = InetAddress.getLoopbackAddress();
+		final int port = server.getPort();
+		final byte[] rrq = "\0\1no-such-file.bin\0octet\0".getBytes("US-ASCII");
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(senders);
+
+		for (int i = 0; i < senders; i++) {
+			final int count = requests / senders + (i < requests % senders ? 1 : 0);
+			new Thread("sender" + i) {
+				@Override
+				public void run() {
+					DatagramSocket[] sockets = new DatagramSocket[socketsPerSender];
+					try {
+						for (int s = 0; s < sockets.length; s++)
+							sockets[s] = new DatagramSocket();
+						DatagramPacket packet = new DatagramPacket(rrq, rrq.length, loopback, port);
+						startGate.await();
+						for (int n = 0; n < count; n++)
+							sockets[n % sockets.length].send(packet);
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						for (DatagramSocket s : sockets) {
+							if (s != null)
+								s.close();
+						}
+						finished.countDown();
+					}
+				}
+			}.start();
+		}
+
+		long start = System.nanoTime();
+		startGate.countDown();
+		finished.await();
+
+		// wait for the intakes to take in what the kernel still holds
+		long lastReceived = -1;
+		long lastChange = System.nanoTime();
+		while (System.nanoTime() - lastChange < QUIET_MS * 1000000) {
+			long received = 0;
+			for (RequestIntake intake : intakes)
+				received += intake.getReceived();
+			if (received != lastReceived) {
+				lastReceived = received;
+				lastChange = System.nanoTime();
+			}
+			Thread.sleep(5);
+		}
+		long wallNs = lastChange - start;
+
+		long dropped = 0;
+		for (RequestIntake intake : intakes)
+			dropped += intake.getDropped();
+		long accepted = lastReceived - dropped;
+		long kernelDrops = Math.max(0, intakes[0].getKernelDrops()) - kernelDropsBefore;
+
+		server.finishProcessing();
+		serverThread.join();
+		System.setOut(console);
+		serverDir.delete();
+
+		double acceptedPerSec = accepted / (wallNs / 1e9);
+		System.out.printf("%6d %7d %9d %9d %9d %12d %8d %12.0f%n", intakes.length, senders, requests, accepted, dropped,
+				kernelDrops, wallNs / 1000000, acceptedPerSec);
+
+		return String.format("%s,%d,%d,%d,%d,%d,%d,%d,%.1f", label, intakes.length, senders, requests, accepted, dropped,
+				kernelDrops, wallNs / 1000000, acceptedPerSec);
+	}
+
+	private static void parseArgs(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--shards":
+				String[] parts = value.split(",");
+				shardLevels = new int[parts.length];
+				for (int j = 0; j < parts.length; j++)
+					shardLevels[j] = Integer.parseInt(parts[j].trim());
+				break;
+			case "--requests":
+				requests = Integer.parseInt(value);
+				break;
+			case "--senders":
+				senders = Integer.parseInt(value);
+				break;
+			case "--sockets":
+				socketsPerSender = Integer.parseInt(value);
+				break;
+			case "--out":
+				outPath = value;
+				break;
+			case "--label":
+				label = value;
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * CodecAllocationBenchmark.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.bench;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+import tftp.net.PacketCodec;
+import tftp.net.PacketUtil;
+
+/**
+ * Measures the heap allocated per packet when DATA/ACK exchanges are encoded and
+ * decoded with PacketCodec, compared with PacketUtil's form* methods and a fresh
+ * receive buffer per packet. The network is left out: each encoded packet is copied
+ * into the receiving side's buffer, as a socket receive would.
+ *
+ * Allocation is read from the HotSpot per-thread allocation counter, so the JVM must
+ * provide com.sun.management.ThreadMXBean.
+ *
+ * Usage: CodecAllocationBenchmark [packets] [blockSize]
+ * (defaults: 1000000 packets, 512 byte blocks)
+ */
+public class CodecAllocationBenchmark {
+
+	private static final int WARMUP_ROUNDS = 10;
+	private static final int WARMUP_PACKETS = 100000;
+	private static final int MEASURED_ROUNDS = 5;
+
+	private static com.sun.management.ThreadMXBean threads;
+	private static long sink = 0; // keeps decoded values alive so the work isn't optimized away
+
+	public static void main(String[] args) throws Exception {
+		int packets = 1000000;
+		int blockSize = 512;
+		if (args.length > 0)
+			packets = Integer.parseInt(args[0]);
+		if (args.length > 1)
+			blockSize = Integer.parseInt(args[1]);
+
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("this JVM can't report allocated bytes per thread");
+			return;
+		}
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+		InetAddress peer = InetAddress.getLoopbackAddress();
+
+		// run each path untimed several times, so the methods themselves get compiled 
+		// (not just their loops) and what is measured is steady state
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			runCodec(peer, WARMUP_PACKETS, blockSize);
+			runPacketUtil(peer, WARMUP_PACKETS, blockSize);
+		}
+
+		// the paths take turns over several rounds; the last round's allocation and the
+		// best round's time are reported, so a late recompilation doesn't skew the result
+		long[] codec = null;
+		long[] packetUtil = null;
+		for (int round = 0; round < MEASURED_ROUNDS; round++) {
+			codec = best(codec, runCodec(peer, packets, blockSize));
+			packetUtil = best(packetUtil, runPacketUtil(peer, packets, blockSize));
+		}
+
+		System.out.printf("%-11s %10s %14s %12s%n", "path", "packets", "bytes/packet", "ns/packet");
+		report("PacketCodec", packets, codec);
+		report("PacketUtil", packets, packetUtil);
+		if (sink == 42)
+			System.out.println();
+	}
+
+	private static long[] best(long[] previous, long[] result) {
+		if (previous != null)
+			result[1] = Math.min(previous[1], result[1]);
+		return result;
+	}
+
+	private static void report(String path, int packets, long[] result) {
+		System.out.printf("%-11s %10d %14.2f %12.1f%n", path, packets,
+				(double) result[0] / packets, (double) result[1] / packets);
+	}
+
+	// returns { bytes allocated, nanoseconds }
+	private static long[] runCodec(InetAddress peer, int packets, int blockSize) {
+		PacketCodec dataOut = new PacketCodec(peer, 69, blockSize + PacketCodec.HEADER_SIZE);
+		PacketCodec dataIn = new PacketCodec(blockSize + PacketCodec.HEADER_SIZE);
+		PacketCodec ackOut = new PacketCodec(peer, 69, PacketCodec.HEADER_SIZE);
+		PacketCodec ackIn = new PacketCodec(PacketUtil.BUF_SIZE);
+
+		long id = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(id);
+		long start = System.nanoTime();
+		for (int i = 0; i < packets; i++) {
+			int blockNum = i & 0xFFFF;
+			DatagramPacket data = dataOut.encodeData(blockNum, blockSize);
+			deliver(data, dataIn.receivePacket());
+			sink += dataIn.blockNumber() + dataIn.dataLength();
+
+			DatagramPacket ack = ackOut.encodeAck(dataIn.blockNumber());
+			deliver(ack, ackIn.receivePacket());
+			sink += ackIn.opcode() + ackIn.blockNumber();
+		}
+		long elapsed = System.nanoTime() - start;
+		return new long[] { threads.getThreadAllocatedBytes(id) - bytes, elapsed };
+	}
+
+	private static long[] runPacketUtil(InetAddress peer, int packets, int blockSize) {
+		PacketUtil util = new PacketUtil(peer, 69);
+		byte[] block = new byte[blockSize];
+
+		long id = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(id);
+		long start = System.nanoTime();
+		for (int i = 0; i < packets; i++) {
+			int blockNum = i & 0xFFFF;
+			DatagramPacket data = util.formDataPacket(block, blockSize, blockNum);
+			DatagramPacket dataIn = new DatagramPacket(new byte[blockSize + 4], blockSize + 4);
+			deliver(data, dataIn);
+			sink += PacketUtil.getBlockNumber(dataIn) + dataIn.getLength();
+
+			DatagramPacket ack = util.formAckPacket(PacketUtil.getBlockNumber(dataIn));
+			DatagramPacket ackIn = new DatagramPacket(new byte[PacketUtil.BUF_SIZE], PacketUtil.BUF_SIZE);
+			deliver(ack, ackIn);
+			sink += PacketUtil.getBlockNumber(ackIn);
+		}
+		long elapsed = System.nanoTime() - start;
+		return new long[] { threads.getThreadAllocatedBytes(id) - bytes, elapsed };
+	}
+
+	// copies a sent packet into a receive packet, as DatagramSocket.receive does
+	private static void deliver(DatagramPacket sent, DatagramPacket received) {
+		System.arraycopy(sent.getData(), sent.getOffset(), received.getData(), received.getOffset(), sent.getLength());
+		received.setLength(sent.getLength());
+	}
+}
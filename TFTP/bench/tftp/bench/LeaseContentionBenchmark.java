@@ -0,0 +1,119 @@
+/*
+ * LeaseContentionBenchmark.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import tftp.server.thread.FileLeaseTable;
+import tftp.server.thread.LockCollection;
+
+/**
+ * JMH benchmarks for taking and giving back file locks from many threads at once,
+ * comparing the synchronized LockCollection with the lock-free FileLeaseTable.
+ *
+ * Each operation is what a request does: check the file is free, take a read (or
+ * write) lock and release it. With files = 1 every thread reads the same file, as
+ * when many clients boot from one image; with files = 64 requests are spread out.
+ * Run with more or fewer threads with: java -jar target/benchmarks.jar LeaseContention -t 16
+ */
+@SuppressWarnings("deprecation")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class LeaseContentionBenchmark {
+
+	@Param({ "1", "64" })
+	public int files;
+
+	private String[] filenames;
+	private LockCollection locks;
+	private FileLeaseTable leases;
+
+	@Setup
+	public void setup() {
+		filenames = new String[files];
+		for (int i = 0; i < files; i++)
+			filenames[i] = "boot/image-" + i + ".bin";
+		locks = LockCollection.getInstance();
+		leases = new FileLeaseTable();
+	}
+
+	// the files one benchmark thread cycles through
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next = 0;
+
+		private String next(String[] filenames) {
+			next = (next + 1) % filenames.length;
+			return filenames[next];
+		}
+	}
+
+	@Benchmark
+	public boolean readLockCollection(Cursor cursor) {
+		String filename = cursor.next(filenames);
+		if (locks.isWriteLock(filename))
+			return false;
+		locks.addReader(filename);
+		return locks.deleteReader(filename);
+	}
+
+	@Benchmark
+	public boolean readLeaseTable(Cursor cursor) {
+		FileLeaseTable.Lease lease = leases.tryAcquireRead(cursor.next(filenames));
+		if (lease == null)
+			return false;
+		lease.release();
+		return true;
+	}
+
+	@Benchmark
+	public boolean writeLockCollection(Cursor cursor) {
+		String filename = cursor.next(filenames);
+		if (locks.isWriteLock(filename) || locks.isReadLock(filename))
+			return false;
+		locks.addWriter(filename);
+		return locks.deleteWriter(filename);
+	}
+
+	@Benchmark
+	public boolean writeLeaseTable(Cursor cursor) {
+		FileLeaseTable.Lease lease = leases.tryAcquireWrite(cursor.next(filenames));
+		if (lease == null)
+			return false;
+		lease.release();
+		return true;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(LeaseContentionBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
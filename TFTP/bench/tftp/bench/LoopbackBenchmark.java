@@ -0,0 +1,339 @@
+/*
+ * LoopbackBenchmark.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tftp.client.Client;
+import tftp.exception.TFTPException;
+import tftp.log.Log;
+import tftp.log.LogLevel;
+import tftp.server.Server;
+import tftp.server.ServerEngine;
+import tftp.server.thread.ExecutionMode;
+import tftp.server.thread.VirtualThreads;
+
+/**
+ * End-to-end benchmark of whole transfers over loopback. For every combination of
+ * engine, operation, file size and concurrency level an in-process server is started
+ * on an ephemeral port and that many clients read (all the same file) or write (each
+ * its own file) at once. Each round reports:
+ *
+ *  - aggregate throughput: bytes moved by completed transfers over the wall time
+ *  - completion time percentiles of the individual transfers
+ *  - packets/s: the DATA and ACK packets the transfers need without loss, over the
+ *    wall time (retransmissions aren't counted)
+ *  - CPU time, peak live threads and peak heap of the process, which runs the clients
+ *    as well as the server
+ *
+ * Results are printed and appended to a CSV file, one row per round, so runs from
+ * different commits or engines can be compared (use --label to tell them apart).
+ *
+ * Usage: LoopbackBenchmark [--engines THREADED,NIO] [--ops read,write]
+ *                          [--clients 1,10,100,1000] [--sizes 0,64K,1M]
+ *                          [--blksize 512] [--window 1] [--max-bytes 4G]
+ *                          [--out loopback-bench.csv] [--label text]
+ *
+ * Sizes take a K, M or G suffix. The full sweep goes up to --clients 5000 and
+ * --sizes 1G, but a round is skipped if its files would take more than --max-bytes
+ * of disk (clients * size).
+ */
+public class LoopbackBenchmark {
+
+	private static final String READ_FILENAME = "read.bin";
+	private static final String CSV_HEADER = "label,engine,op,clients,size,blksize,window,completed,failed,wall_ms,"
+			+ "mb_per_s,p50_ms,p90_ms,p99_ms,max_ms,packets_per_s,cpu_ms,peak_threads,peak_heap_mb";
+
+	private static List<ServerEngine> engines = Arrays.asList(ServerEngine.THREADED, ServerEngine.NIO);
+	private static List<String> ops = Arrays.asList("read", "write");
+	private static long[] clientLevels = { 1, 10, 100, 1000 };
+	private static long[] sizes = { 0, 64 * 1024, 1024 * 1024 };
+	private static int blockSize = 512;
+	private static int windowSize = 1;
+	private static long maxBytes = 4L * 1024 * 1024 * 1024;
+	private static String outPath = "loopback-bench.csv";
+	private static String label = "";
+
+	public static void main(String[] args) throws Exception {
+		parseArgs(args);
+
+		// per-packet and per-transfer messages would dominate the measurement
+		Log.setLevel(LogLevel.OFF);
+
+		File out = new File(outPath);
+		boolean newFile = !out.exists() || out.length() == 0;
+		try (PrintWriter csv = new PrintWriter(new FileWriter(out, true))) {
+			if (newFile)
+				csv.println(CSV_HEADER);
+
+			System.out.printf("%-8s %-5s %7s %11s %9s %6s %9s %8s %8s %8s %10s %11s %7s %8s%n", "engine", "op", "clients",
+					"size", "completed", "failed", "MB/s", "p50(ms)", "p99(ms)", "max(ms)", "packets/s", "cpu(ms)", "threads", "heap(MB)");
+			for (ServerEngine engine : engines)
+				for (String op : ops)
+					for (long size : sizes)
+						for (long clients : clientLevels) {
+							if (clients * size > maxBytes) {
+								System.out.printf("%-8s %-5s %7d %11d skipped, needs more than --max-bytes of disk%n",
+										engine, op, clients, size);
+								continue;
+							}
+							String row = runRound(engine, op, (int) clients, size);
+							csv.println(row);
+							csv.flush();
+						}
+		}
+		System.out.println("results appended to " + out.getAbsolutePath());
+	}
+
+	private static String runRound(ServerEngine engine, final String op, int clients, final long size) throws Exception {
+		File root = Files.createTempDirectory("tftp-loopback-bench").toFile();
+		final File serverDir = new File(root, "server");
+		serverDir.mkdirs();
+		if (op.equals("read"))
+			createFile(new File(serverDir.getPath().concat("\\" + READ_FILENAME)), size);
+
+		// the server and engines still print a few lines of their own
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		}));
+
+		// measured over the whole round, server and clients
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				heapPools.add(pool);
+			}
+		}
+
+		final Server server = new Server(engine, ExecutionMode.PLATFORM, 0);
+		server.setDirectory(serverDir.getPath());
+		// let every client in, so it is the transfers that get measured rather than rejections
+		server.setMaxConcurrentTransfers(clients);
+		server.setPendingQueueSize(clients);
+		Thread serverThread = new Thread("TFTPServer") {
+			@Override
+			public void run() { server.serveRequests(); }
+		};
+		serverThread.start();
+
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(clients);
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final long[] durations = new long[clients];
+		final InetAddress loopback = InetAddress.getLoopbackAddress();
+		final int port = server.getPort();
+
+		for (int i = 0; i < clients; i++) {
+			final int id = i;
+			final File clientDir = new File(root, "client" + i);
+			clientDir.mkdirs();
+			final String filename = op.equals("read") ? READ_FILENAME : "write" + i + ".bin";
+			if (op.equals("write"))
+				createFile(new File(clientDir.getPath().concat("\\" + filename)), size);
+
+			Runnable transfer = new Runnable() {
+				@Override
+				public void run() {
+					Client client = new Client();
+					try {
+						client.setIP(loopback);
+						client.setPortNum(port);
+						client.setDirectory(clientDir.getPath());
+						client.setFilename(filename);
+						client.setMode("octet");
+						client.setBlockSize(blockSize);
+						client.setWindowSize(windowSize);
+						client.retreiveFile();
+						startGate.await();
+						long start = System.nanoTime();
+						if (op.equals("read"))
+							client.sendReadRequest();
+						else
+							client.sendWriteRequest();
+						durations[id] = System.nanoTime() - start;
+						completed.incrementAndGet();
+					} catch (TFTPException | InterruptedException e) {
+						durations[id] = -1;
+						failed.incrementAndGet();
+					} finally {
+						client.cleanup();
+						finished.countDown();
+					}
+				}
+			};
+			// drive the clients with virtual threads when possible, so the client
+			// side doesn't limit the concurrency the server sees
+			Thread t = VirtualThreads.isSupported() ? VirtualThreads.newThread(transfer, "client" + i) : new Thread(transfer);
+			t.start();
+		}
+
+		long cpuStart = processCpuTime();
+
+		long start = System.nanoTime();
+		startGate.countDown();
+		finished.await();
+		long wallNs = System.nanoTime() - start;
+
+		long cpuMs = (processCpuTime() - cpuStart) / 1000000;
+		int peakThreads = threads.getPeakThreadCount();
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : heapPools)
+			peakHeap += pool.getPeakUsage().getUsed();
+
+		server.finishProcessing();
+		serverThread.join();
+		System.setOut(console);
+		deleteRecursively(root);
+
+		// completion times of the transfers that succeeded, in order
+		long[] done = new long[completed.get()];
+		int n = 0;
+		for (long d : durations)
+			if (d >= 0 && n < done.length)
+				done[n++] = d;
+		Arrays.sort(done);
+
+		double wallSec = wallNs / 1e9;
+		double mbPerSec = completed.get() * (double) size / (1024 * 1024) / wallSec;
+		double packetsPerSec = completed.get() * (double) packetsPerTransfer(size) / wallSec;
+
+		System.out.printf("%-8s %-5s %7d %11d %9d %6d %9.2f %8.1f %8.1f %8.1f %10.0f %11d %7d %8d%n", engine, op, clients, size,
+				completed.get(), failed.get(), mbPerSec, percentileMs(done, 50), percentileMs(done, 99), percentileMs(done, 100),
+				packetsPerSec, cpuMs, peakThreads, peakHeap / (1024 * 1024));
+
+		return String.format("%s,%s,%s,%d,%d,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.1f,%d,%d,%d", label, engine, op, clients,
+				size, blockSize, windowSize, completed.get(), failed.get(), wallNs / 1000000, mbPerSec, percentileMs(done, 50),
+				percentileMs(done, 90), percentileMs(done, 99), percentileMs(done, 100), packetsPerSec, cpuMs, peakThreads,
+				peakHeap / (1024 * 1024));
+	}
+
+	// the request, then every DATA packet and the ACKs for them (one per window, plus the OACK's)
+	private static long packetsPerTransfer(long size) {
+		long blocks = size / blockSize + 1;
+		long acks = (blocks + windowSize - 1) / windowSize;
+		boolean options = blockSize != 512 || windowSize != 1;
+		return 1 + blocks + acks + (options ? 2 : 0);
+	}
+
+	// nearest-rank percentile of sorted nanosecond durations, in milliseconds
+	private static double percentileMs(long[] sorted, int percentile) {
+		if (sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)] / 1e6;
+	}
+
+	private static long processCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return 0;
+	}
+
+	// files are created sparse, so large sizes don't take long to set up
+	private static void createFile(File f, long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.setLength(size);
+		}
+	}
+
+	private static void parseArgs(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--engines":
+				List<ServerEngine> e = new ArrayList<ServerEngine>();
+				for (String s : value.split(","))
+					e.add(ServerEngine.valueOf(s.trim().toUpperCase()));
+				engines = e;
+				break;
+			case "--ops":
+				ops = Arrays.asList(value.toLowerCase().split(","));
+				break;
+			case "--clients":
+				clientLevels = parseSizes(value);
+				break;
+			case "--sizes":
+				sizes = parseSizes(value);
+				break;
+			case "--blksize":
+				blockSize = Integer.parseInt(value);
+				break;
+			case "--window":
+				windowSize = Integer.parseInt(value);
+				break;
+			case "--max-bytes":
+				maxBytes = parseSize(value);
+				break;
+			case "--out":
+				outPath = value;
+				break;
+			case "--label":
+				label = value;
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+	}
+
+	private static long[] parseSizes(String list) {
+		String[] parts = list.split(",");
+		long[] values = new long[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = parseSize(parts[i]);
+		return values;
+	}
+
+	private static long parseSize(String s) {
+		s = s.trim().toUpperCase();
+		long unit = 1;
+		if (s.endsWith("K"))
+			unit = 1024;
+		else if (s.endsWith("M"))
+			unit = 1024 * 1024;
+		else if (s.endsWith("G"))
+			unit = 1024 * 1024 * 1024;
+		if (unit != 1)
+			s = s.substring(0, s.length() - 1);
+		return Long.parseLong(s) * unit;
+	}
+
+	private static void deleteRecursively(File f) throws IOException {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				deleteRecursively(c);
+		Files.deleteIfExists(f.toPath());
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * PacketFormBenchmark.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.bench;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import tftp.net.OPcodeError;
+import tftp.net.PacketCodec;
+import tftp.net.PacketUtil;
+import tftp.net.TransferOptions;
+
+/**
+ * JMH benchmarks for building packets: PacketUtil's form* methods and OPcodeError,
+ * with the reused PacketCodec alongside for comparison.
+ *
+ * Run with the GC profiler to see the allocation rate next to the throughput,
+ * either through main() or with: java -jar target/benchmarks.jar PacketForm -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketFormBenchmark {
+
+	@Param({ "512", "1432" })
+	public int blockSize;
+
+	private PacketUtil util;
+	private PacketCodec codec;
+	private DatagramPacket reusedData;
+	private byte[] block;
+	private TransferOptions options;
+	private int blockNum = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		InetAddress peer = InetAddress.getLoopbackAddress();
+		util = new PacketUtil(peer, 69);
+		codec = new PacketCodec(peer, 69, blockSize + PacketCodec.HEADER_SIZE);
+		byte[] msg = new byte[blockSize + PacketUtil.DATA_HEADER_SIZE];
+		reusedData = new DatagramPacket(msg, msg.length, peer, 69);
+		block = new byte[blockSize];
+
+		options = new TransferOptions();
+		options.setBlockSize(blockSize);
+		options.setWindowSize(8);
+		options.setTransferSize(1048576);
+	}
+
+	// wraps through the block numbers so header encoding doesn't see a constant
+	private int nextBlock() {
+		blockNum = (blockNum + 1) & 0xFFFF;
+		return blockNum;
+	}
+
+	@Benchmark
+	public DatagramPacket formDataPacket() {
+		return util.formDataPacket(block, blockSize, nextBlock());
+	}
+
+	@Benchmark
+	public DatagramPacket formDataPacketInPlace() {
+		return util.formDataPacket(reusedData, blockSize, nextBlock());
+	}
+
+	@Benchmark
+	public DatagramPacket formAckPacket() {
+		return util.formAckPacket(nextBlock());
+	}
+
+	@Benchmark
+	public DatagramPacket formReqPacket() {
+		return util.formReqPacket("boot/image.bin", "octet", PacketUtil.READ_FLAG);
+	}
+
+	@Benchmark
+	public DatagramPacket formReqPacketWithOptions() {
+		return util.formReqPacket("boot/image.bin", "octet", PacketUtil.READ_FLAG, options);
+	}
+
+	@Benchmark
+	public DatagramPacket opcodeError() {
+		return OPcodeError.OPerror("Illegal TFTP operation", PacketUtil.ERR_ILLEGAL_OP);
+	}
+
+	@Benchmark
+	public DatagramPacket codecEncodeData() {
+		return codec.encodeData(nextBlock(), blockSize);
+	}
+
+	@Benchmark
+	public DatagramPacket codecEncodeAck() {
+		return codec.encodeAck(nextBlock());
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(PacketFormBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * PacketParseBenchmark.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.bench;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import tftp.exception.TFTPException;
+import tftp.net.PacketParser;
+import tftp.net.PacketUtil;
+import tftp.net.TransferOptions;
+
+/**
+ * JMH benchmarks for checking received packets with PacketParser, and for reading
+ * the message of an ERROR packet with PacketUtil.getErrMessage.
+ *
+ * The packets are built once and parsed over and over, as received packets are
+ * parsed in the buffer they arrived in. Run with the GC profiler to see the
+ * allocation rate next to the throughput, either through main() or with:
+ * java -jar target/benchmarks.jar PacketParse -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketParseBenchmark {
+
+	@Param({ "512", "1432" })
+	public int blockSize;
+
+	private PacketParser parser;
+	private DatagramPacket dataPacket;
+	private DatagramPacket ackPacket;
+	private DatagramPacket rrqPacket;
+	private DatagramPacket rrqOptionsPacket;
+	private byte[] errorData;
+
+	@Setup
+	public void setup() throws Exception {
+		InetAddress peer = InetAddress.getLoopbackAddress();
+		PacketUtil util = new PacketUtil(peer, 69);
+
+		// received packets arrive in a buffer sized for the largest packet
+		dataPacket = received(util.formDataPacket(new byte[blockSize], blockSize, 1), blockSize + PacketUtil.DATA_HEADER_SIZE);
+		ackPacket = received(util.formAckPacket(1), PacketUtil.BUF_SIZE);
+		rrqPacket = received(util.formRrqPacket("boot/image.bin", "octet"), PacketUtil.BUF_SIZE);
+
+		TransferOptions options = new TransferOptions();
+		options.setBlockSize(blockSize);
+		options.setWindowSize(8);
+		options.setTransferSize(0);
+		rrqOptionsPacket = received(util.formReqPacket("boot/image.bin", "octet", PacketUtil.READ_FLAG, options),
+				PacketUtil.BUF_SIZE);
+
+		errorData = util.formErrorPacket(PacketUtil.ERR_FILE_NOT_FOUND, "File not found").getData();
+
+		parser = new PacketParser();
+		parser.setBlockSize(blockSize);
+	}
+
+	// copies a packet into a larger receive buffer, as DatagramSocket.receive would
+	private static DatagramPacket received(DatagramPacket sent, int bufSize) {
+		byte[] buf = new byte[bufSize];
+		System.arraycopy(sent.getData(), sent.getOffset(), buf, 0, sent.getLength());
+		DatagramPacket packet = new DatagramPacket(buf, bufSize, sent.getAddress(), sent.getPort());
+		packet.setLength(sent.getLength());
+		return packet;
+	}
+
+	@Benchmark
+	public boolean parseDataPacket() throws TFTPException {
+		return parser.parseDataPacket(dataPacket, 1);
+	}
+
+	@Benchmark
+	public boolean parseAckPacket() throws TFTPException {
+		return parser.parseAckPacket(ackPacket, 1);
+	}
+
+	@Benchmark
+	public String parseRRQPacket() throws TFTPException {
+		return parser.parseRRQPacket(rrqPacket);
+	}
+
+	@Benchmark
+	public String parseRRQPacketWithOptions() throws TFTPException {
+		return parser.parseRRQPacket(rrqOptionsPacket);
+	}
+
+	@Benchmark
+	public String getErrMessage() {
+		return PacketUtil.getErrMessage(errorData);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(PacketParseBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
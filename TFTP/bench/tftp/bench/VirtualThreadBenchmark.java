@@ -0,0 +1,151 @@
+/*
+ * VirtualThreadBenchmark.java
+ * 
+ * Authors: TEAM 1
+ * 
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tftp.client.Client;
+import tftp.exception.TFTPException;
+import tftp.server.Server;
+import tftp.server.ServerEngine;
+import tftp.server.thread.ExecutionMode;
+import tftp.server.thread.VirtualThreads;
+
+/**
+ * Compares the threaded server running its handlers on platform threads versus
+ * virtual threads. For each concurrency level, an in-process server is started on
+ * an ephemeral loopback port and that many clients read the same file at once.
+ * 
+ * Usage: VirtualThreadBenchmark [fileSizeBytes] [concurrency ...]
+ * (defaults: 40 byte file, 100 1000 10000 concurrent transfers)
+ */
+public class VirtualThreadBenchmark {
+	
+	private static final String FILENAME = "bench.bin";
+	
+	public static void main(String[] args) throws Exception {
+		int fileSize = 40;
+		int[] levels = { 100, 1000, 10000 };
+		if (args.length > 0)
+			fileSize = Integer.parseInt(args[0]);
+		if (args.length > 1) {
+			levels = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				levels[i - 1] = Integer.parseInt(args[i]);
+		}
+		
+		System.out.printf("%-9s %8s %10s %10s %10s %12s%n", "mode", "clients", "completed", "failed", "wall(ms)", "peakThreads");
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			if (mode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported()) {
+				System.out.println("VIRTUAL   skipped, this JVM does not support virtual threads");
+				continue;
+			}
+			for (int clients : levels)
+				runRound(mode, clients, fileSize);
+		}
+	}
+	
+	private static void runRound(ExecutionMode mode, int clients, int fileSize) throws Exception {
+		File root = Files.createTempDirectory("tftp-vt-bench").toFile();
+		final File serverDir = new File(root, "server");
+		serverDir.mkdirs();
+		try (FileOutputStream out = new FileOutputStream(new File(serverDir.getPath().concat("\\" + FILENAME)))) {
+			out.write(new byte[fileSize]);
+		}
+		
+		// per-packet console output would dominate the measurement
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		}));
+		
+		final Server server = new Server(ServerEngine.THREADED, mode, 0);
+		server.setDirectory(serverDir.getPath());
+		// let every client in, so the thread type is what gets measured
+		server.setMaxConcurrentTransfers(clients);
+		Thread serverThread = new Thread("TFTPServer") {
+			@Override
+			public void run() { server.serveRequests(); }
+		};
+		serverThread.start();
+		
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(clients);
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final InetAddress loopback = InetAddress.getLoopbackAddress();
+		final int port = server.getPort();
+		
+		for (int i = 0; i < clients; i++) {
+			final File clientDir = new File(root, "client" + i);
+			clientDir.mkdirs();
+			Runnable transfer = new Runnable() {
+				@Override
+				public void run() {
+					Client client = new Client();
+					try {
+						client.setIP(loopback);
+						client.setPortNum(port);
+						client.setDirectory(clientDir.getPath());
+						client.setFilename(FILENAME);
+						client.setMode("octet");
+						client.retreiveFile();
+						startGate.await();
+						client.sendReadRequest();
+						completed.incrementAndGet();
+					} catch (TFTPException | InterruptedException e) {
+						failed.incrementAndGet();
+					} finally {
+						client.cleanup();
+						finished.countDown();
+					}
+				}
+			};
+			// drive the clients with virtual threads too when possible, so the client
+			// side doesn't limit the concurrency the server sees
+			Thread t = VirtualThreads.isSupported() ? VirtualThreads.newThread(transfer, "client" + i) : new Thread(transfer);
+			t.start();
+		}
+		
+		long start = System.nanoTime();
+		startGate.countDown();
+		finished.await();
+		long wallMs = (System.nanoTime() - start) / 1000000;
+		int peakThreads = threads.getPeakThreadCount();
+		
+		server.finishProcessing();
+		serverThread.join();
+		System.setOut(console);
+		
+		System.out.printf("%-9s %8d %10d %10d %10d %12d%n", mode, clients, completed.get(), failed.get(), wallMs, peakThreads);
+		deleteRecursively(root);
+	}
+	
+	private static void deleteRecursively(File f) throws IOException {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				deleteRecursively(c);
+		Files.deleteIfExists(f.toPath());
+	}
+}
@@ -20,11 +20,17 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import tftp.exception.TFTPException;
+import tftp.log.Log;
+import tftp.net.DallyResponder;
+import tftp.net.DiskSpaceLedger;
 import tftp.net.PacketParser;
+import tftp.net.PacketType;
 import tftp.net.PacketUtil;
 import tftp.net.ProcessType;
 import tftp.net.Receiver;
+import tftp.net.RetransmitTimer;
 import tftp.net.Sender;
+import tftp.net.TransferOptions;
 import tftp.sim.ErrorSimulator;
 import tftp.exception.*;
 
@@ -45,11 +51,18 @@ public class Client {
 	private String filename;
 	private String mode;
 	private File theFile;
+	private int blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+	private int windowSize = TransferOptions.DEFAULT_WINDOW_SIZE;
+	private int rollover = TransferOptions.DEFAULT_ROLLOVER;
+	private boolean requestTransferSize = false;
+	private int timeout = -1;				// timeout option (seconds) to request, or -1 to adapt to the RTT
+	private RetransmitTimer timer;			// decides when to retransmit during the current transfer
 
 	//default constructor for testing purposes mainly
 	public Client (){
 		try {
-			sendReceiveSocket = new DatagramSocket();
+			// opened so the dally at the end of a read can be handed to the DallyResponder
+			sendReceiveSocket = DallyResponder.openSocket();
 			
 			//set socket timeout to 2 sec
 			//sendReceiveSocket.setSoTimeout(2*1000);
@@ -72,7 +85,7 @@ public class Client {
 	//New constructor passes on filename and mode so it can be set and used everywhere
 	public Client(String file, String aMode) {
 		try {
-			sendReceiveSocket = new DatagramSocket();
+			sendReceiveSocket = DallyResponder.openSocket();
 			//sendReceiveSocket.setSoTimeout(5*1000);
 			sendReceiveSocket.setSoTimeout(ErrorSimulator.TIMEOUT_MS);
 		} catch (SocketException se) {
@@ -96,7 +109,20 @@ public class Client {
 	}
 
 	public void cleanup() {
-		sendReceiveSocket.close();
+		if (sendReceiveSocket != null)
+			sendReceiveSocket.close();
+	}
+	
+	// opens a new socket if the last one was handed to the DallyResponder
+	private void ensureSocket() throws TFTPException {
+		if (sendReceiveSocket != null)
+			return;
+		try {
+			sendReceiveSocket = DallyResponder.openSocket();
+			sendReceiveSocket.setSoTimeout(ErrorSimulator.TIMEOUT_MS);
+		} catch (SocketException e) {
+			throw new TFTPException("Could not open a socket: " + e.getMessage(), PacketUtil.ERR_UNDEFINED);
+		}
 	}
 
 	public void retreiveFile(){setFile(new File(getDirectory().concat("\\" + getFilename())));}
@@ -133,59 +159,105 @@ public class Client {
 		if (!Files.isReadable(path)){			
 			throw new TFTPException("ACCESS VIOLATION:\n !!! No Read Permission of Client side File(" + filename +") !!!", PacketUtil.ERR_ACCESS_VIOLATION);
 		}
-		if (getFile().length() > 33553920L){
-			throw new TFTPException("source file is too big! (files >  33MB not supported)", PacketUtil.ERR_UNDEFINED);
-		}
 	}
 
 	public void sendReadRequest() throws TFTPException{		
 
-		System.out.println("Starting read of file " + getFilename() + " from server...");
+		Log.summary("Starting read of file %s from server...", getFilename());
+		ensureSocket();
 
 		// set up PacketUtil object to generate packets with
 		PacketUtil packetUtil = new PacketUtil(targetIP, targetPort);		
 
-		// send request packet to server
-		sendPacket = packetUtil.formRrqPacket(getFilename(), getMode());		
+		// send request packet to server, asking for any non-default options
+		TransferOptions requested = getRequestedOptions();
+		if (requestTransferSize)
+			requested.setTransferSize(0); // the server fills in the size
+		sendPacket = packetUtil.formReqPacket(getFilename(), getMode(), PacketUtil.READ_FLAG, requested);		
 		PacketUtil.sendPacketToProcess("", sendReceiveSocket, sendPacket, ProcessType.SERVER, "RRQ");	    
+		timer = new RetransmitTimer();
+		timer.packetSent(0);
 
 		// get server response - the port it is sent from should be used as the server TID
         boolean packetReceived = false;
-        int retransmission = 0;
         
-        while (!packetReceived && retransmission <= PacketUtil.DEFAULT_RETRY_TRANSMISSION){
+        while (!packetReceived){
         	try {			  
-        		receivePacket = PacketUtil.receivePacketOrTimeout("", sendReceiveSocket, ProcessType.SERVER, "DATA");
+        		timer.applyTo(sendReceiveSocket);
+        		// the reply could be an OACK, which may be longer than a small DATA block
+        		receivePacket = PacketUtil.receivePacketOrTimeout("", sendReceiveSocket, ProcessType.SERVER, "DATA", 
+        				Math.max(requested.getBlockSize() + 4, PacketUtil.BUF_SIZE));
         		packetReceived = true;
         		
         	} catch(SocketTimeoutException ex){
         		
-        		System.out.println("Error: Timed out while waiting for DATA Packet");
+        		Log.summary("Error: Timed out while waiting for DATA Packet");
         		
-    			if (retransmission == PacketUtil.DEFAULT_RETRY_TRANSMISSION){
+    			if (!timer.backOff()){
     				throw new TFTPException(String.format("Could not reach server after %d retries, aborting request", 
-    						retransmission), PacketUtil.ERR_UNDEFINED);
+    						timer.getRetries()), PacketUtil.ERR_UNDEFINED);
     			}    			
 
-        		System.out.println("possible RRQ packet loss, resending...");
+        		Log.summary("possible RRQ packet loss, resending...");
     			
     			PacketUtil.sendPacketToProcess("", sendReceiveSocket, sendPacket, ProcessType.SERVER, "RRQ");
-    			retransmission ++;
         	} 
 		}
+        timer.responseReceived(0);
         
         
 		PacketParser parser = new PacketParser(targetIP, receivePacket.getPort());
 		
+		// an OACK means the server accepted some of our options; acknowledge it, then expect DATA 1
+		TransferOptions accepted = new TransferOptions();
+		DiskSpaceLedger.Reservation reservation = null;
+		if (PacketUtil.getPacketType(receivePacket) == PacketType.OACK) {
+			accepted = checkOack(parser, packetUtil, requested);
+			if (accepted.getTimeout() > 0)
+				timer.setFixedTimeout(accepted.getTimeout());
+			
+			PacketUtil serverUtil = new PacketUtil(targetIP, receivePacket.getPort());
+			
+			// now that we know the size of the file, make sure it fits before accepting it
+			if (accepted.getTransferSize() > 0) {
+				try {
+					reservation = DiskSpaceLedger.getInstance().reserve(getFile(), accepted.getTransferSize());
+				} catch (TFTPException e) {
+					sendPacket = serverUtil.formErrorPacket(e.getErrorCode(), e.getMessage());
+					PacketUtil.sendPacketToProcess("", sendReceiveSocket, sendPacket, ProcessType.SERVER, "ERROR");
+					throw e;
+				}
+			}
+			
+			sendPacket = serverUtil.formAckPacket(0);
+			PacketUtil.sendPacketToProcess("", sendReceiveSocket, sendPacket, ProcessType.SERVER, "ACK");
+			timer.packetSent(0);
+			
+			// with a window, DATA 1 may be lost while later blocks arrive; skip those until it is resent
+			parser.setWindowSize(accepted.getWindowSize());
+			try {
+				do {
+					receivePacket = receiveOrRetransmit("DATA", accepted.getBlockSize() + 4);
+				} while (parser.isOutOfOrderDataPacket(receivePacket, 1));
+				timer.responseReceived(0);
+			} catch (TFTPException e) {
+				releaseReservation(reservation);
+				throw e;
+			}
+		}
+		parser.setBlockSize(accepted.getBlockSize());
+		
 		try {
 			//receive first data packet with block #1
 			parser.parseDataPacket(receivePacket, 1);
 		} catch(ErrorReceivedException e) {
 			// the other side sent an error packet, don't send a response
 			// rethrow so the client UI can print a message
+			releaseReservation(reservation);
 			throw e;
 
 		} catch(TFTPException e){
+			releaseReservation(reservation);
 			
 			// send error packet to TID of packet					
 			DatagramPacket errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage(),
@@ -200,72 +272,99 @@ public class Client {
 		
 		// request is good, set up a receiver to proceed with the transfer
 		Receiver r = new Receiver(ProcessType.SERVER, sendReceiveSocket, targetIP, receivePacket.getPort());
+		r.setBlockSize(accepted.getBlockSize());
+		r.setWindowSize(accepted.getWindowSize());
+		r.setRollover(accepted.getRollover());
+		r.setReservation(reservation);
+		r.setTimer(timer);
+		// return as soon as the final ACK is sent, the dally goes on in the background
+		r.setDallyResponder(DallyResponder.getInstance());
 		r.receiveFile(receivePacket, getFile());
+		if (r.isSocketHandedOff())
+			sendReceiveSocket = null; // the next transfer gets a socket of its own
 	}
 
 	public void sendWriteRequest() throws TFTPException {
 		
-		System.out.println("Starting write of file : " + getFilename() + " to server...");
+		Log.summary("Starting write of file : %s to server...", getFilename());
+		ensureSocket();
 		
 		// set up PacketUtil object to generate packets with
 		PacketUtil packetUtil = new PacketUtil(targetIP, targetPort);		
 		
-		// create send packet
-		sendPacket = packetUtil.formWrqPacket(getFilename(), getMode());
+		// create send packet, asking for any non-default options
+		TransferOptions requested = getRequestedOptions();
+		if (requestTransferSize)
+			requested.setTransferSize(getFile().length());
+		sendPacket = packetUtil.formReqPacket(getFilename(), getMode(), PacketUtil.WRITE_FLAG, requested);
 
 		// send packet to server
 		PacketUtil.sendPacketToProcess("", sendReceiveSocket, sendPacket, ProcessType.SERVER, "WRQ");
+		timer = new RetransmitTimer();
+		timer.packetSent(0);
         boolean packetReceived = false;
-        int retransmission = 0;
         
-        while (!packetReceived && retransmission <= PacketUtil.DEFAULT_RETRY_TRANSMISSION){
+        while (!packetReceived){
         	try {			  
+        		timer.applyTo(sendReceiveSocket);
         		receivePacket = PacketUtil.receivePacketOrTimeout("", sendReceiveSocket, ProcessType.SERVER, "ACK");
         		packetReceived = true;
         		
         	} catch(SocketTimeoutException ex){
         		
-        		System.out.println("Error: Timed out while waiting for DATA Packet");		
+        		Log.summary("Error: Timed out while waiting for DATA Packet");		
         		
-    			if (retransmission == PacketUtil.DEFAULT_RETRY_TRANSMISSION){
+    			if (!timer.backOff()){
     				throw new TFTPException(String.format("No response received after %d retries, aborting request", 
-    						retransmission), PacketUtil.ERR_UNDEFINED);    				
+    						timer.getRetries()), PacketUtil.ERR_UNDEFINED);    				
     			}    			
 
-        		System.out.println("possible WRQ packet loss, resending...");        
+        		Log.summary("possible WRQ packet loss, resending...");        
     			
     			PacketUtil.sendPacketToProcess("", sendReceiveSocket, sendPacket, ProcessType.SERVER, "WRQ");	
-    			retransmission ++;
         	}
 		}
+        timer.responseReceived(0);
         
         
 		PacketParser parser = new PacketParser(receivePacket.getAddress(), receivePacket.getPort());
 
-		// parse ACK 0 packet
-		try{
-			parser.parseAckPacket(receivePacket, 0);
-		} catch(ErrorReceivedException e) {
-			// the other side sent an error packet, don't send a response
-			// rethrow so the client UI can print a message
-			throw e;
-
-		} catch(TFTPException e){
-			// send error packet
-			DatagramPacket errPacket = null;	
-					
-			errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage(),
-					receivePacket.getAddress(), receivePacket.getPort());
-			
-			PacketUtil.sendPacketToProcess("", sendReceiveSocket, errPacket, ProcessType.SERVER, "ERROR");			
-
-			// rethrow so the client UI can print a message
-			throw e;
+		// an OACK takes the place of ACK 0 if the server accepted some of our options
+		TransferOptions accepted = new TransferOptions();
+		if (PacketUtil.getPacketType(receivePacket) == PacketType.OACK) {
+			accepted = checkOack(parser, packetUtil, requested);
+			if (accepted.getTimeout() > 0)
+				timer.setFixedTimeout(accepted.getTimeout());
+		} else {
+			// parse ACK 0 packet
+			try{
+				parser.parseAckPacket(receivePacket, 0);
+			} catch(ErrorReceivedException e) {
+				// the other side sent an error packet, don't send a response
+				// rethrow so the client UI can print a message
+				throw e;
+	
+			} catch(TFTPException e){
+				// send error packet
+				DatagramPacket errPacket = null;	
+						
+				errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage(),
+						receivePacket.getAddress(), receivePacket.getPort());
+				
+				PacketUtil.sendPacketToProcess("", sendReceiveSocket, errPacket, ProcessType.SERVER, "ERROR");			
+	
+				// rethrow so the client UI can print a message
+				throw e;
+			}
 		}
 
 		// set up a sender to proceed with the transfer
 
 		Sender s = new Sender(ProcessType.SERVER, sendReceiveSocket,receivePacket.getAddress(), receivePacket.getPort());
+		s.setBlockSize(accepted.getBlockSize());
+		s.setWindowSize(accepted.getWindowSize());
+		s.setRollover(accepted.getRollover());
+		s.setTimer(timer);
 		try {
 			s.sendFile(getFile());
 		} catch (TFTPException e) {
@@ -274,12 +373,89 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Returns the options to include in a request. Only options that differ from the 
+	 * RFC 1350 defaults are requested, so plain requests stay compatible with any server.
+	 */
+	private TransferOptions getRequestedOptions() {
+		TransferOptions options = new TransferOptions();
+		if (blockSize != TransferOptions.DEFAULT_BLOCK_SIZE)
+			options.setBlockSize(blockSize);
+		if (windowSize != TransferOptions.DEFAULT_WINDOW_SIZE)
+			options.setWindowSize(windowSize);
+		if (rollover != TransferOptions.DEFAULT_ROLLOVER)
+			options.setRollover(rollover);
+		if (timeout > 0)
+			options.setTimeout(timeout);
+		return options;
+	}
+	
+	private void releaseReservation(DiskSpaceLedger.Reservation reservation) {
+		if (reservation != null)
+			reservation.release();
+	}
+	
+	/**
+	 * Parses and validates an OACK received in response to a request. If it is 
+	 * unacceptable, an ERROR packet is sent back to the server and an exception thrown.
+	 * 
+	 * @param  parser		parser expecting the server's TID
+	 * @param  packetUtil	used to form the ERROR packet
+	 * @param  requested	the options sent in the request
+	 * @return 				the options the server agreed to
+	 */
+	private TransferOptions checkOack(PacketParser parser, PacketUtil packetUtil, TransferOptions requested) 
+			throws TFTPException {
+		try {
+			TransferOptions accepted = parser.parseOackPacket(receivePacket);
+			requested.checkReply(accepted);
+			return accepted;
+		} catch (ErrorReceivedException e) {
+			throw e;
+		} catch (TFTPException e) {
+			DatagramPacket errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage(),
+					receivePacket.getAddress(), receivePacket.getPort());
+			PacketUtil.sendPacketToProcess("", sendReceiveSocket, errPacket, ProcessType.SERVER, "ERROR");
+			throw e;
+		}
+	}
+	
+	/**
+	 * Waits for a response to the last packet sent, retransmitting it on timeout.
+	 * 
+	 * @param  expectedPacketStr	a description of the packet expected, which is displayed
+	 * @param  bufSize				the size of the receive buffer
+	 * @return 						the packet received
+	 */
+	private DatagramPacket receiveOrRetransmit(String expectedPacketStr, int bufSize) throws TFTPException {
+		while (true) {
+			try {
+				timer.applyTo(sendReceiveSocket);
+				return PacketUtil.receivePacketOrTimeout("", sendReceiveSocket, ProcessType.SERVER, expectedPacketStr, bufSize);
+			} catch (SocketTimeoutException ex) {
+				Log.summary("Error: Timed out while waiting for %s Packet", expectedPacketStr);
+				if (!timer.backOff()) {
+					throw new TFTPException(String.format("No response received after %d retries, aborting request", 
+							timer.getRetries()), PacketUtil.ERR_UNDEFINED);
+				}
+				Log.summary("possible packet loss, resending...");
+				PacketUtil.sendPacketToProcess("", sendReceiveSocket, sendPacket, ProcessType.SERVER, 
+						PacketUtil.getPacketType(sendPacket).name());
+			}
+		}
+	}
+
 	//Client get functions
 	public String getDirectory(){return directory;}
 	public String getFilename(){return filename;}
 	public int getPortNum(){return targetPort;}
 	public String getMode(){return mode;}
 	public File getFile(){return theFile;}
+	public int getBlockSize(){return blockSize;}
+	public int getWindowSize(){return windowSize;}
+	public int getRollover(){return rollover;}
+	public boolean getRequestTransferSize(){return requestTransferSize;}
+	public int getTimeout(){return timeout;}
 
 	//Client set functions
 	
@@ -288,6 +464,11 @@ public class Client {
 	public void setPortNum(int aPort){targetPort = aPort;}
 	public void setMode(String aMode){mode = aMode;}
 	public void setFile(File aFile){theFile = aFile;}
+	public void setBlockSize(int aBlockSize){blockSize = aBlockSize;}
+	public void setWindowSize(int aWindowSize){windowSize = aWindowSize;}
+	public void setRollover(int aRollover){rollover = aRollover;}
+	public void setRequestTransferSize(boolean request){requestTransferSize = request;}
+	public void setTimeout(int seconds){timeout = seconds;}
 
 	//set server ip function
 	public void setIP(InetAddress ip){targetIP = ip;}
@@ -16,7 +16,9 @@ import java.util.Scanner;
 
 import tftp.exception.ErrorReceivedException;
 import tftp.exception.TFTPException;
+import tftp.log.Log;
 import tftp.net.PacketUtil;
+import tftp.net.TransferOptions;
 import tftp.server.Server;
 import tftp.sim.ErrorSimulator;
 
@@ -127,8 +129,12 @@ public class ClientUI {
 	
 	private void printHelp() {
 		System.out.println("Please enter your file transfer request in the following format:\n");
-		System.out.println("<filename> <request type> \n");
+		System.out.println("<filename> <request type> [block size] [window size]\n");
 		System.out.println("Acceptable request types: 'r' (read) or 'w' (write)");
+		System.out.println("Block size is optional (" + TransferOptions.MIN_BLOCK_SIZE + "-" + TransferOptions.MAX_BLOCK_SIZE 
+				+ " bytes, default " + TransferOptions.DEFAULT_BLOCK_SIZE + ")");
+		System.out.println("Window size is optional (1-" + TransferOptions.MAX_WINDOW_SIZE 
+				+ " blocks per ACK, default " + TransferOptions.DEFAULT_WINDOW_SIZE + ")");
 		System.out.println("Example request :\n");
 		System.out.println("file.txt r \n");
 		System.out.println("Press Q at any time to quit.\n");
@@ -146,6 +152,36 @@ public class ClientUI {
 		String filename = args[0];
 		String type = args[1].toLowerCase();
 		
+		int blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+		if (args.length > 2) {
+			try {
+				blockSize = Integer.parseInt(args[2]);
+			} catch (NumberFormatException e) {
+				blockSize = -1;
+			}
+			if (blockSize < TransferOptions.MIN_BLOCK_SIZE || blockSize > TransferOptions.MAX_BLOCK_SIZE) {
+				System.out.println("Invalid block size.");
+				printHelp();
+				return;
+			}
+		}
+		client.setBlockSize(blockSize);
+		
+		int windowSize = TransferOptions.DEFAULT_WINDOW_SIZE;
+		if (args.length > 3) {
+			try {
+				windowSize = Integer.parseInt(args[3]);
+			} catch (NumberFormatException e) {
+				windowSize = -1;
+			}
+			if (windowSize < 1 || windowSize > TransferOptions.MAX_WINDOW_SIZE) {
+				System.out.println("Invalid window size.");
+				printHelp();
+				return;
+			}
+		}
+		client.setWindowSize(windowSize);
+		
 		client.setFilename(filename);
 		client.setMode("octet");
 		
@@ -220,6 +256,8 @@ public class ClientUI {
 	
 	public static void main(String args[]) {
 
+		// print transfer messages straight away so they stay in order with the prompts
+		Log.setSynchronous(true);
 		ClientUI ui = new ClientUI(); 
 		try {
 			ui.showUI();
@@ -0,0 +1,222 @@
+/*
+ * Log.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Where the client, server and simulator write what they are doing.
+ *
+ * Messages have a level and are dropped straight away if that level isn't enabled,
+ * so callers on the packet path should check isEnabled(LogLevel.PACKET) before
+ * building arguments. Messages that are kept go into a lock-free ring and are
+ * formatted and printed by a background writer thread, so transfer threads never
+ * format strings or wait on System.out. If the ring fills up faster than it can be
+ * printed, messages are dropped (and counted) rather than holding up transfers.
+ *
+ * The arguments of a message are formatted later, on the writer thread, so they
+ * must not be changed after the call (Strings, numbers and enums are fine).
+ *
+ * The level starts out as SUMMARY, or as the value of the tftp.log system
+ * property (off, summary or packet) when that is set.
+ */
+public final class Log {
+
+	public static final int RING_CAPACITY = 8192;
+	// how long the writer sleeps when there is nothing to print
+	private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+	// how long the shutdown hook waits for messages to be printed
+	private static final long SHUTDOWN_FLUSH_MS = 1000;
+
+	private static volatile LogLevel level = initialLevel();
+	private static volatile boolean synchronous = false;
+
+	private static final LogRing<Message> ring = new LogRing<Message>(RING_CAPACITY);
+	private static final AtomicLong dropped = new AtomicLong();
+	private static volatile long printed = 0;	// messages taken from the ring and printed
+	private static Thread writer = null;
+
+	private Log() {}
+
+	/**
+	 * Sets how much is logged.
+	 */
+	public static void setLevel(LogLevel newLevel) {
+		level = newLevel;
+	}
+
+	public static LogLevel getLevel() {
+		return level;
+	}
+
+	/**
+	 * Returns true if messages of the given level are logged.
+	 */
+	public static boolean isEnabled(LogLevel messageLevel) {
+		return messageLevel != LogLevel.OFF && level.compareTo(messageLevel) >= 0;
+	}
+
+	/**
+	 * Prints messages on the calling thread instead of the writer thread, e.g. for an
+	 * interactive program whose own output must stay in order with its log messages.
+	 */
+	public static void setSynchronous(boolean sync) {
+		if (sync)
+			flush();
+		synchronous = sync;
+	}
+
+	/**
+	 * Logs a message about a request or a whole transfer.
+	 */
+	public static void summary(String format, Object... args) {
+		log(LogLevel.SUMMARY, format, args);
+	}
+
+	/**
+	 * Logs a message about a single packet.
+	 */
+	public static void packet(String format, Object... args) {
+		log(LogLevel.PACKET, format, args);
+	}
+
+	/**
+	 * Logs a message, formatted as by String.format. A line separator is added.
+	 */
+	public static void log(LogLevel messageLevel, String format, Object... args) {
+		if (!isEnabled(messageLevel))
+			return;
+
+		if (synchronous) {
+			synchronized (Log.class) {
+				System.out.println(String.format(format, args));
+			}
+			return;
+		}
+
+		if (!ring.offer(new Message(format, args)))
+			dropped.incrementAndGet();
+		startWriter();
+	}
+
+	/**
+	 * Waits until every message logged so far has been printed.
+	 */
+	public static void flush() {
+		flush(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the number of messages dropped because the ring was full.
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	// waits at most timeoutMs for the messages logged so far to be printed
+	private static void flush(long timeoutMs) {
+		long target = ring.added();
+		long deadline = System.currentTimeMillis() + Math.min(timeoutMs, Long.MAX_VALUE / 2);
+		Thread w;
+		synchronized (Log.class) {
+			w = writer;
+		}
+		if (w == null)
+			return;
+		// the writer wakes up by itself, unparking it only saves the wait
+		while (printed < target && w.isAlive() && System.currentTimeMillis() < deadline) {
+			LockSupport.unpark(w);
+			LockSupport.parkNanos(IDLE_PARK_NS);
+		}
+	}
+
+	private static synchronized void startWriter() {
+		if (writer != null)
+			return;
+		writer = new Thread("Log-Writer") {
+			@Override
+			public void run() {
+				writeMessages();
+			}
+		};
+		// don't keep the process alive, the shutdown hook prints what is left
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("Log-Flush") {
+			@Override
+			public void run() {
+				flush(SHUTDOWN_FLUSH_MS);
+			}
+		});
+	}
+
+	// runs on the writer thread: formats everything in the ring and prints it in one go
+	private static void writeMessages() {
+		StringBuilder batch = new StringBuilder();
+		String newline = System.getProperty("line.separator");
+		long reportedDrops = 0;
+
+		while (true) {
+			long count = 0;
+			Message m;
+			while ((m = ring.poll()) != null) {
+				try {
+					batch.append(String.format(m.format, m.args));
+				} catch (RuntimeException e) {
+					// a bad format string shouldn't stop all logging
+					batch.append(m.format);
+				}
+				batch.append(newline);
+				count++;
+			}
+
+			long drops = dropped.get();
+			if (drops > reportedDrops) {
+				batch.append(String.format("(%d log messages dropped)", drops - reportedDrops)).append(newline);
+				reportedDrops = drops;
+			}
+
+			if (batch.length() > 0) {
+				synchronized (Log.class) {
+					System.out.print(batch);
+					System.out.flush();
+				}
+				batch.setLength(0);
+			}
+			if (count > 0)
+				printed += count;
+			else
+				LockSupport.parkNanos(IDLE_PARK_NS);
+		}
+	}
+
+	private static LogLevel initialLevel() {
+		String property = System.getProperty("tftp.log");
+		if (property != null) {
+			try {
+				return LogLevel.valueOf(property.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.out.println("Unknown log level " + property + ", using SUMMARY");
+			}
+		}
+		return LogLevel.SUMMARY;
+	}
+
+	private static final class Message {
+		final String format;
+		final Object[] args;
+
+		Message(String format, Object[] args) {
+			this.format = format;
+			this.args = args;
+		}
+	}
+}
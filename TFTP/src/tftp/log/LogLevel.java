@@ -0,0 +1,16 @@
+/*
+ * LogLevel.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.log;
+
+// how much is written to the console, each level includes the ones before it
+public enum LogLevel {
+	OFF,		// nothing
+	SUMMARY,	// one line per request and transfer, plus timeouts and errors
+	PACKET		// every packet sent and received as well
+}
@@ -0,0 +1,81 @@
+/*
+ * LogRing.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue that any number of threads add to and a single thread takes
+ * from, without locks. Adding never waits: when the ring is full it fails, so
+ * a thread producing log messages is never held up by the thread writing them.
+ */
+class LogRing<E> {
+
+	private final AtomicReferenceArray<E> slots;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();	// next slot to be claimed by a producer
+	private volatile long head = 0;						// next slot to be taken, only written by the consumer
+
+	/**
+	 *  @param capacity		the number of slots, rounded up to a power of two
+	 */
+	LogRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new AtomicReferenceArray<E>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an element, unless the ring is full.
+	 *
+	 *  @return		false if there was no room
+	 */
+	boolean offer(E e) {
+		long t;
+		do {
+			t = tail.get();
+			if (t - head >= slots.length())
+				return false;
+		} while (!tail.compareAndSet(t, t + 1));
+
+		// the slot is ours, the consumer emptied it before moving head past it
+		slots.lazySet((int) t & mask, e);
+		return true;
+	}
+
+	/**
+	 * Takes the oldest element. Only one thread may call this.
+	 *
+	 *  @return		the element, or null if there is none (or the oldest is still being added)
+	 */
+	E poll() {
+		int i = (int) head & mask;
+		E e = slots.get(i);
+		if (e == null)
+			return null;
+		slots.lazySet(i, null);
+		head = head + 1;
+		return e;
+	}
+
+	/**
+	 * Returns the number of elements ever added.
+	 */
+	long added() {
+		return tail.get();
+	}
+
+	/**
+	 * Returns the number of elements ever taken.
+	 */
+	long taken() {
+		return head;
+	}
+}
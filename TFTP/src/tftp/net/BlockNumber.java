@@ -0,0 +1,68 @@
+/*
+ * BlockNumber.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+/**
+ * Converts between the 16-bit block numbers carried in DATA/ACK packets and the
+ * 64-bit block indexes used to keep track of a transfer. Once block 65535 has been
+ * sent the wire number rolls over, either to 0 (the common behaviour, and the default)
+ * or to 1, as agreed with the rollover option. Block index 0 is only ever used for ACK 0.
+ */
+public final class BlockNumber {
+
+	// largest block number that fits in a packet
+	public static final int MAX_WIRE_BLOCK = 0xFFFF;
+
+	private BlockNumber() {}
+
+	/**
+	 * Returns the block number to put in a packet for a block index.
+	 *
+	 *  @param index			the block's position in the transfer (1 is the first DATA block)
+	 *  @param rolloverBlock	the wire number that follows 65535 (0 or 1)
+	 *  @return					the 16-bit wire block number
+	 */
+	public static int toWire(long index, int rolloverBlock) {
+		if (index <= 0)
+			return 0;
+		if (rolloverBlock == 0)
+			return (int) (index & MAX_WIRE_BLOCK);
+		return (int) ((index - 1) % MAX_WIRE_BLOCK) + 1;
+	}
+
+	/**
+	 * Returns the block index a wire block number refers to. Since a wire number
+	 * repeats every time the counter rolls over, the index nearest to a known block
+	 * (e.g. the block we expect next) is chosen.
+	 *
+	 *  @param wire				the 16-bit block number read from a packet
+	 *  @param near				a block index close to the one the packet refers to
+	 *  @param rolloverBlock	the wire number that follows 65535 (0 or 1)
+	 *  @return					the block index, 0 for ACK 0 (or an invalid block 0 when rolling over to 1)
+	 */
+	public static long toIndex(int wire, long near, int rolloverBlock) {
+		if (rolloverBlock != 0 && wire == 0)
+			return 0;
+
+		int period = rolloverBlock == 0 ? MAX_WIRE_BLOCK + 1 : MAX_WIRE_BLOCK;
+		near = Math.max(near, rolloverBlock);
+
+		// signed distance between the wire numbers, taking the shorter way round
+		long distance = wire - toWire(near, rolloverBlock);
+		if (distance > period / 2)
+			distance -= period;
+		else if (distance < -(period / 2))
+			distance += period;
+
+		long index = near + distance;
+		if (index < rolloverBlock)
+			index += period;
+		return index;
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * BlockSource.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import tftp.exception.TFTPException;
+
+/**
+ * Supplies the DATA blocks of a file being sent by a Sender.
+ */
+public interface BlockSource {
+
+	/**
+	 * Copies a block of the file into a buffer.
+	 *
+	 *  @param blockIndex	the block to read (1 is the first block of the file)
+	 *  @param buf			the buffer to fill, which has room for one block after offset
+	 *  @param offset		where in the buffer the block goes (e.g. after a packet header)
+	 *  @return				the number of bytes in the block, which is less than a full block
+	 *  					(possibly 0) for the last block of the file
+	 *  @throws TFTPException	if the file can't be read
+	 */
+	int readBlock(long blockIndex, byte[] buf, int offset) throws TFTPException;
+
+	/**
+	 * Releases the file. Called once the transfer is over.
+	 */
+	void close();
+}
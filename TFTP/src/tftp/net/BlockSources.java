@@ -0,0 +1,48 @@
+/*
+ * BlockSources.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.io.File;
+
+import tftp.exception.TFTPException;
+
+/**
+ * Chooses how the blocks of a file are read from disk.
+ */
+public final class BlockSources {
+
+	// files at least this large are memory-mapped, smaller ones aren't worth a mapping
+	public static final long DEFAULT_MAP_THRESHOLD = 1024 * 1024;
+
+	private static volatile long mapThreshold = DEFAULT_MAP_THRESHOLD;
+
+	private BlockSources() {}
+
+	/**
+	 * Opens a file to be sent in blocks of the given size, memory-mapping it if it is large.
+	 *
+	 *  @throws TFTPException	with ERR_FILE_NOT_FOUND if the file can't be opened
+	 */
+	public static BlockSource open(File file, int blockSize) throws TFTPException {
+		if (file.length() >= mapThreshold)
+			return new MappedBlockSource(file, blockSize);
+		return new FileBlockSource(file, blockSize);
+	}
+
+	/**
+	 * Sets the size from which files are memory-mapped. Long.MAX_VALUE turns mapping off.
+	 */
+	public static void setMapThreshold(long bytes) {
+		mapThreshold = bytes;
+	}
+
+	public static long getMapThreshold() {
+		return mapThreshold;
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * DallyResponder.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import tftp.log.Log;
+
+/**
+ * Dallies after the final ACK of a transfer on behalf of the Receiver, so the
+ * transfer can be reported as finished as soon as the final ACK is sent. The
+ * Receiver hands over its socket, and a background thread answers any DATA the
+ * sender retransmits (because the final ACK was lost) with the final ACK again,
+ * then gives the socket back to the SocketPool once the dally is over.
+ *
+ * A single thread serves every dallying socket through a Selector, so the sockets
+ * must be backed by a DatagramChannel: opened with openSocket, or leased from the
+ * SocketPool.
+ */
+public class DallyResponder {
+
+	private static DallyResponder instance = null;
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Dally> pending = new ConcurrentLinkedQueue<Dally>();
+	private PriorityQueue<Dally> dallies = new PriorityQueue<Dally>();	// by deadline, earliest first
+	private List<Dally> finished = new ArrayList<Dally>();
+	private ByteBuffer receiveBuf = ByteBuffer.allocate(PacketUtil.MAX_PACKET_SIZE);
+
+	public static synchronized DallyResponder getInstance() {
+		if (instance == null)
+			instance = new DallyResponder();
+		return instance;
+	}
+
+	private DallyResponder() {
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			Log.summary("Could not start the dally responder, transfers will dally themselves: %s", e.getMessage());
+			return;
+		}
+		Thread thread = new Thread("Dally-Responder") {
+			@Override
+			public void run() {
+				respond();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Opens a socket that can be handed over at the end of a transfer.
+	 */
+	public static DatagramSocket openSocket() throws SocketException {
+		try {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(0));
+			return channel.socket();
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new SocketException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns true if a socket can be handed over, i.e. it is backed by a DatagramChannel.
+	 */
+	public boolean canTakeOver(DatagramSocket socket) {
+		return selector != null && socket.getChannel() != null;
+	}
+
+	/**
+	 * Takes over a socket after the final ACK of a transfer has been sent. The socket
+	 * belongs to the responder from now on and is released to the SocketPool when the
+	 * dally is over.
+	 *
+	 *  @param socket		the transfer's socket, which canTakeOver must accept
+	 *  @param finalAck		the final ACK, sent again whenever DATA arrives from its destination
+	 *  @param dallyMs		how long to wait for retransmitted DATA
+	 *  @param label		identifies the transfer in console output
+	 *  @param sender		the process sending the DATA
+	 */
+	public void takeOver(DatagramSocket socket, DatagramPacket finalAck, int dallyMs, String label, ProcessType sender) {
+		byte[] ack = new byte[finalAck.getLength()];
+		System.arraycopy(finalAck.getData(), finalAck.getOffset(), ack, 0, ack.length);
+		pending.add(new Dally(socket.getChannel(), new DatagramPacket(ack, ack.length, finalAck.getAddress(), finalAck.getPort()),
+				System.currentTimeMillis() + dallyMs, label, sender));
+		selector.wakeup();
+	}
+
+	private void respond() {
+		while (true) {
+			try {
+				Dally next = dallies.peek();
+				if (next == null)
+					selector.select();
+				else
+					selector.select(Math.max(1, next.deadline - System.currentTimeMillis()));
+
+				register();
+				answerSelected();
+
+				long now = System.currentTimeMillis();
+				while (!dallies.isEmpty() && dallies.peek().deadline <= now) {
+					Dally dally = dallies.poll();
+					dally.channel.keyFor(selector).cancel();
+					finished.add(dally);
+				}
+				if (!finished.isEmpty()) {
+					// a socket can't go back to blocking mode (for its next transfer) until
+					// its key is deregistered, which happens on the next select
+					selector.selectNow();
+					answerSelected();
+					for (Dally dally : finished)
+						close(dally);
+					finished.clear();
+				}
+			} catch (IOException e) {
+				Log.summary("Dally-Responder: %s", e.getMessage());
+			}
+		}
+	}
+
+	private void answerSelected() {
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			if (key.isValid() && key.isReadable())
+				answer((Dally) key.attachment());
+		}
+	}
+
+	private void register() {
+		Dally dally;
+		while ((dally = pending.poll()) != null) {
+			try {
+				dally.channel.configureBlocking(false);
+				dally.channel.register(selector, SelectionKey.OP_READ, dally);
+				dallies.add(dally);
+			} catch (IOException e) {
+				close(dally);
+			}
+		}
+	}
+
+	// answers retransmitted DATA from the sender with the final ACK
+	private void answer(Dally dally) {
+		while (true) {
+			receiveBuf.clear();
+			SocketAddress source;
+			try {
+				source = dally.channel.receive(receiveBuf);
+			} catch (IOException e) {
+				return; // the dally ends at its deadline anyway
+			}
+			if (source == null)
+				return;
+
+			InetSocketAddress sourceAddress = (InetSocketAddress) source;
+			DatagramPacket packet = new DatagramPacket(receiveBuf.array(), receiveBuf.position(),
+					sourceAddress.getAddress(), sourceAddress.getPort());
+			PacketUtil.printReceivedPacket(dally.label, packet);
+			if (source.equals(dally.finalAck.getSocketAddress()) && PacketUtil.getPacketType(packet) == PacketType.DATA)
+				PacketUtil.sendPacketToProcess(dally.label, dally.channel, dally.finalAck, dally.sender, "ACK");
+		}
+	}
+
+	// gives the socket back to the SocketPool, which closes it if it isn't pooled
+	private void close(Dally dally) {
+		SocketPool.recycle(dally.channel.socket());
+	}
+
+	// a socket dallying after the final ACK of its transfer
+	private static class Dally implements Comparable<Dally> {
+
+		private final DatagramChannel channel;
+		private final DatagramPacket finalAck;
+		private final long deadline;
+		private final String label;
+		private final ProcessType sender;
+
+		private Dally(DatagramChannel channel, DatagramPacket finalAck, long deadline, String label, ProcessType sender) {
+			this.channel = channel;
+			this.finalAck = finalAck;
+			this.deadline = deadline;
+			this.label = label;
+			this.sender = sender;
+		}
+
+		@Override
+		public int compareTo(Dally other) {
+			return deadline < other.deadline ? -1 : (deadline == other.deadline ? 0 : 1);
+		}
+	}
+}
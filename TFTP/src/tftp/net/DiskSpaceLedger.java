@@ -0,0 +1,124 @@
+/*
+ * DiskSpaceLedger.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tftp.exception.TFTPException;
+
+/**
+ * Keeps track of disk space promised to uploads that are in progress, so a
+ * transfer can be refused with DISK FULL before it starts instead of partway
+ * through, and so concurrent uploads can't all be promised the same free space.
+ *
+ * The file system is only asked for its usable space when a reservation is made
+ * (once per upload when the size is known from tsize, otherwise once per
+ * GROWTH_CHUNK bytes), rather than for every DATA packet. Reservations are shared
+ * by everything in this process, so if files are written to more than one file
+ * system the ledger errs on the side of reporting the disk full.
+ */
+public class DiskSpaceLedger {
+
+	// amount reserved at a time when an upload outgrows its reservation
+	public static final long GROWTH_CHUNK = 1024 * 1024;
+
+	private static DiskSpaceLedger instance = null;
+
+	// bytes reserved by uploads but not yet written
+	private AtomicLong outstanding = new AtomicLong();
+
+	public static synchronized DiskSpaceLedger getInstance() {
+		if (instance == null)
+			instance = new DiskSpaceLedger();
+		return instance;
+	}
+
+	private DiskSpaceLedger() {}
+
+	/**
+	 * Reserves space for an upload.
+	 *
+	 *  @param file		the file that will be written
+	 *  @param bytes	the number of bytes to reserve (0 if the size isn't known yet)
+	 *  @return			the reservation, which must be released when the upload ends
+	 *  @throws TFTPException	with ERR_DISK_FULL if the space isn't available
+	 */
+	public Reservation reserve(File file, long bytes) throws TFTPException {
+		Reservation reservation = new Reservation(file);
+		reservation.grow(bytes);
+		return reservation;
+	}
+
+	/**
+	 * Returns the number of bytes reserved by uploads in progress that have not been written yet.
+	 */
+	public long getOutstanding() {
+		return outstanding.get();
+	}
+
+	private synchronized void take(File file, long bytes) throws TFTPException {
+		if (bytes == 0)
+			return;
+		if (usableSpace(file) - outstanding.get() < bytes)
+			throw new TFTPException("DISK FULL, Can not complete transfer, Disk cleanup required", PacketUtil.ERR_DISK_FULL);
+		outstanding.addAndGet(bytes);
+	}
+
+	private long usableSpace(File file) {
+		// the file may not exist yet, so ask about the directory it will be created in
+		File dir = file.getAbsoluteFile().getParentFile();
+		return dir != null ? dir.getUsableSpace() : file.getUsableSpace();
+	}
+
+	/**
+	 * Disk space held by one upload. Not thread safe; it belongs to the thread doing the upload.
+	 */
+	public class Reservation {
+
+		private File file;
+		private long remaining = 0; // reserved bytes not yet written
+
+		private Reservation(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Accounts for bytes about to be written, reserving more space first if
+		 * the upload has outgrown its reservation.
+		 *
+		 *  @throws TFTPException	with ERR_DISK_FULL if the extra space isn't available
+		 */
+		public void consume(long bytes) throws TFTPException {
+			if (bytes > remaining) {
+				try {
+					grow(Math.max(GROWTH_CHUNK, bytes - remaining));
+				} catch (TFTPException e) {
+					// nearly full, only take what this write needs
+					grow(bytes - remaining);
+				}
+			}
+			remaining -= bytes;
+			outstanding.addAndGet(-bytes);
+		}
+
+		/**
+		 * Gives back whatever part of the reservation was not written. Safe to call more than once.
+		 */
+		public void release() {
+			outstanding.addAndGet(-remaining);
+			remaining = 0;
+		}
+
+		private void grow(long bytes) throws TFTPException {
+			take(file, bytes);
+			remaining += bytes;
+		}
+	}
+}
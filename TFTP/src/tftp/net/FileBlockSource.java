@@ -0,0 +1,71 @@
+/*
+ * FileBlockSource.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import tftp.exception.TFTPException;
+import tftp.log.Log;
+
+/**
+ * Reads blocks straight from a file. Blocks are read by position, so they 
+ * can be asked for in any order.
+ */
+public class FileBlockSource implements BlockSource {
+
+	private FileInputStream fileReader;
+	private FileChannel channel;
+	private int blockSize;
+
+	/**
+	 * Opens a file to be sent in blocks of the given size.
+	 *
+	 *  @throws TFTPException	with ERR_FILE_NOT_FOUND if the file can't be opened
+	 */
+	public FileBlockSource(File file, int blockSize) throws TFTPException {
+		try {
+			fileReader = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			throw new TFTPException(e.getMessage(), PacketUtil.ERR_FILE_NOT_FOUND);
+		}
+		channel = fileReader.getChannel();
+		this.blockSize = blockSize;
+	}
+
+	@Override
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws TFTPException {
+		ByteBuffer dest = ByteBuffer.wrap(buf, offset, blockSize);
+		long position = (blockIndex - 1) * blockSize;
+		try {
+			// keep reading until the block is full or the end of the file is reached
+			while (dest.hasRemaining()) {
+				int n = channel.read(dest, position + dest.position() - offset);
+				if (n == -1)
+					break;
+			}
+		} catch (IOException e) {
+			throw new TFTPException("Error reading data from file: " + e.getMessage(), PacketUtil.ERR_UNDEFINED);
+		}
+		return dest.position() - offset;
+	}
+
+	@Override
+	public void close() {
+		try {
+			fileReader.close();
+		} catch (IOException e) {
+			Log.summary("Error closing file: %s", e.getMessage());
+		}
+	}
+}
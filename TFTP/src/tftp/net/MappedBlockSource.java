@@ -0,0 +1,106 @@
+/*
+ * MappedBlockSource.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import tftp.exception.TFTPException;
+import tftp.log.Log;
+
+/**
+ * Reads blocks from a memory-mapped file, so sending a large file doesn't go
+ * through a read system call per block: each block is copied straight from the
+ * page cache into the packet being sent.
+ *
+ * The file is mapped one region at a time, since a single mapping is limited to
+ * 2 GB. Java has no way to unmap a file; a mapping goes away once it is garbage
+ * collected, and until then some platforms (e.g. Windows) won't let the file be
+ * replaced. BlockSources therefore only maps files large enough to benefit.
+ */
+public class MappedBlockSource implements BlockSource {
+
+	// largest part of the file mapped at once
+	public static final long REGION_SIZE = 64 * 1024 * 1024;
+
+	private FileInputStream fileReader;
+	private FileChannel channel;
+	private int blockSize;
+	private long length;			// size of the file when it was opened
+	private long regionBlocks;		// blocks per region, so no block spans two regions
+	private long mappedRegion = -1;
+	private MappedByteBuffer mapping = null;
+
+	/**
+	 * Opens a file to be sent in blocks of the given size.
+	 *
+	 *  @throws TFTPException	with ERR_FILE_NOT_FOUND if the file can't be opened
+	 */
+	public MappedBlockSource(File file, int blockSize) throws TFTPException {
+		try {
+			fileReader = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			throw new TFTPException(e.getMessage(), PacketUtil.ERR_FILE_NOT_FOUND);
+		}
+		channel = fileReader.getChannel();
+		this.blockSize = blockSize;
+		regionBlocks = Math.max(1, REGION_SIZE / blockSize);
+		try {
+			length = channel.size();
+		} catch (IOException e) {
+			close();
+			throw new TFTPException("Error reading data from file: " + e.getMessage(), PacketUtil.ERR_UNDEFINED);
+		}
+	}
+
+	@Override
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws TFTPException {
+		long region = (blockIndex - 1) / regionBlocks;
+		if (region != mappedRegion)
+			map(region);
+
+		int start = (int) ((blockIndex - 1 - region * regionBlocks) * blockSize);
+		if (mapping == null || start >= mapping.limit())
+			return 0; // the empty block that ends a file whose size is a multiple of the block size
+
+		int n = Math.min(blockSize, mapping.limit() - start);
+		mapping.position(start);
+		mapping.get(buf, offset, n);
+		return n;
+	}
+
+	private void map(long region) throws TFTPException {
+		long position = region * regionBlocks * blockSize;
+		long size = Math.min(regionBlocks * blockSize, length - position);
+		// let go of the old region first so it can be unmapped
+		mapping = null;
+		mappedRegion = region;
+		if (size <= 0)
+			return;
+		try {
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		} catch (IOException e) {
+			throw new TFTPException("Error mapping file: " + e.getMessage(), PacketUtil.ERR_UNDEFINED);
+		}
+	}
+
+	@Override
+	public void close() {
+		mapping = null;
+		try {
+			fileReader.close();
+		} catch (IOException e) {
+			Log.summary("Error closing file: %s", e.getMessage());
+		}
+	}
+}
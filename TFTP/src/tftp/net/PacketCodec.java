@@ -0,0 +1,166 @@
+/*
+ * PacketCodec.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes TFTP packets in place, in one buffer that is reused for
+ * every packet. Nothing is allocated per packet, so a transfer that keeps one
+ * codec for sending and one for receiving produces no garbage in steady state.
+ *
+ * The packet returned by an encode method, like the receive packet, is the codec's
+ * own and is overwritten by the next call, so it must be sent (DatagramSocket.send
+ * copies it) or decoded before the codec is used again. PacketUtil's form*
+ * methods build packets that can be kept instead.
+ *
+ * A codec belongs to one side of one transfer, so it is not thread safe.
+ */
+public class PacketCodec {
+
+	// opcode (2 bytes) followed by a block number or error code (2 bytes)
+	public static final int HEADER_SIZE = PacketUtil.DATA_HEADER_SIZE;
+
+	private final byte[] buf;
+	private final ByteBuffer buffer;
+	private final DatagramPacket packet;
+
+	/**
+	 * Constructs a codec whose packets are sent to the given address.
+	 *
+	 *  @param receiverIP		where encoded packets are sent
+	 *  @param receiverPort		the port they are sent to
+	 *  @param capacity			the largest packet encoded or received, e.g. the block size + HEADER_SIZE
+	 */
+	public PacketCodec(InetAddress receiverIP, int receiverPort, int capacity) {
+		buf = new byte[capacity];
+		buffer = ByteBuffer.wrap(buf);
+		packet = new DatagramPacket(buf, capacity, receiverIP, receiverPort);
+	}
+
+	/**
+	 * Constructs a codec that is only used to receive packets.
+	 *
+	 *  @param capacity		the largest packet that will be received
+	 */
+	public PacketCodec(int capacity) {
+		buf = new byte[capacity];
+		buffer = ByteBuffer.wrap(buf);
+		packet = new DatagramPacket(buf, capacity);
+	}
+
+	/**
+	 * Returns the codec's packet, ready to receive into. Once a packet has been
+	 * received the decode methods read it.
+	 */
+	public DatagramPacket receivePacket() {
+		// a receive shrinks the length to what arrived, so give back the whole buffer
+		packet.setData(buf, 0, buf.length);
+		return packet;
+	}
+
+	/**
+	 * Returns the buffer to place DATA payload in before calling encodeData, starting at HEADER_SIZE.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Encodes an ACK packet.
+	 */
+	public DatagramPacket encodeAck(int blockNum) {
+		buffer.putShort(0, PacketUtil.ACK_FLAG);
+		buffer.putShort(2, (short) blockNum);
+		packet.setData(buf, 0, HEADER_SIZE);
+		return packet;
+	}
+
+	/**
+	 * Encodes a DATA packet whose payload is already in the buffer, starting at HEADER_SIZE.
+	 */
+	public DatagramPacket encodeData(int blockNum, int dataLength) {
+		buffer.putShort(0, PacketUtil.DATA_FLAG);
+		buffer.putShort(2, (short) blockNum);
+		packet.setData(buf, 0, HEADER_SIZE + dataLength);
+		return packet;
+	}
+
+	/**
+	 * Encodes a DATA packet, copying the payload in.
+	 */
+	public DatagramPacket encodeData(int blockNum, byte[] data, int offset, int dataLength) {
+		System.arraycopy(data, offset, buf, HEADER_SIZE, dataLength);
+		return encodeData(blockNum, dataLength);
+	}
+
+	/**
+	 * Encodes an ERROR packet. The message is written as single-byte characters
+	 * (TFTP messages are netascii), so no intermediate byte array is needed.
+	 * A message too long for the buffer is cut short.
+	 */
+	public DatagramPacket encodeError(int errCode, String errMsg) {
+		buffer.putShort(0, PacketUtil.ERROR_FLAG);
+		buffer.putShort(2, (short) errCode);
+		int length = Math.min(errMsg.length(), buf.length - HEADER_SIZE - 1);
+		for (int i = 0; i < length; i++)
+			buf[HEADER_SIZE + i] = (byte) errMsg.charAt(i);
+		buf[HEADER_SIZE + length] = 0;
+		packet.setData(buf, 0, HEADER_SIZE + length + 1);
+		return packet;
+	}
+
+	/**
+	 * Sends encoded packets to a different address, e.g. to answer an unknown TID.
+	 */
+	public void setDestination(InetAddress receiverIP, int receiverPort) {
+		packet.setAddress(receiverIP);
+		packet.setPort(receiverPort);
+	}
+
+	/**
+	 * Returns the opcode of the packet in the buffer.
+	 */
+	public int opcode() {
+		return buffer.getShort(0) & 0xFFFF;
+	}
+
+	/**
+	 * Returns the block number of the DATA or ACK packet in the buffer.
+	 */
+	public int blockNumber() {
+		return buffer.getShort(2) & 0xFFFF;
+	}
+
+	/**
+	 * Returns the error code of the ERROR packet in the buffer.
+	 */
+	public int errorCode() {
+		return buffer.getShort(2) & 0xFFFF;
+	}
+
+	/**
+	 * Returns the number of payload bytes in the DATA packet in the buffer.
+	 */
+	public int dataLength() {
+		return packet.getLength() - HEADER_SIZE;
+	}
+
+	/**
+	 * Writes the header of a DATA or ACK packet into a buffer.
+	 */
+	public static void writeHeader(byte[] msg, int opcode, int blockNum) {
+		msg[0] = (byte) ((opcode >> 8) & 0xFF);
+		msg[1] = (byte) (opcode & 0xFF);
+		msg[2] = (byte) ((blockNum >> 8) & 0xFF);
+		msg[3] = (byte) (blockNum & 0xFF);
+	}
+}
@@ -18,11 +18,19 @@ import tftp.exception.TFTPException;
 /**
  * PacketParser objects can be used to check that packet fields are correct 
  * so that further processing can continue.
+ * 
+ * Fields are read through a PacketView, so only the bytes of the datagram itself
+ * are looked at and nothing is allocated unless a String has to be handed back.
  */
 public class PacketParser {
 
 	private InetAddress expectedIP; // IP portion of TID - if this is null, accept any TID
 	private int expectedPort;		// port portion of TID - if this is 0, accept any TID
+	private int blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;	// largest DATA payload accepted
+	private int windowSize = TransferOptions.DEFAULT_WINDOW_SIZE;	// blocks that may be in flight at once
+	private int rolloverBlock = TransferOptions.DEFAULT_ROLLOVER;	// wire block number that follows 65535
+	private TransferOptions requestOptions = new TransferOptions(); // options in the last request parsed
+	private PacketView view = new PacketView();						// reused for every packet parsed
 	
 	/**
 	 * Constructs a PacketParser with default values.
@@ -56,14 +64,14 @@ public class PacketParser {
 	 * @throws 			TFTPPacketException if the packet is badly formatted/corrupted 
 	 */
 	public String parseRRQPacket(DatagramPacket packet) throws TFTPException {
-		byte[] data = packet.getData();
+		view.wrap(packet);
 		
 		// the packet could be an error packet, so check this first
-		if (data[1] == PacketUtil.ERROR_FLAG)
+		if (view.is(PacketUtil.ERROR_FLAG))
 			parseErrorPacket(packet);
 
 		// check opcode
-		if (data[0] != 0 || data[1] != PacketUtil.READ_FLAG)
+		if (!view.is(PacketUtil.READ_FLAG))
 			throw new TFTPException("bad op code, expected RRQ", PacketUtil.ERR_ILLEGAL_OP);
 
 		// parse the rest of the request
@@ -78,14 +86,14 @@ public class PacketParser {
 	 * @throws 			TFTPPacketException if the packet is badly formatted/corrupted 
 	 */
 	public String parseWRQPacket(DatagramPacket packet) throws TFTPException {
-		byte[] data = packet.getData();
+		view.wrap(packet);
 		
 		// the packet could be an error packet, so check this first
-		if (data[1] == PacketUtil.ERROR_FLAG)
+		if (view.is(PacketUtil.ERROR_FLAG))
 			parseErrorPacket(packet);
 
 		// check opcode
-		if (data[0] != 0 || data[1] != PacketUtil.WRITE_FLAG)
+		if (!view.is(PacketUtil.WRITE_FLAG))
 			throw new TFTPException("bad op code, expected WRQ", PacketUtil.ERR_ILLEGAL_OP);
 
 		// parse the rest of the request
@@ -98,23 +106,23 @@ public class PacketParser {
 	 * @param  packet	the packet containing a data block
 	 * @throws 			TFTPPacketException if the packet is badly formatted/corrupted 
 	 */
-	public boolean parseDataPacket(DatagramPacket packet, int expectedBlockNum) throws TFTPException {
-		byte[] data = packet.getData();
+	public boolean parseDataPacket(DatagramPacket packet, long expectedBlockNum) throws TFTPException {
+		view.wrap(packet);
 		
 		// the packet could be an error packet, so check this first
-		
-		if (data[1] == PacketUtil.ERROR_FLAG)
+		if (view.is(PacketUtil.ERROR_FLAG))
 			parseErrorPacket(packet);
-		
 
 		// check TID
 		checkTID(packet);
 		// check opcode
-		if (data[0] != 0 || data[1] != PacketUtil.DATA_FLAG)
+		if (!view.is(PacketUtil.DATA_FLAG))
 			throw new TFTPException("bad op code, expected DATA", PacketUtil.ERR_ILLEGAL_OP);
+		if (view.length() < PacketUtil.DATA_HEADER_SIZE)
+			throw new TFTPException("incorrect packet length", PacketUtil.ERR_ILLEGAL_OP);
 		
 		// check that the block number is what we expect
-		int blockNum = PacketUtil.getBlockNumberInt(data[2], data[3]);
+		long blockNum = getBlockIndex(packet, expectedBlockNum);
 		if (blockNum == 0){
 			//Data Block number is 0 it is invalid
 			throw new TFTPException("Data Packet with block number 0 received ", PacketUtil.ERR_ILLEGAL_OP);
@@ -128,15 +136,36 @@ public class PacketParser {
 			return true;
 		}
 		
-		// check that there is no "extra" data beyond this packet's set length		
-		for (int i = packet.getLength(); i < data.length; i++) {
-			if (data[i] != 0)
-				throw new TFTPException("data found beyond packet length at byte " + i, PacketUtil.ERR_ILLEGAL_OP);
-		}			
+		// nothing past the datagram's length was received, so only the length needs checking
+		if (view.dataLength() > blockSize)
+			throw new TFTPException("DATA packet larger than block size", PacketUtil.ERR_ILLEGAL_OP);
 		
 		return false;
 	}
 	
+	/**
+	 * Checks whether a packet is a DATA packet from the expected TID that arrived 
+	 * ahead of the block we are waiting for, but still inside the current window.
+	 * With a window size of 1 this never happens; with larger windows it means 
+	 * an earlier block was lost or reordered, and the receiver should ACK the 
+	 * last block it got in order instead of treating the packet as an error.
+	 *
+	 * @param  packet			the packet to check
+	 * @param  expectedBlockNum	the next block number the receiver needs
+	 * @return 					true if the packet belongs to a later part of the window
+	 */
+	public boolean isOutOfOrderDataPacket(DatagramPacket packet, long expectedBlockNum) {
+		view.wrap(packet);
+		if (!view.is(PacketUtil.DATA_FLAG) || view.length() < PacketUtil.DATA_HEADER_SIZE)
+			return false;
+		if ((expectedIP != null && !packet.getAddress().equals(expectedIP)) 
+				|| (expectedPort != 0 && packet.getPort() != expectedPort))
+			return false;
+		
+		long blockNum = getBlockIndex(packet, expectedBlockNum);
+		return blockNum > expectedBlockNum && blockNum < expectedBlockNum + windowSize;
+	}
+	
 	/**
 	 * Parses an ACK packet.
 	 *
@@ -144,22 +173,24 @@ public class PacketParser {
 	 * @return			true if packet is a duplicate (previously seen block number)
 	 * @throws 			TFTPPacketException if the packet is badly formatted/corrupted 
 	 */
-	public boolean parseAckPacket(DatagramPacket packet, int expectedBlockNum) throws TFTPException {
-		byte[] data = packet.getData();
+	public boolean parseAckPacket(DatagramPacket packet, long expectedBlockNum) throws TFTPException {
+		view.wrap(packet);
 		
 		// the packet could be an error packet, so check this first
-		if (data[1] == PacketUtil.ERROR_FLAG)
+		if (view.is(PacketUtil.ERROR_FLAG))
 			parseErrorPacket(packet);		
 		
 		// check TID
 		checkTID(packet);
 
 		// check opcode
-		if (data[0] != 0 || data[1] != PacketUtil.ACK_FLAG)
+		if (!view.is(PacketUtil.ACK_FLAG))
 			throw new TFTPException("bad op code, expected ACK", PacketUtil.ERR_ILLEGAL_OP);
+		if (view.length() < PacketUtil.DATA_HEADER_SIZE)
+			throw new TFTPException("incorrect packet length", PacketUtil.ERR_ILLEGAL_OP);
 		
 		// check that the block number is what we expect
-		int blockNum = PacketUtil.getBlockNumberInt(data[2], data[3]);
+		long blockNum = getBlockIndex(packet, expectedBlockNum);
 
 		if (blockNum > expectedBlockNum) {
 			//Unexpected ACK packet return 1
@@ -185,42 +216,31 @@ public class PacketParser {
 	 * @throws 			TFTPFileIOException if the packet contains a file I/O error
 	 */
 	public void parseErrorPacket(DatagramPacket packet) throws TFTPException {
-		byte[] data = packet.getData();
+		view.wrap(packet);
 
 		// check TID
 		checkTID(packet);
 		
 		// check opcode
-		if (data[0] != 0 || data[1] != PacketUtil.ERROR_FLAG)
+		if (!view.is(PacketUtil.ERROR_FLAG))
 			throw new TFTPException("bad op code, expected ERROR", PacketUtil.ERR_ILLEGAL_OP);
 		
-		// check error code
-		// expect first byte to be 0 since error codes only go up to 7		
-		if (data[2] != 0 || data[3] < 0 || data[3] > 7)
+		// check error code, which only go up to 8
+		int errCode = view.errorCode();
+		if (errCode < 0 || errCode > PacketUtil.ERR_OPTION_NEGOTIATION)
 			throw new TFTPException("unknown error code", PacketUtil.ERR_ILLEGAL_OP);
 		
-		byte errCode = data[3];
-		// check message		
-		int i = 4;
-		StringBuilder sb = new StringBuilder();
-		while (data[i] != 0x00) {
-			sb.append((char)data[i]);
-			// reject non-printable values
-			if (data[i] < 0x20 || data[i] > 0x7F)
-				throw new TFTPException("non-character byte inside error message", PacketUtil.ERR_ILLEGAL_OP);			
-			i++;
-		}
-		String errMsg = sb.toString();
-		
-		// check length
-		i++;
-		if (i != packet.getLength()) {
+		// check message, which must be printable and end exactly at the end of the packet
+		int msgOffset = view.dataOffset();
+		int msgLength = view.stringLength(msgOffset);
+		if (msgLength < 0 || msgOffset + msgLength + 1 != view.end())
 			throw new TFTPException("packet length mismatch", PacketUtil.ERR_ILLEGAL_OP);
-		}
+		if (!view.isPrintable(msgOffset, msgLength))
+			throw new TFTPException("non-character byte inside error message", PacketUtil.ERR_ILLEGAL_OP);
 		
 		// the error packet itself is fine, so throw ErrorReceived to let other objects know
 		// that an error occurred on the other end		
-		throw new ErrorReceivedException(errMsg, errCode);
+		throw new ErrorReceivedException(view.string(msgOffset, msgLength), (byte) errCode);
 	}
 
 	/**
@@ -231,41 +251,116 @@ public class PacketParser {
 	 * @throws 			TFTPPacketException if the packet is badly formatted/corrupted 
 	 */
 	private String parseRequestPacket(DatagramPacket packet) throws TFTPException {
-		byte[] data = packet.getData();
+		
+		// file name and mode string must both end inside the packet
+		if (!view.scanRequest())			
+			throw new TFTPException("incorrect packet length", PacketUtil.ERR_ILLEGAL_OP);
 		
 		// validate file name		
-		int i = 2;
-		StringBuilder sb = new StringBuilder();
-		while (data[i] != 0x00) {
-			sb.append((char)data[i]);
-			// reject non-printable values
-			if (data[i] < 0x20 || data[i] > 0x7F)
-				throw new TFTPException("non-printable data inside file name", PacketUtil.ERR_ILLEGAL_OP);			
-			i++;
-		}
-		String filename = sb.toString();
+		if (!view.isFilenamePrintable())
+			throw new TFTPException("non-printable data inside file name", PacketUtil.ERR_ILLEGAL_OP);
 		// TODO : check for character not typically allowed in file names
 
-		// move index to start of mode string
-		i++;		
-
 		// validate mode string
-		sb = new StringBuilder();
-		while (data[i] != 0x00) {
-			sb.append((char)data[i]);			
-			i++;
-		}
-
-		String mode = sb.toString();
-		if (! (mode.toLowerCase().equals("netascii") || mode.toLowerCase().equals("octet")) )			
+		if (!(view.modeIs("netascii") || view.modeIs("octet")))			
 			throw new TFTPException("invalid mode", PacketUtil.ERR_ILLEGAL_OP);
 
-		
-		// should be at end of packet
-		if (i+1 != packet.getLength())			
-			throw new TFTPException("incorrect packet length", PacketUtil.ERR_ILLEGAL_OP);
+		// anything after the mode string is a list of options
+		requestOptions = parseOptions(view.optionsOffset());
 
-		return filename;
+		// the request is well formed, only now is the file name needed as a String
+		return view.filename();
+	}
+	
+	/**
+	 * Parses an OACK packet.
+	 *
+	 * @param  packet	the packet containing the options acknowledged by the other side
+	 * @return 			the acknowledged options
+	 * @throws 			TFTPException if the packet is badly formatted/corrupted 
+	 */
+	public TransferOptions parseOackPacket(DatagramPacket packet) throws TFTPException {
+		view.wrap(packet);
+		
+		// the packet could be an error packet, so check this first
+		if (view.is(PacketUtil.ERROR_FLAG))
+			parseErrorPacket(packet);
+		
+		// check TID
+		checkTID(packet);
+		
+		// check opcode
+		if (!view.is(PacketUtil.OACK_FLAG))
+			throw new TFTPException("bad op code, expected OACK", PacketUtil.ERR_ILLEGAL_OP);
+		
+		return parseOptions(packet.getOffset() + 2);
+	}
+	
+	/**
+	 * Parses a sequence of null-terminated option name / value pairs in the packet
+	 * the view points at, which must run exactly to the end of the packet.
+	 *
+	 * @param  start	the index of the first option name in the packet's buffer
+	 * @return 			the options found (possibly none)
+	 * @throws 			TFTPException if an option is badly formatted
+	 */
+	private TransferOptions parseOptions(int start) throws TFTPException {
+		TransferOptions options = new TransferOptions();
+		
+		int i = start;
+		while (i < view.end()) {
+			int nameLength = view.stringLength(i);
+			int valueLength = nameLength <= 0 ? -1 : view.stringLength(i + nameLength + 1);
+			
+			// name and value must be null-terminated inside the packet
+			if (valueLength < 0)
+				throw new TFTPException("malformed option", PacketUtil.ERR_ILLEGAL_OP);
+			
+			options.put(view.string(i, nameLength), view.string(i + nameLength + 1, valueLength));
+			i += nameLength + valueLength + 2;
+		}
+		
+		return options;
+	}
+	
+	/**
+	 * Returns the options contained in the last RRQ or WRQ parsed by this object.
+	 */
+	public TransferOptions getRequestOptions() {
+		return requestOptions;
+	}
+	
+	/**
+	 * Sets the block size of the transfer, which bounds the length of DATA packets.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+	
+	/**
+	 * Sets the window size of the transfer, which bounds how far ahead a DATA packet may be.
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+	
+	/**
+	 * Sets the block number that follows 65535 in this transfer (0 or 1).
+	 */
+	public void setRollover(int rolloverBlock) {
+		this.rolloverBlock = rolloverBlock;
+	}
+	
+	/**
+	 * Returns the block index of a DATA or ACK packet, resolving block number 
+	 * rollover relative to a block index we know to be close by.
+	 *
+	 * @param  packet	the DATA or ACK packet
+	 * @param  near		a nearby block index, e.g. the block that is expected next
+	 * @return 			the 64-bit block index the packet refers to
+	 */
+	public long getBlockIndex(DatagramPacket packet, long near) {
+		return BlockNumber.toIndex(view.wrap(packet).blockNumber(), near, rolloverBlock);
 	}
 	
 	/**
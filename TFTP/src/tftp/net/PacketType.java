@@ -6,5 +6,6 @@ public enum PacketType {
 	WRQ, 
 	DATA, 
 	ACK, 
-	ERROR
+	ERROR,
+	OACK
 }
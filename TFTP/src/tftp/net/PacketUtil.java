@@ -8,12 +8,19 @@
 
 package tftp.net;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+
+import tftp.log.Log;
+import tftp.log.LogLevel;
 
 public class PacketUtil {
 	
@@ -27,6 +34,7 @@ public class PacketUtil {
 	public final static byte ACK_FLAG = 0x04;
 	public final static byte DATA_FLAG = 0x03;
 	public final static byte ERROR_FLAG = 0x05;
+	public final static byte OACK_FLAG = 0x06;
 	
 	public final static byte ERR_UNDEFINED = 0x00;
 	public final static byte ERR_FILE_NOT_FOUND = 0x01;
@@ -36,8 +44,13 @@ public class PacketUtil {
 	public final static byte ERR_UNKNOWN_TID = 0x05;
 	public final static byte ERR_FILE_EXISTS = 0x06;
 	public final static byte ERR_USER_NOT_FOUND = 0x07;
+	public final static byte ERR_OPTION_NEGOTIATION = 0x08;
 	
 	public final static int BUF_SIZE = 1024;
+	// opcode and block number in front of the data of a DATA packet
+	public final static int DATA_HEADER_SIZE = 4;
+	// largest packet that can be received: a DATA packet with the largest negotiable block size
+	public final static int MAX_PACKET_SIZE = TransferOptions.MAX_BLOCK_SIZE + 4;
 	
 	public PacketUtil(InetAddress receiverIP, int receiverPort) {
 		this.receiverIP = receiverIP;
@@ -53,8 +66,13 @@ public class PacketUtil {
 	}
 	
 	public DatagramPacket formReqPacket(String filename, String mode, byte flag) {
+		return formReqPacket(filename, mode, flag, new TransferOptions());
+	}
+	
+	public DatagramPacket formReqPacket(String filename, String mode, byte flag, TransferOptions options) {
 
-		int msgLength = filename.length() + mode.length() + 4; 
+		byte[] optionBytes = getOptionBytes(options);
+		int msgLength = filename.length() + mode.length() + 4 + optionBytes.length; 
 		byte msg[] = new byte[msgLength];
 
 		// opcode
@@ -70,64 +88,105 @@ public class PacketUtil {
 		byte[] mbytes = mode.getBytes(); 
 		System.arraycopy(mbytes, 0, msg, 3+fbytes.length, mbytes.length);
 		msg[fbytes.length + mbytes.length + 3] = 0x00;
+		
+		// options
+		System.arraycopy(optionBytes, 0, msg, fbytes.length + mbytes.length + 4, optionBytes.length);
 
 		DatagramPacket packet = new DatagramPacket(msg, msgLength, receiverIP, receiverPort);
 		return packet;
 	}
+	
+	public DatagramPacket formOackPacket(TransferOptions options) {
+		
+		byte[] optionBytes = getOptionBytes(options);
+		int msgLength = optionBytes.length + 2;
+		byte msg[] = new byte[msgLength];
+		
+		// opcode
+		msg[0] = 0;
+		msg[1] = OACK_FLAG;
+		
+		// options
+		System.arraycopy(optionBytes, 0, msg, 2, optionBytes.length);
+		
+		DatagramPacket packet = new DatagramPacket(msg, msgLength, receiverIP, receiverPort);
+		return packet;
+	}
+	
+	/**
+	 * Encodes options as a sequence of null-terminated name and value strings.
+	 */
+	private static byte[] getOptionBytes(TransferOptions options) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Map.Entry<String, String> option : options.asMap().entrySet()) {
+			byte[] name = option.getKey().getBytes();
+			byte[] value = option.getValue().getBytes();
+			out.write(name, 0, name.length);
+			out.write(0);
+			out.write(value, 0, value.length);
+			out.write(0);
+		}
+		return out.toByteArray();
+	}
 
 	public DatagramPacket formDataPacket(byte[] data, int dataLength, int blockNum) {
 
-		int msgLength = dataLength + 4; 
+		int msgLength = dataLength + DATA_HEADER_SIZE; 
 		byte msg[] = new byte[msgLength];
 
-		// opcode
-		msg[0] = 0;
-		msg[1] = DATA_FLAG;
-
-		// block number
-		byte[] blockBytes = getBlockNumberBytes(blockNum);
-		System.arraycopy(blockBytes, 0, msg, 2, 2);
+		// opcode and block number
+		PacketCodec.writeHeader(msg, DATA_FLAG, blockNum);
 
 		// data
 		if (dataLength > 0)
-			System.arraycopy(data, 0, msg, 4, dataLength);		
+			System.arraycopy(data, 0, msg, DATA_HEADER_SIZE, dataLength);		
 
 		DatagramPacket packet = new DatagramPacket(msg, msgLength, receiverIP, receiverPort);
 		return packet;
 	}
 
+	/**
+	 * Turns a packet into a DATA packet in place. The data must already be in the packet's
+	 * buffer, starting at DATA_HEADER_SIZE, so a sender can read each block straight into a
+	 * packet it reuses instead of allocating and copying a new one for every block.
+	 *
+	 *  @param packet		a packet whose buffer holds the data after room for the header
+	 *  @param dataLength	the number of data bytes
+	 *  @param blockNum		the wire block number
+	 *  @return				the same packet, addressed to the receiver
+	 */
+	public DatagramPacket formDataPacket(DatagramPacket packet, int dataLength, int blockNum) {
+		byte[] msg = packet.getData();
+
+		// opcode and block number, written directly to avoid allocating
+		PacketCodec.writeHeader(msg, DATA_FLAG, blockNum);
+
+		packet.setData(msg, 0, dataLength + DATA_HEADER_SIZE);
+		packet.setAddress(receiverIP);
+		packet.setPort(receiverPort);
+		return packet;
+	}
+
 	public DatagramPacket formAckPacket(int blockNum) {
 
 		int msgLength = 4; 
 		byte msg[] = new byte[msgLength];
 
-		// opcode
-		msg[0] = 0;
-		msg[1] = ACK_FLAG;
-
-		// block number
-		byte[] blockBytes = getBlockNumberBytes(blockNum);
-		System.arraycopy(blockBytes, 0, msg, 2, 2);
+		// opcode and block number
+		PacketCodec.writeHeader(msg, ACK_FLAG, blockNum);
 
 		DatagramPacket packet = new DatagramPacket(msg, msgLength, receiverIP, receiverPort);
 		return packet;
 	}
 	
 	public DatagramPacket formErrorPacket(int errCode, String errMsg) {
-		// TODO: make consistent with the rest of this class
-		DatagramPacket errorPacket = OPcodeError.OPerror(errMsg, (byte)errCode);
-		errorPacket.setAddress(receiverIP);
-		errorPacket.setPort(receiverPort);
-		return errorPacket;
+		return formErrorPacket(errCode, errMsg, receiverIP, receiverPort);
 	}
 	
 	public DatagramPacket formErrorPacket(int errCode, String errMsg, InetAddress recvIP, 
 			int recvPort) {
-		// TODO: make consistent with the rest of this class
-		DatagramPacket errorPacket = OPcodeError.OPerror(errMsg, (byte)errCode);
-		errorPacket.setAddress(recvIP);
-		errorPacket.setPort(recvPort);
-		return errorPacket;
+		// a codec sized for just this packet, so the packet can be kept
+		return new PacketCodec(recvIP, recvPort, errMsg.length() + 5).encodeError(errCode, errMsg);
 	}
 	
 	/**
@@ -142,28 +201,57 @@ public class PacketUtil {
 	public static void sendPacketToProcess(String senderLabel, DatagramSocket sendSocket, DatagramPacket sendPacket, 
 			ProcessType recvProcess, String sendPacketStr) {		
 				
-		System.out.printf("%ssending %s packet to %s (IP: %s, port %d) ... \n", 
-				senderLabel, sendPacketStr, recvProcess, sendPacket.getAddress(), sendPacket.getPort());		
+		if (Log.isEnabled(LogLevel.PACKET))
+			Log.packet("%ssending %s packet to %s (IP: %s, port %d) ... ", 
+					senderLabel, sendPacketStr, recvProcess, sendPacket.getAddress(), sendPacket.getPort());		
 		
 		try {
 			sendSocket.send(sendPacket);
 		} catch (IOException e) {
-			System.out.printf("IOException caught sending %s packet: %s", recvProcess, e.getMessage());
-			System.out.println("cannot proceed, terminating simulation");
+			Log.summary("%sIOException caught sending %s packet: %s", senderLabel, recvProcess, e.getMessage());
 			return;
 		}	
 		
-		PacketType sendType = getPacketType(sendPacket);		
-		String packetLabel = sendType.name();
-		// if DATA or ACK packet, display block number
-		// if ERROR, display error code
-		if (sendType == PacketType.DATA || sendType == PacketType.ACK)
-			packetLabel += " " + getBlockNumber(sendPacket);
-		else if (sendType == PacketType.ERROR)
-			packetLabel += " " + getErrorCode(sendPacket);
+		printPacket(senderLabel, "sent", sendPacket);
+	}
+	
+	/**
+	 * Sends a packet over a (possibly non-blocking) DatagramChannel and displays information.
+	 * Used by the event-driven server engine, whose channels cannot be driven through 
+	 * the blocking DatagramSocket API.
+	 * 
+	 * 	@param senderLabel		a string describing the sender (useful for identifying server sessions) 
+	 *  @param sendChannel		the DatagramChannel to use for sending
+	 *  @param sendPacket		the DatagramPacket to send (its address and port are used as the destination)
+	 *  @param recvProcess		the process (client or server) who should be listening for the packet
+	 *  @param sendPacketStr	a string describing the packet being sent, which is displayed
+	 */
+	public static void sendPacketToProcess(String senderLabel, DatagramChannel sendChannel, DatagramPacket sendPacket, 
+			ProcessType recvProcess, String sendPacketStr) {
+		
+		if (Log.isEnabled(LogLevel.PACKET))
+			Log.packet("%ssending %s packet to %s (IP: %s, port %d) ... ", 
+					senderLabel, sendPacketStr, recvProcess, sendPacket.getAddress(), sendPacket.getPort());
 		
-		System.out.printf("%s  sent %s packet ", senderLabel, packetLabel);
-		printOpcodeAndLength(sendPacket);
+		try {
+			sendChannel.send(ByteBuffer.wrap(sendPacket.getData(), sendPacket.getOffset(), sendPacket.getLength()), 
+					sendPacket.getSocketAddress());
+		} catch (IOException e) {
+			Log.summary("%sIOException caught sending %s packet: %s", senderLabel, recvProcess, e.getMessage());
+			return;
+		}
+		
+		printPacket(senderLabel, "sent", sendPacket);
+	}
+	
+	/**
+	 * Displays information about a packet that has already been received by the caller.
+	 * 
+	 *  @param receiverLabel	a string describing the receiver (useful for identifying server sessions)
+	 *  @param receivePacket	the packet that was received
+	 */
+	public static void printReceivedPacket(String receiverLabel, DatagramPacket receivePacket) {
+		printPacket(receiverLabel, "received", receivePacket);
 	}
 	
 	/**
@@ -178,35 +266,57 @@ public class PacketUtil {
 	 */
 	public static DatagramPacket receivePacketOrTimeout(String receiverLabel, DatagramSocket recvSocket, 
 			ProcessType sendProcess, String expectedPacketStr) throws SocketTimeoutException {
+		return receivePacketOrTimeout(receiverLabel, recvSocket, sendProcess, expectedPacketStr, PacketUtil.BUF_SIZE);
+	}
+	
+	/**
+	 * Listens for a packet from the given process using a receive buffer of the given size.
+	 * Used when a negotiated block size means DATA packets may be larger than BUF_SIZE.
+	 *
+	 *  @param receiverLabel		a string describing the receiver (useful for identifying server threads) 
+	 *  @param recvSocket			the DatagramSocket to listen on
+	 *  @param sendProcess			the process (client or server) expected to send a packet
+	 *  @param expectedPacketStr	a string describing the expected type of packet to receive, which is displayed
+	 *  @param bufSize				the size of the receive buffer
+	 *  @throws SocketTimeoutException 	if a timeout was set and has expired
+	 */
+	public static DatagramPacket receivePacketOrTimeout(String receiverLabel, DatagramSocket recvSocket, 
+			ProcessType sendProcess, String expectedPacketStr, int bufSize) throws SocketTimeoutException {
 
-		byte data[] = new byte[PacketUtil.BUF_SIZE];		
-		DatagramPacket receivePacket = new DatagramPacket(data, data.length);
+		byte data[] = new byte[bufSize];		
+		return receivePacketOrTimeout(receiverLabel, recvSocket, sendProcess, expectedPacketStr, 
+				new DatagramPacket(data, data.length));
+	}
+	
+	/**
+	 * Listens for a packet from the given process, receiving into a packet the caller reuses
+	 * (e.g. PacketCodec.receivePacket()) so nothing is allocated per packet.
+	 *
+	 *  @param receiverLabel		a string describing the receiver (useful for identifying server threads) 
+	 *  @param recvSocket			the DatagramSocket to listen on
+	 *  @param sendProcess			the process (client or server) expected to send a packet
+	 *  @param expectedPacketStr	a string describing the expected type of packet to receive, which is displayed
+	 *  @param receivePacket		the packet to receive into, whose whole buffer is available
+	 *  @throws SocketTimeoutException 	if a timeout was set and has expired
+	 */
+	public static DatagramPacket receivePacketOrTimeout(String receiverLabel, DatagramSocket recvSocket, 
+			ProcessType sendProcess, String expectedPacketStr, DatagramPacket receivePacket) throws SocketTimeoutException {
 		
 		// listen for a packet from given source process
-		System.out.printf("%slistening on port %s for %s packet from %s ... \n", receiverLabel, recvSocket.getLocalPort(), 
-				expectedPacketStr, sendProcess);
+		if (Log.isEnabled(LogLevel.PACKET))
+			Log.packet("%slistening on port %s for %s packet from %s ... ", receiverLabel, recvSocket.getLocalPort(), 
+					expectedPacketStr, sendProcess);
 		try {
 			recvSocket.receive(receivePacket);
 		} catch (SocketTimeoutException e) {
 			// throw so the caller can detect timeout
 			throw e; 
 		} catch (IOException e) {
-			System.out.printf("IOException caught receiving %s packet: %s", sendProcess, e.getMessage());			
+			Log.summary("%sIOException caught receiving %s packet: %s", receiverLabel, sendProcess, e.getMessage());			
 			return null;
 		}
 		
-		PacketType receivedPacketType = getPacketType(receivePacket);		
-		String packetLabel = receivedPacketType.name();
-		
-		// if DATA or ACK packet, display block number
-		// if ERROR, display error code
-		if (receivedPacketType == PacketType.DATA || receivedPacketType == PacketType.ACK)
-			packetLabel += " " + getBlockNumber(receivePacket);
-		else if (receivedPacketType == PacketType.ERROR)
-			packetLabel += " " + getErrorCode(receivePacket);
-		
-		System.out.printf("%s  received %s packet ", receiverLabel, packetLabel);
-		printOpcodeAndLength(receivePacket);
+		printPacket(receiverLabel, "received", receivePacket);
 		
 		return receivePacket;
 	}
@@ -228,34 +338,52 @@ public class PacketUtil {
 		DatagramPacket receivePacket = new DatagramPacket(data, data.length);
 		
 		// listen for a packet from given source process
-		System.out.printf("%slistening on port %s for %s packet from %s ... \n", receiverLabel, recvSocket.getLocalPort(), 
-				expectedPacketStr, sendProcess);
+		if (Log.isEnabled(LogLevel.PACKET))
+			Log.packet("%slistening on port %s for %s packet from %s ... ", receiverLabel, recvSocket.getLocalPort(), 
+					expectedPacketStr, sendProcess);
 		try {
 			recvSocket.receive(receivePacket);
 		} catch (IOException e) {
-			System.out.printf("IOException caught receiving %s packet: %s", sendProcess, e.getMessage());
-			System.out.println("cannot proceed, terminating simulation");
+			Log.summary("IOException caught receiving %s packet: %s", sendProcess, e.getMessage());
+			Log.summary("cannot proceed, terminating simulation");
+			Log.flush();
 			System.exit(1);
 		}	
 		
-		PacketType receivedPacketType = getPacketType(receivePacket);		
-		String packetLabel = receivedPacketType.name();
-		
-		// if DATA or ACK packet, display block number
-		// if ERROR, display error code
-		if (receivedPacketType == PacketType.DATA || receivedPacketType == PacketType.ACK)
-			packetLabel += " " + getBlockNumber(receivePacket);
-		else if (receivedPacketType == PacketType.ERROR)
-			packetLabel += " " + getErrorCode(receivePacket);
-
-		System.out.printf("%s  received %s packet ", receiverLabel, packetLabel);
-		printOpcodeAndLength(receivePacket);
+		printPacket(receiverLabel, "received", receivePacket);
 		
 		return receivePacket;
 	}
 	
 
 
+	/**
+	 * Displays a packet that was sent or received: its type, followed by the block number 
+	 * for DATA and ACK packets or the error code for ERROR packets, then its opcode and length.
+	 * Nothing is done unless packet-level logging is on.
+	 * 
+	 *  @param label	a string describing the sender or receiver
+	 *  @param action	"sent" or "received"
+	 *  @param packet	the packet to describe
+	 */
+	private static void printPacket(String label, String action, DatagramPacket packet) {
+		if (!Log.isEnabled(LogLevel.PACKET))
+			return;
+		
+		PacketType type = getPacketType(packet);
+		byte[] data = packet.getData();
+		
+		if (type == PacketType.DATA || type == PacketType.ACK)
+			Log.packet("%s  %s %s %d packet [opcode: %02x, length: %db]", label, action, type, 
+					getBlockNumber(packet), data[1], packet.getLength());
+		else if (type == PacketType.ERROR)
+			Log.packet("%s  %s %s %d packet [opcode: %02x, length: %db]", label, action, type, 
+					getErrorCode(packet), data[1], packet.getLength());
+		else
+			Log.packet("%s  %s %s packet [opcode: %02x, length: %db]", label, action, 
+					type == null ? "UNKNOWN" : type, data[1], packet.getLength());
+	}
+	
 	/**
 	 * Returns the block number of an ACK or DATA packet. 
 	 * 
@@ -291,7 +419,7 @@ public class PacketUtil {
 	 */
 	public static void printOpcodeAndLength(DatagramPacket packet) {
 		byte[] data = packet.getData();		
-		System.out.printf("[opcode: %02x, length: %db]\n", data[1], packet.getLength());
+		Log.packet("[opcode: %02x, length: %db]", data[1], packet.getLength());
 	}	
 	
 	/**
@@ -328,6 +456,9 @@ public class PacketUtil {
 		case PacketUtil.ERROR_FLAG:
 			return PacketType.ERROR;
 			
+		case PacketUtil.OACK_FLAG:
+			return PacketType.OACK;
+			
 		default:
 			// we should only be parsing server or client packets so 
 			// only genuine network errors will cause this
@@ -0,0 +1,207 @@
+/*
+ * PacketView.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A read-only view of the TFTP packet held in a DatagramPacket. Fields are read
+ * straight from the packet's buffer, and never from beyond the length of the
+ * datagram, whatever the rest of the buffer contains. Strings (file name, mode,
+ * error message) are located as offset/length pairs and only turned into String
+ * objects when asked for, e.g. once a request has passed every check.
+ *
+ * One view can be pointed at packet after packet with wrap(), so parsing doesn't
+ * allocate. A view belongs to one thread, so it is not thread safe.
+ */
+public class PacketView {
+
+	// TFTP strings are netascii, one byte per character
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private byte[] data = null;
+	private ByteBuffer buffer = null;	// wraps data, re-created only when the packet's array changes
+	private int start;					// where the packet starts in data
+	private int length;					// the datagram length
+
+	// fields of a request, found by scanRequest()
+	private int filenameOffset;
+	private int filenameLength;
+	private int modeOffset;
+	private int modeLength;
+	private int optionsOffset;
+
+	/**
+	 * Points this view at a packet. The view reads the packet's buffer directly,
+	 * so it is only valid until the packet is reused.
+	 *
+	 *  @return		this view
+	 */
+	public PacketView wrap(DatagramPacket packet) {
+		if (packet.getData() != data) {
+			data = packet.getData();
+			buffer = ByteBuffer.wrap(data);
+		}
+		start = packet.getOffset();
+		length = packet.getLength();
+		return this;
+	}
+
+	/**
+	 * Returns the length of the datagram.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns the opcode, or -1 if the packet is too short to have one.
+	 */
+	public int opcode() {
+		if (length < 2)
+			return -1;
+		return buffer.getShort(start) & 0xFFFF;
+	}
+
+	/**
+	 * Returns true if the packet has the given opcode.
+	 */
+	public boolean is(byte flag) {
+		return opcode() == flag;
+	}
+
+	/**
+	 * Returns the 16-bit block number of a DATA or ACK packet, or the error code of an
+	 * ERROR packet, or -1 if the packet is too short.
+	 */
+	public int blockNumber() {
+		if (length < PacketUtil.DATA_HEADER_SIZE)
+			return -1;
+		return buffer.getShort(start + 2) & 0xFFFF;
+	}
+
+	public int errorCode() {
+		return blockNumber();
+	}
+
+	/**
+	 * Returns where the payload of a DATA packet starts in the packet's buffer.
+	 */
+	public int dataOffset() {
+		return start + PacketUtil.DATA_HEADER_SIZE;
+	}
+
+	/**
+	 * Returns the number of payload bytes in a DATA packet.
+	 */
+	public int dataLength() {
+		return Math.max(0, length - PacketUtil.DATA_HEADER_SIZE);
+	}
+
+	/**
+	 * Locates the file name, mode and options of a RRQ or WRQ.
+	 *
+	 *  @return		false if the file name or mode isn't null-terminated inside the packet
+	 */
+	public boolean scanRequest() {
+		filenameOffset = start + 2;
+		filenameLength = stringLength(filenameOffset);
+		if (filenameLength < 0)
+			return false;
+		modeOffset = filenameOffset + filenameLength + 1;
+		modeLength = stringLength(modeOffset);
+		if (modeLength < 0)
+			return false;
+		optionsOffset = modeOffset + modeLength + 1;
+		return true;
+	}
+
+	public int filenameOffset() {
+		return filenameOffset;
+	}
+
+	public int filenameLength() {
+		return filenameLength;
+	}
+
+	/**
+	 * Returns where the options of a request start in the packet's buffer;
+	 * there are none if this is the end of the packet.
+	 */
+	public int optionsOffset() {
+		return optionsOffset;
+	}
+
+	/**
+	 * Returns true if every character of the file name is printable.
+	 */
+	public boolean isFilenamePrintable() {
+		return isPrintable(filenameOffset, filenameLength);
+	}
+
+	/**
+	 * Compares the mode of a request with a mode name, ignoring case.
+	 */
+	public boolean modeIs(String mode) {
+		if (modeLength != mode.length())
+			return false;
+		for (int i = 0; i < modeLength; i++) {
+			if (Character.toLowerCase((char) data[modeOffset + i]) != Character.toLowerCase(mode.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the file name of a request, as a new String.
+	 */
+	public String filename() {
+		return string(filenameOffset, filenameLength);
+	}
+
+	/**
+	 * Returns the length of the null-terminated string starting at offset (an index
+	 * into the packet's buffer), or -1 if it isn't terminated inside the packet.
+	 */
+	public int stringLength(int offset) {
+		int end = start + length;
+		for (int i = offset; i < end; i++) {
+			if (data[i] == 0)
+				return i - offset;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if every byte in the range is a printable character.
+	 */
+	public boolean isPrintable(int offset, int count) {
+		for (int i = offset; i < offset + count; i++) {
+			if (data[i] < 0x20 || data[i] > 0x7F)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns part of the packet as a new String.
+	 */
+	public String string(int offset, int count) {
+		return new String(data, offset, count, ASCII);
+	}
+
+	/**
+	 * Returns the index just past the end of the packet in its buffer.
+	 */
+	public int end() {
+		return start + length;
+	}
+}
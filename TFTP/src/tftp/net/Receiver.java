@@ -16,10 +16,10 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
-import java.util.Arrays;
 
 import tftp.exception.ErrorReceivedException;
 import tftp.exception.TFTPException;
+import tftp.log.Log;
 import tftp.server.thread.WorkerThread;
 
 
@@ -31,12 +31,23 @@ public class Receiver
 	private InetAddress senderIP;
 	private PacketUtil packetUtil;
 	private PacketParser packetParser;
-	private FileOutputStream fileWriter = null;
-	private byte[] data;
+	private PacketCodec ackCodec;		// encodes every ACK in the same buffer
+	private WriteBehind fileWriter = null;
+	private StagedFile staged = null;		// published once the whole file has been written, if set
+	private DallyResponder dallyResponder = null;
+	private boolean socketHandedOff = false;
 
 	private WorkerThread ownerThread = null;	// whatever server thread is using this object
 	private ProcessType senderProcess; 			// process that is controlling the Sender to this Receiver
 	private String threadLabel = "";			// identify the owner thread when sending ACK
+	private int blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+	private int windowSize = TransferOptions.DEFAULT_WINDOW_SIZE;
+	private int rolloverBlock = TransferOptions.DEFAULT_ROLLOVER;
+	private DiskSpaceLedger.Reservation reservation = null;	// disk space held for the file being received
+	private RetransmitTimer timer = new RetransmitTimer();
+	private long blocksReceived = 0;	// distinct blocks written, for the transfer summary
+	private long bytesReceived = 0;
+	private long finishedAt;			// when the whole file was written
 
 	public Receiver(ProcessType senderProcess, DatagramSocket socket,InetAddress ip, int senderPort){		
 	
@@ -44,6 +55,7 @@ public class Receiver
 		this.socket = socket;	
 		packetUtil = new PacketUtil(senderIP, senderPort);
 		packetParser = new PacketParser(senderIP, senderPort);
+		ackCodec = new PacketCodec(senderIP, senderPort, PacketCodec.HEADER_SIZE);
 		
 		this.senderProcess = senderProcess;		
 
@@ -60,63 +72,108 @@ public class Receiver
 	// return false if transfer didn't finish normally
 	// initPacket is first DATA packet
 	public void receiveFile(DatagramPacket initPacket, File aFile) throws TFTPException {
+		String name = staged == null ? aFile.getName() : staged.getTarget().getName();
+		
+		// disk space is accounted for in the ledger rather than asking the file system for every packet
+		if (reservation == null)
+			reservation = DiskSpaceLedger.getInstance().reserve(aFile, 0);
+		
+		long start = System.currentTimeMillis();
+		try {
+			receiveBlocks(initPacket, aFile);
+		} finally {
+			reservation.release();
+			closeFileWriter(); // already closed unless the transfer failed
+		}
+		printToConsole(String.format("received %s: %d bytes in %d blocks, %d ms, %d retransmissions", name, 
+				bytesReceived, blocksReceived, finishedAt - start, timer.getRetransmissions()));
+	}
+	
+	/**
+	 * Receives a file into its temporary file, which is published once the whole file
+	 * has been written and before the final ACK is sent, so the sender is only told the
+	 * transfer succeeded once the new file is in place. If the transfer fails the
+	 * temporary file is discarded and the file it would have replaced is left as it was.
+	 */
+	public void receiveFile(DatagramPacket initPacket, StagedFile file) throws TFTPException {
+		staged = file;
+		try {
+			receiveFile(initPacket, file.getTempFile());
+		} finally {
+			file.discard();
+		}
+	}
+	
+	private void receiveBlocks(DatagramPacket initPacket, File aFile) throws TFTPException {
 
-		int blockNum = 1;
+		long blockNum = 1;				// last block received in order (64-bit, the wire number rolls over)
+		int unacked = 1;				// blocks received since the last ACK was sent
+		boolean reAcked = false;		// whether we already re-sent an ACK since the last new block
 		boolean duplicatePacket = false;
 		
 		createFile(aFile);
-		checkDiskFull(aFile, initPacket);
-		writeToFile(data, initPacket);
+		checkDiskFull(initPacket);
+		writeToFile(initPacket);
 		
-		// recv packet, initialize buffer so clearing it doesn't fail
-		data = new byte[PacketUtil.BUF_SIZE];
 		DatagramPacket receivePacket = null;
+		// DATA is received into the same buffer every time, the payload is copied out by the file writer
+		PacketCodec dataCodec = new PacketCodec(blockSize + 4);
 
-		// send ACK for initial data packet
-		DatagramPacket sendPacket = packetUtil.formAckPacket(blockNum);
-		PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, senderProcess, "ACK");
-		
 		// check if we are done
-		boolean done = initPacket.getLength() < 516;		
+		boolean done = initPacket.getLength() < blockSize + 4;		
+		if (done)
+			finishFile();
+
+		// send ACK for initial data packet, unless the sender is still filling the window
+		DatagramPacket sendPacket = ackCodec.encodeAck(BlockNumber.toWire(blockNum, rolloverBlock));
+		if (done || unacked == windowSize) {
+			PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, senderProcess, "ACK");
+			timer.packetSent(blockNum);
+			unacked = 0;
+		}
 
 		while (!done) {
 			
-			// expect next DATA to have increased block number
-			blockNum++;
+			try {
+				timer.applyTo(socket);
+				receivePacket = PacketUtil.receivePacketOrTimeout(threadLabel, socket, senderProcess, "DATA", dataCodec.receivePacket());
+				
+			} catch(SocketTimeoutException e){
+				
+				printToConsole("Error: Timed out while waiting for DATA Packet");
+				
+				if (!timer.backOff()){
+					throw new TFTPException(String.format("No response received after %d retries, aborting request", 
+    						timer.getRetries()), PacketUtil.ERR_UNDEFINED);
+				}					
 
-			boolean packetReceived = false;
-			int retransmission = 0;
-
-			while (!packetReceived && retransmission <= PacketUtil.DEFAULT_RETRY_TRANSMISSION){
+        		printToConsole("possible ACK packet loss, resending...");
 				
-				// zero the receive buffer so no lingering data is detected
-				Arrays.fill(data, (byte)0);
-				
-				try {
-					receivePacket = PacketUtil.receivePacketOrTimeout(threadLabel, socket, senderProcess, "DATA");
-					packetReceived = true;
-					
-				} catch(SocketTimeoutException e){
-					
-					printToConsole("Error: Timed out while waiting for DATA Packet");
-					
-					if (retransmission == PacketUtil.DEFAULT_RETRY_TRANSMISSION){
-						closeFileWriter(fileWriter);
-						throw new TFTPException(String.format("No response received after %d retries, aborting request", 
-        						retransmission), PacketUtil.ERR_UNDEFINED);
-					}					
-
-	        		printToConsole("possible ACK packet loss, resending...");
-					
+        		// acknowledge what we have so far, so the sender resends from the next block
+        		sendPacket = ackCodec.encodeAck(BlockNumber.toWire(blockNum, rolloverBlock));
+				PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, senderProcess, "ACK");
+				unacked = 0;
+				continue;
+			}
+			
+			// a later block of the window arrived before the one we need, so an earlier 
+			// block was lost: ACK the last block received in order (once) so the sender 
+			// restarts the window from there
+			if (packetParser.isOutOfOrderDataPacket(receivePacket, blockNum + 1)) {
+				if (!reAcked) {
+					printToConsole(String.format("DATA received out of order, expected block %d", blockNum + 1));
+					sendPacket = ackCodec.encodeAck(BlockNumber.toWire(blockNum, rolloverBlock));
 					PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, senderProcess, "ACK");
-					retransmission++;
+					timer.packetRetransmitted();
+					reAcked = true;
+					unacked = 0;
 				}
-			
+				continue;
 			}
 
 			// parse the response packet to ensure it is correct before continuing
 			try {
-				duplicatePacket = packetParser.parseDataPacket(receivePacket, blockNum);
+				duplicatePacket = packetParser.parseDataPacket(receivePacket, blockNum + 1);
 
 			} catch (ErrorReceivedException e) {
 				// the other side sent an error packet, don't send a response
@@ -137,7 +194,6 @@ public class Receiver
 				// keep going if error was unknown TID
 				if (e.getErrorCode() == PacketUtil.ERR_UNKNOWN_TID) {
 	        		printToConsole("received packet with unknown TID");	        		
-	        		blockNum--;
 					continue;
 	        	} else {
 	        		// rethrow so the owner of this Sender knows whats up
@@ -147,50 +203,148 @@ public class Receiver
 
 			// If duplicate data packet we will not write to file
 			if (duplicatePacket){
-				blockNum--;
-			} else {
-				
-				checkDiskFull(aFile, receivePacket); // First check if disk is full
-				writeToFile(data, receivePacket); 	 // If not write the data portion to the file
 				
-				if (receivePacket.getLength() < 516) {
-					done = true;
+				// our ACK was probably lost, resend it; when a whole window is being 
+				// retransmitted only answer the first duplicate so the sender isn't flooded
+				if (windowSize == 1 || !reAcked) {
+					sendPacket = ackCodec.encodeAck(BlockNumber.toWire(blockNum, rolloverBlock));
+					PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, senderProcess, "ACK");
+					timer.packetRetransmitted();
+					reAcked = true;
+					unacked = 0;
 				}
-
+				continue;
+			}
+				
+			timer.responseReceived(blockNum);
+			blockNum++;
+			unacked++;
+			reAcked = false;
+			
+			checkDiskFull(receivePacket); 		 // First check if disk is full
+			writeToFile(receivePacket); 	 	 // If not write the data portion to the file
+			
+			if (receivePacket.getLength() < blockSize + 4) {
+				done = true;
+				finishFile();
 			}
 			
-			// blockNum is verified, sending old block num if duplication of packet occured
-			sendPacket = packetUtil.formAckPacket(blockNum);
-			PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, senderProcess, "ACK");
+			// ACK once the window is complete, or on the final block
+			if (done || unacked == windowSize) {
+				sendPacket = ackCodec.encodeAck(BlockNumber.toWire(blockNum, rolloverBlock));
+				PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, senderProcess, "ACK");
+				timer.packetSent(blockNum);
+				unacked = 0;
+			}
 			
-			if (done) {
-				
-				// listen for retransmitted DATA in case final ACK was lost
-				try {
-					receivePacket = PacketUtil.receivePacketOrTimeout(threadLabel, socket, senderProcess, "DATA");
-					packetReceived = true;
-					
-					// if DATA, resend final ACK
-					if (PacketUtil.getPacketType(receivePacket) == PacketType.DATA) {
-						sendPacket = packetUtil.formAckPacket(blockNum);
-						PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, senderProcess, "ACK");
-					}
-					
-				} catch(SocketTimeoutException e){
-					// finish
-				}			
-			}			
 		}
 		
-		closeFileWriter(fileWriter);
+		// listen for retransmitted DATA in case the final ACK was lost
+		dally(ackCodec.encodeAck(BlockNumber.toWire(blockNum, rolloverBlock)), dataCodec);
 	} 
 
-	private void closeFileWriter(FileOutputStream fileWriter) throws TFTPException {
+	// waits for DATA the sender retransmits because the final ACK was lost, answering it
+	// with the final ACK again, or hands the wait to the dally responder if there is one
+	private void dally(DatagramPacket finalAck, PacketCodec dataCodec) throws TFTPException {
+		if (dallyResponder != null && dallyResponder.canTakeOver(socket)) {
+			dallyResponder.takeOver(socket, finalAck, timer.getDallyTimeout(), threadLabel, senderProcess);
+			socketHandedOff = true;
+			return;
+		}
+		try {
+			PacketUtil.setSocketTimeout(socket, timer.getDallyTimeout());
+			DatagramPacket receivePacket = PacketUtil.receivePacketOrTimeout(threadLabel, socket, senderProcess, "DATA", dataCodec.receivePacket());
+			
+			// if DATA, resend final ACK
+			if (PacketUtil.getPacketType(receivePacket) == PacketType.DATA)
+				PacketUtil.sendPacketToProcess(threadLabel, socket, finalAck, senderProcess, "ACK");
+			
+		} catch(SocketTimeoutException e){
+			// finish
+		}
+	}
+
+	/**
+	 * Sets the negotiated block size. Must be called before receiveFile.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+		packetParser.setBlockSize(blockSize);
+	}
+	
+	/**
+	 * Sets the negotiated window size, i.e. how many DATA packets the sender
+	 * transmits before waiting for an ACK. Must be called before receiveFile.
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+		packetParser.setWindowSize(windowSize);
+	}
+	
+	/**
+	 * Sets disk space already reserved for the file, e.g. from its tsize. If no reservation
+	 * is set, space is reserved as the file grows. Either way it is released when receiveFile returns.
+	 */
+	public void setReservation(DiskSpaceLedger.Reservation reservation) {
+		this.reservation = reservation;
+	}
+	
+	/**
+	 * Sets the timer deciding when to re-send an ACK, so the round trip time measured while
+	 * negotiating the transfer carries over. By default the Receiver starts its own.
+	 */
+	public void setTimer(RetransmitTimer timer) {
+		this.timer = timer;
+	}
+	
+	/**
+	 * Sets the block number that follows 65535 (0 or 1). Must be called before receiveFile.
+	 */
+	public void setRollover(int rolloverBlock) {
+		this.rolloverBlock = rolloverBlock;
+		packetParser.setRollover(rolloverBlock);
+	}
+	
+	/**
+	 * Hands the dally after the final ACK to a DallyResponder, so receiveFile returns as
+	 * soon as the final ACK is sent. The socket then belongs to the responder, see
+	 * isSocketHandedOff. By default the Receiver dallies on the socket itself.
+	 */
+	public void setDallyResponder(DallyResponder dallyResponder) {
+		this.dallyResponder = dallyResponder;
+	}
+	
+	/**
+	 * Returns true if the socket was handed to the DallyResponder when the transfer
+	 * finished, in which case it must no longer be used or closed by the caller.
+	 */
+	public boolean isSocketHandedOff() {
+		return socketHandedOff;
+	}
+
+	// discards the file writer after a failed transfer, the original error is what gets reported
+	private void closeFileWriter() {
+		if (fileWriter == null)
+			return;
+		try {
+			fileWriter.close();
+		} catch (TFTPException e) {
+			printToConsole("Error closing file: " + e.getMessage());
+		}
+	}
+	
+	// writes out everything still buffered before the final ACK is sent, so the sender
+	// is only told the transfer succeeded once the whole file has been written
+	private void finishFile() throws TFTPException {
 		try {
-			fileWriter.flush();
 			fileWriter.close();
-		} catch (IOException e) {
-			throw new TFTPException("Error closing FileOutputStream: "+e.getMessage(), PacketUtil.ERR_UNDEFINED);
+			if (staged != null)
+				staged.publish();
+			finishedAt = System.currentTimeMillis();
+		} catch (TFTPException e) {
+			DatagramPacket error = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage());
+			PacketUtil.sendPacketToProcess(threadLabel, socket, error, senderProcess, "ERROR");
+			throw e;
 		}
 	}
 
@@ -199,7 +353,8 @@ public class Receiver
 		File theFile = aFile;
 
 		try {
-			fileWriter = new FileOutputStream(theFile);
+			// writes go through a write-behind buffer so receiving packets never waits on the disk
+			fileWriter = new WriteBehind(new FileOutputStream(theFile));
 		} catch (FileNotFoundException e) {
 			throw new TFTPException(e.getMessage(), PacketUtil.ERR_UNDEFINED);
 		} 
@@ -214,28 +369,23 @@ public class Receiver
 		}
 	}
 	
-	private void writeToFile(byte[] data, DatagramPacket receivePacket) throws TFTPException{
+	private void writeToFile(DatagramPacket receivePacket) throws TFTPException{
 		
 		int dataLength = receivePacket.getLength() - 4;
 
-		// extract data portion			
-		data = new byte[dataLength];
-		System.arraycopy(receivePacket.getData(), 4, data, 0, dataLength);
-
-		// write the data portion to the file
-		try {
-			fileWriter.write(data);
-		} catch (IOException e) {
-			throw new TFTPException(e.getMessage(), PacketUtil.ERR_UNDEFINED);
-		}
-
+		// queue the data portion to be written, straight from the packet
+		fileWriter.write(receivePacket.getData(), receivePacket.getOffset() + 4, dataLength);
+		blocksReceived++;
+		bytesReceived += dataLength;
 	}
 	
-	private void checkDiskFull(File aFile, DatagramPacket receivePacket) throws TFTPException{
+	private void checkDiskFull(DatagramPacket receivePacket) throws TFTPException{
 		
 		//Check if the disk is already full, If full generate Error code-3
 		//By Syed Taqi - 2015/05/08
-		if (aFile.getUsableSpace() < receivePacket.getLength()){				
+		try {
+			reservation.consume(receivePacket.getLength() - 4);
+		} catch (TFTPException e) {
 			String msg = "Disk full, Can not complete transfer, Disk cleanup required";
 
 			byte errorCode = 3;
@@ -251,8 +401,8 @@ public class Receiver
 
 	private void printToConsole(String message) {
 		if (ownerThread != null) // server thread owns this object
-			System.out.printf("%s: %s\n", ownerThread.getName(), message);
+			Log.summary("%s: %s", ownerThread.getName(), message);
 		else // client owns this object
-			System.out.printf("%s\n", message);
+			Log.summary("%s", message);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,209 @@
+/*
+ * RetransmitTimer.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.net.DatagramSocket;
+
+import tftp.sim.ErrorSimulator;
+
+/**
+ * Decides how long one side of a transfer waits for a response before retransmitting.
+ *
+ * The timeout adapts to the round trip time measured during the transfer, using the
+ * smoothed RTT / RTT variance estimator of RFC 6298. Following Karn's rule, no RTT is
+ * measured from a packet that was retransmitted, since the response can't be matched
+ * to a particular transmission. Each timeout doubles the timeout (exponential backoff)
+ * and uses up one retry; the retries are given back whenever the transfer makes progress.
+ *
+ * A dead peer ties up a handler thread (and its pool slot) until the transfer is given
+ * up, so backing off must not stretch that out: the transfer is abandoned once the retry
+ * budget is used up, as it always was, or once it has gone the give-up time without
+ * progress, whichever comes first. With the initial timeout this is after about 14 s.
+ *
+ * If the timeout option (RFC 2349) was negotiated, the agreed timeout is used as is,
+ * and only the retry budget applies: the client asked to wait that long.
+ *
+ * One timer is used by one side of one transfer, so it is not thread safe.
+ */
+public class RetransmitTimer {
+
+	// timeout used until an RTT has been measured
+	public static final int INITIAL_TIMEOUT_MS = ErrorSimulator.TIMEOUT_MS;
+	// bounds for the adaptive timeout; the lower bound allows for a busy sender on a fast link
+	public static final int MIN_TIMEOUT_MS = 200;
+	public static final int MAX_TIMEOUT_MS = 60000;
+	// consecutive timeouts allowed before giving up on the transfer, as before timeouts adapted
+	public static final int DEFAULT_RETRY_BUDGET = PacketUtil.DEFAULT_RETRY_TRANSMISSION;
+	// time without progress after which the transfer is given up, whatever is left of the budget
+	public static final int DEFAULT_GIVE_UP_MS = 15000;
+
+	// RFC 6298 gains
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+
+	private double srtt = -1;			// smoothed RTT (ms), negative until the first sample
+	private double rttvar;				// RTT variance (ms)
+	private int rto = INITIAL_TIMEOUT_MS;	// timeout before backoff
+	private int timeout = INITIAL_TIMEOUT_MS;	// timeout including backoff
+	private boolean fixed = false;		// true if the timeout was negotiated
+
+	private int retries = 0;
+	private long retransmissions = 0;	// over the whole transfer
+	private int retryBudget = DEFAULT_RETRY_BUDGET;
+	private int giveUpMs = DEFAULT_GIVE_UP_MS;
+	private long lastProgress = System.nanoTime();
+
+	private long sampleSeq = -1;		// packet being timed, or -1 if none
+	private long sampleSentAt;
+
+	private Runnable progressListener = null;
+
+	/**
+	 * Uses a timeout agreed with the timeout option instead of measuring the RTT.
+	 *
+	 *  @param seconds	the negotiated timeout, in seconds
+	 */
+	public void setFixedTimeout(int seconds) {
+		fixed = true;
+		rto = seconds * 1000;
+		timeout = rto;
+	}
+
+	public void setRetryBudget(int retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+
+	public void setGiveUpTime(int ms) {
+		this.giveUpMs = ms;
+	}
+
+	/**
+	 * Sets a task to run whenever the transfer shows it is still alive: it made
+	 * progress, or it is retransmitting. Used to renew the transfer's file lease.
+	 */
+	public void setProgressListener(Runnable listener) {
+		progressListener = listener;
+	}
+
+	/**
+	 * Records the first transmission of a packet. If no packet is being timed,
+	 * the RTT is measured from this one.
+	 *
+	 *  @param seq	identifies the packet, e.g. its block number; must increase during the transfer
+	 */
+	public void packetSent(long seq) {
+		if (sampleSeq < 0) {
+			sampleSeq = seq;
+			sampleSentAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Records that a packet was sent again, which means the packet being timed
+	 * (if any) can no longer give a reliable RTT (Karn's rule).
+	 */
+	public void packetRetransmitted() {
+		retransmissions++;
+		sampleSeq = -1;
+	}
+
+	/**
+	 * Records a response that moves the transfer forward.
+	 *
+	 *  @param seq	the packet that was answered; answers to seq also answer earlier packets
+	 */
+	public void responseReceived(long seq) {
+		if (sampleSeq >= 0 && seq >= sampleSeq) {
+			addSample((System.nanoTime() - sampleSentAt) / 1000000.0);
+			sampleSeq = -1;
+			// the backed off timeout is kept until a packet that wasn't retransmitted is answered
+			timeout = rto;
+		}
+		retries = 0;
+		lastProgress = System.nanoTime();
+		if (progressListener != null)
+			progressListener.run();
+	}
+
+	/**
+	 * Records a timeout, doubling the timeout for the next wait.
+	 *
+	 *  @return		true if the packet should be retransmitted, false if the retry budget
+	 *  			or the give-up time is used up and the transfer should be abandoned
+	 */
+	public boolean backOff() {
+		if (retries >= retryBudget)
+			return false;
+		if (!fixed && (System.nanoTime() - lastProgress) / 1000000 >= giveUpMs)
+			return false;
+		retries++;
+		if (!fixed)
+			timeout = Math.min(timeout * 2, MAX_TIMEOUT_MS);
+		packetRetransmitted();
+		if (progressListener != null)
+			progressListener.run();
+		return true;
+	}
+
+	/**
+	 * Returns the number of retransmissions since the transfer last made progress.
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Returns the number of packets sent again over the whole transfer.
+	 */
+	public long getRetransmissions() {
+		return retransmissions;
+	}
+
+	/**
+	 * Returns how long to wait for the next response, in milliseconds.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Returns how long to wait after the final ACK, in case it was lost and the
+	 * last DATA packet is retransmitted. This is longer than the timeout, since
+	 * the other side's timeout may be longer than ours.
+	 */
+	public int getDallyTimeout() {
+		return Math.min(2 * timeout, MAX_TIMEOUT_MS);
+	}
+
+	/**
+	 * Sets the socket timeout for the next receive.
+	 */
+	public void applyTo(DatagramSocket socket) {
+		PacketUtil.setSocketTimeout(socket, timeout);
+	}
+
+	/**
+	 * Returns the smoothed RTT in milliseconds, or -1 if nothing has been measured yet.
+	 */
+	public double getSmoothedRtt() {
+		return srtt;
+	}
+
+	private void addSample(double rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+			srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+		}
+		if (!fixed)
+			rto = (int) Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, Math.ceil(srtt + 4 * rttvar)));
+	}
+}
@@ -9,24 +9,21 @@
 package tftp.net;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
-import java.util.Arrays;
 
 import tftp.exception.ErrorReceivedException;
 import tftp.exception.TFTPException;
+import tftp.log.Log;
 import tftp.server.thread.WorkerThread;
 
 public class Sender {
 	
 	private final static int DEFAULT_RETRY_TRANSMISSION = 2;
-
-	private FileInputStream fileReader;
+	
+	private BlockSource source = null;
 	private DatagramSocket socket;
 	private int bytesRead;
 	private InetAddress receiverIP;	
@@ -36,7 +33,12 @@ public class Sender {
 	private WorkerThread ownerThread = null;	// whatever server thread is using this object
 	private ProcessType receiverProcess; 		// process that is controlling the Receiver to this Sender 
 	private String threadLabel = "";			// identify the owner thread when sending ACK
-	private Boolean duplicatePacket = false;
+	private int blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+	private int windowSize = TransferOptions.DEFAULT_WINDOW_SIZE;
+	private int rolloverBlock = TransferOptions.DEFAULT_ROLLOVER;
+	private RetransmitTimer timer = new RetransmitTimer();
+	private long blocksSent = 0;		// distinct blocks sent, for the transfer summary
+	private long bytesSent = 0;
 	
 	public Sender(ProcessType receiverProcess, DatagramSocket socket,InetAddress ip, int receiverPort){
 		receiverIP = ip;
@@ -57,104 +59,174 @@ public class Sender {
 	// return false if transfer didn't finish normally
 	public void sendFile(File theFile) throws TFTPException {
 		
+		// read straight from the file unless the owner supplied another source of blocks
+		if (source == null)
+			source = BlockSources.open(theFile, blockSize);
+		
+		long start = System.currentTimeMillis();
 		try {
-			fileReader = new FileInputStream(theFile);
-		} catch (FileNotFoundException e) {
-			throw new TFTPException(e.getMessage(), PacketUtil.ERR_FILE_NOT_FOUND);
-		}		
+			sendBlocks();
+		} finally {
+			source.close();
+		}
+		printToConsole(String.format("sent %s: %d bytes in %d blocks, %d ms, %d retransmissions", theFile.getName(), 
+				bytesSent, blocksSent, System.currentTimeMillis() - start, timer.getRetransmissions()));
+	}
+	
+	private void sendBlocks() throws TFTPException {
 		
-		int blockNum = 1;
-		byte[] sendBuf = new byte[512]; // need to make this exactly our block size so we only read that much
-		DatagramPacket sendPacket = null;
+		// DATA packets sent but not yet acknowledged, indexed by block number % windowSize.
+		// Each packet is reused for every block that falls in its slot, and blocks are read
+		// straight into it after the header, so no memory is allocated or copied per block.
+		DatagramPacket[] window = new DatagramPacket[windowSize];
+		// ACKs are received into the same buffer every time
+		PacketCodec ackCodec = new PacketCodec(PacketUtil.BUF_SIZE);
+		// block indexes are 64-bit so transfers can go on past block 65535, the wire 
+		// block number in each packet rolls over as agreed with the receiver
+		long lastAcked = 0;		// highest block acknowledged by the receiver
+		long lastRead = 0;		// highest block read from the file (and sent at least once)
+		long nextToSend = 1;	// next block to send or resend
+		long finalBlock = -1;	// the short block that ends the transfer, once read
+		boolean backedOff = false;	// the timer already counted the first block resent after a timeout
 		
-		boolean done = false;
-		do		
-		{
-			// zero the send buffer so no lingering data is sent
-			Arrays.fill(sendBuf, (byte)0);
+		while (lastAcked != finalBlock) {
 			
-			// if last ACK packet was a duplicate we don't read from file
-			if (!duplicatePacket){
-				try {
-					bytesRead = fileReader.read(sendBuf);
-				} catch (IOException e) {
-					throw new TFTPException("Error reading data from file: "+e.getMessage(), PacketUtil.ERR_UNDEFINED);
-				}
-				if (bytesRead == -1) {
-					bytesRead = 0;				
-				}
-				if (bytesRead < 512) {
-					done = true;
+			// send until the window is full or the final block is out
+			while (nextToSend <= lastAcked + windowSize && (finalBlock == -1 || nextToSend <= finalBlock)) {
+				if (nextToSend > lastRead) {
+					int slot = (int) (nextToSend % windowSize);
+					if (window[slot] == null) {
+						byte[] msg = new byte[PacketUtil.DATA_HEADER_SIZE + blockSize];
+						window[slot] = new DatagramPacket(msg, msg.length);
+					}
+					bytesRead = source.readBlock(nextToSend, window[slot].getData(), PacketUtil.DATA_HEADER_SIZE);
+					if (bytesRead < blockSize) {
+						finalBlock = nextToSend;
+					}
+					packetUtil.formDataPacket(window[slot], bytesRead, BlockNumber.toWire(nextToSend, rolloverBlock));
+					lastRead = nextToSend;
+					blocksSent++;
+					bytesSent += bytesRead;
+					timer.packetSent(nextToSend);
+				} else if (backedOff) {
+					backedOff = false;
+				} else {
+					timer.packetRetransmitted();
 				}
 				// send DATA
-				sendPacket = packetUtil.formDataPacket(sendBuf, bytesRead, blockNum);
-				PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, receiverProcess, "DATA");
+				PacketUtil.sendPacketToProcess(threadLabel, socket, window[(int) (nextToSend % windowSize)], receiverProcess, "DATA");
+				nextToSend++;
 			}
 			
+			// expect ACK
 			DatagramPacket reply = null;
-	        
-			boolean packetReceived = false;
-	        int retransmission = 0;
-	        
-	        // expect ACK	        
-	        while (!packetReceived && retransmission <= PacketUtil.DEFAULT_RETRY_TRANSMISSION){
-	        	try {
-	        		reply = PacketUtil.receivePacketOrTimeout(threadLabel, socket, receiverProcess, "ACK");
-	        		packetReceived = true;
-	        		
-	        	} catch (SocketTimeoutException ex){
-	        		//no response for last Data packet, Data packet maybe lost, resending...
-	        		printToConsole("Error: Timed out while waiting for ACK Packet");	        		
-	    			
-    				if (retransmission == PacketUtil.DEFAULT_RETRY_TRANSMISSION){
-    					
-    					throw new TFTPException(String.format("No response received after %d retries, aborting request", 
-        						retransmission), PacketUtil.ERR_UNDEFINED);   
-    				}    				
-    				
-    				printToConsole("possible DATA packet loss, resending...");
-    				PacketUtil.sendPacketToProcess(threadLabel, socket, sendPacket, receiverProcess, "DATA");
-					retransmission++;
-	        	}
-	        }
-	        
-	        // parse ACK to ensure it is correct before continuing
-	        try {
-	        	duplicatePacket = parser.parseAckPacket(reply, blockNum);
-	        } catch (ErrorReceivedException e) {
-	        	// the other side sent an error packet, don't send a response				
-	        	// rethrow so the owner of this Sender knows whats up
-	        	throw e;
-
-	        } catch (TFTPException e) {
-
-	        	// send error packet
-	        	DatagramPacket errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage(),
-	        			reply.getAddress(), reply.getPort());				
-	        	PacketUtil.sendPacketToProcess(threadLabel, socket, errPacket, receiverProcess, "ERROR");
-
-	        	if (e.getErrorCode() == PacketUtil.ERR_UNKNOWN_TID) {
-	        		printToConsole("received packet with unknown TID");
-	        		// consider unknown TID a duplicate packet so we still wait for the right ACK
-	        		duplicatePacket = true;
-	        	} else {
-	        		// rethrow so the owner of this Sender knows whats up
-	        		throw e;
-	        	}
-	        }
-
-
-			if (!duplicatePacket) { blockNum++; }
-
-		} while (!done);
-		
+			try {
+				timer.applyTo(socket);
+				reply = PacketUtil.receivePacketOrTimeout(threadLabel, socket, receiverProcess, "ACK", ackCodec.receivePacket());
+			} catch (SocketTimeoutException ex){
+				//no response for last Data packet, Data packet maybe lost, resending...
+				printToConsole("Error: Timed out while waiting for ACK Packet");	        		
+				
+				if (!timer.backOff()){
+					throw new TFTPException(String.format("No response received after %d retries, aborting request", 
+							timer.getRetries()), PacketUtil.ERR_UNDEFINED);   
+				}    				
+				
+				// go back and resend everything after the last acknowledged block
+				printToConsole("possible DATA packet loss, resending...");
+				nextToSend = lastAcked + 1;
+				backedOff = true;
+				continue;
+			}
+			
+			// a retransmitted OACK means our ACK 0 was lost, the DATA we've sent already answers it
+			if (lastAcked == 0 && PacketUtil.getPacketType(reply) == PacketType.OACK)
+				continue;
+			
+			// parse ACK to ensure it is correct before continuing
+			try {
+				parser.parseAckPacket(reply, lastRead);
+			} catch (ErrorReceivedException e) {
+				// the other side sent an error packet, don't send a response				
+				// rethrow so the owner of this Sender knows whats up
+				throw e;
+				
+			} catch (TFTPException e) {
+				
+				// send error packet
+				DatagramPacket errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage(),
+						reply.getAddress(), reply.getPort());				
+				PacketUtil.sendPacketToProcess(threadLabel, socket, errPacket, receiverProcess, "ERROR");
+				
+				if (e.getErrorCode() == PacketUtil.ERR_UNKNOWN_TID) {
+					printToConsole("received packet with unknown TID");
+					// still wait for the right ACK
+					continue;
+				} else {
+					// rethrow so the owner of this Sender knows whats up
+					throw e;
+				}
+			}
+			
+			long ackedBlock = parser.getBlockIndex(reply, lastRead);
+			if (ackedBlock <= lastAcked) {
+				// duplicate ACK, ignore it so we don't resend DATA twice (sorcerer's apprentice)
+				continue;
+			}
+			
+			lastAcked = ackedBlock;
+			timer.responseReceived(ackedBlock);
+			if (ackedBlock < nextToSend - 1) {
+				// the receiver stopped at a gap in the window, restart right after the acknowledged block
+				nextToSend = ackedBlock + 1;
+			}
+		}
+	}
+	
+	/**
+	 * Sets the negotiated block size. Must be called before sendFile.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+	
+	/**
+	 * Sets the negotiated window size, i.e. how many DATA packets may be sent
+	 * before waiting for an ACK. Must be called before sendFile.
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+	
+	/**
+	 * Sets where the blocks of the file come from (e.g. a cache). By default they are
+	 * read from the file passed to sendFile. The source is closed when sendFile returns.
+	 */
+	public void setBlockSource(BlockSource source) {
+		this.source = source;
+	}
+	
+	/**
+	 * Sets the timer deciding when to retransmit, so the round trip time measured while
+	 * negotiating the transfer carries over. By default the Sender starts its own.
+	 */
+	public void setTimer(RetransmitTimer timer) {
+		this.timer = timer;
+	}
+	
+	/**
+	 * Sets the block number that follows 65535 (0 or 1). Must be called before sendFile.
+	 */
+	public void setRollover(int rolloverBlock) {
+		this.rolloverBlock = rolloverBlock;
+		parser.setRollover(rolloverBlock);
 	}
 	
 	private void printToConsole(String message) {
 		if (ownerThread != null) // server thread owns this object
-			System.out.printf("%s: %s\n", ownerThread.getName(), message);
+			Log.summary("%s: %s", ownerThread.getName(), message);
 		else // client owns this object
-			System.out.printf("%s\n", message);
+			Log.summary("%s", message);
 	}
 
 }
@@ -0,0 +1,268 @@
+/*
+ * SocketPool.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tftp.log.Log;
+
+/**
+ * A pool of bound sockets for transfers, so starting a transfer doesn't have to
+ * bind a new socket (and allocate its kernel buffers) every time. Each transfer
+ * leases a socket of its own, so its port is still a TID no other transfer is using,
+ * and gives it back once the transfer (including its dally) is over.
+ *
+ * Sockets are handed out least recently used first, so a port is reused as late as
+ * possible and stray packets from its last transfer have had time to die out; any
+ * that are still queued on the socket are thrown away before it is leased again.
+ * The sockets are backed by DatagramChannels, so they can be handed over to the
+ * DallyResponder.
+ *
+ * When every pooled socket is in use, an extra socket is opened on an ephemeral
+ * port, and closed again when it is released.
+ */
+public class SocketPool {
+
+	public static final int DEFAULT_SIZE = 64;
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	private static SocketPool instance = null;
+
+	private final int firstPort;
+	private final int lastPort;
+	private final int size;
+	private final int bufferSize;
+	private volatile boolean shutdown = false;
+
+	private ConcurrentLinkedQueue<DatagramSocket> idle = new ConcurrentLinkedQueue<DatagramSocket>();
+	// the sockets belonging to the pool, whether idle or leased
+	private Set<DatagramSocket> pooled = Collections.newSetFromMap(new ConcurrentHashMap<DatagramSocket, Boolean>());
+	// the sockets leased out by the pool, pooled or extra
+	private Set<DatagramSocket> leased = Collections.newSetFromMap(new ConcurrentHashMap<DatagramSocket, Boolean>());
+	private AtomicInteger nextPort = new AtomicInteger();
+	private ByteBuffer drainBuf = ByteBuffer.allocate(PacketUtil.MAX_PACKET_SIZE);
+
+	private AtomicInteger inUse = new AtomicInteger();
+	private AtomicInteger peakInUse = new AtomicInteger();
+	private AtomicLong leases = new AtomicLong();
+	private AtomicLong overflows = new AtomicLong();
+	private AtomicLong stalePackets = new AtomicLong();
+
+	/**
+	 * Returns the pool used by the server, creating one with the default settings
+	 * if configure hasn't been called.
+	 */
+	public static synchronized SocketPool getInstance() {
+		if (instance == null)
+			instance = new SocketPool(0, 0, DEFAULT_SIZE, DEFAULT_BUFFER_SIZE);
+		return instance;
+	}
+
+	/**
+	 * Replaces the pool used by the server. Idle sockets of the old pool are closed
+	 * straight away, leased ones when they are released.
+	 *
+	 *  @see #SocketPool(int, int, int, int)
+	 */
+	public static synchronized SocketPool configure(int firstPort, int lastPort, int size, int bufferSize) {
+		if (instance != null)
+			instance.shutdown();
+		instance = new SocketPool(firstPort, lastPort, size, bufferSize);
+		return instance;
+	}
+
+	/**
+	 * Gives a socket back to the pool used by the server. The socket is closed if it
+	 * doesn't belong to that pool, or if there is none (e.g. in the client).
+	 */
+	public static void recycle(DatagramSocket socket) {
+		SocketPool pool;
+		synchronized (SocketPool.class) {
+			pool = instance;
+		}
+		if (pool != null)
+			pool.release(socket);
+		else
+			socket.close();
+	}
+
+	/**
+	 * Constructs a SocketPool and binds all of its sockets.
+	 *
+	 *  @param firstPort	the first port of the range to bind, or 0 for ephemeral ports
+	 *  @param lastPort		the last port of the range to bind (ignored for ephemeral ports)
+	 *  @param size			the number of sockets to keep, at most the size of the port range
+	 *  @param bufferSize	the send and receive buffer size of each socket, or 0 for the system default
+	 */
+	public SocketPool(int firstPort, int lastPort, int size, int bufferSize) {
+		this.firstPort = firstPort;
+		this.lastPort = firstPort == 0 ? 0 : Math.max(firstPort, lastPort);
+		this.size = firstPort == 0 ? size : Math.min(size, this.lastPort - firstPort + 1);
+		this.bufferSize = bufferSize;
+
+		for (int i = 0; i < this.size; i++) {
+			DatagramSocket socket = openPooled();
+			if (socket == null)
+				break;
+			idle.add(socket);
+		}
+		if (pooled.size() < this.size)
+			Log.summary("Socket pool: only %d of %d sockets could be bound", pooled.size(), this.size);
+	}
+
+	/**
+	 * Leases a socket for a transfer. Its timeout is 0 (none) and it is in blocking mode.
+	 *
+	 *  @throws SocketException	if the pool is empty and no other socket can be opened
+	 */
+	public DatagramSocket acquire() throws SocketException {
+		DatagramSocket socket;
+		while ((socket = idle.poll()) != null) {
+			if (drain(socket))
+				break;
+			// closed or broken while it was idle, leave it out of the pool
+			pooled.remove(socket);
+			socket.close();
+		}
+		if (socket == null) {
+			overflows.incrementAndGet();
+			socket = open(new InetSocketAddress(0));
+		}
+
+		leased.add(socket);
+		leases.incrementAndGet();
+		int n = inUse.incrementAndGet();
+		int peak;
+		while (n > (peak = peakInUse.get()) && !peakInUse.compareAndSet(peak, n))
+			;
+		return socket;
+	}
+
+	/**
+	 * Gives a socket back once its transfer is over. Sockets that don't belong to the
+	 * pool are closed. The socket must not be registered with a Selector.
+	 */
+	public void release(DatagramSocket socket) {
+		if (leased.remove(socket))
+			inUse.decrementAndGet();
+		if (!pooled.contains(socket) || shutdown || socket.isClosed()) {
+			pooled.remove(socket);
+			socket.close();
+			return;
+		}
+		idle.add(socket);
+		// shutdown may have closed the idle sockets while this one was being added
+		if (shutdown && idle.remove(socket))
+			socket.close();
+	}
+
+	/**
+	 * Closes the idle sockets. Leased sockets are closed when they are released.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		DatagramSocket socket;
+		while ((socket = idle.poll()) != null)
+			socket.close();
+	}
+
+	// the number of sockets the pool keeps
+	public int getSize() {return size;}
+	// the number of sockets leased right now, including extra ones
+	public int getInUse() {return inUse.get();}
+	public int getIdle() {return idle.size();}
+	public int getPeakInUse() {return peakInUse.get();}
+	public long getLeases() {return leases.get();}
+	// the number of leases that had to open an extra socket because the pool was empty
+	public long getOverflows() {return overflows.get();}
+	// the number of packets left over from earlier transfers and thrown away
+	public long getStalePackets() {return stalePackets.get();}
+
+	// binds the next free port of the range, or an ephemeral port
+	private DatagramSocket openPooled() {
+		if (firstPort == 0) {
+			try {
+				DatagramSocket socket = open(new InetSocketAddress(0));
+				pooled.add(socket);
+				return socket;
+			} catch (SocketException e) {
+				return null;
+			}
+		}
+		while (true) {
+			int port = firstPort + nextPort.getAndIncrement();
+			if (port > lastPort)
+				return null;
+			try {
+				DatagramSocket socket = open(new InetSocketAddress(port));
+				pooled.add(socket);
+				return socket;
+			} catch (SocketException e) {
+				// in use by something else, try the next one
+			}
+		}
+	}
+
+	private DatagramSocket open(InetSocketAddress address) throws SocketException {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.bind(address);
+			DatagramSocket socket = channel.socket();
+			if (bufferSize > 0) {
+				socket.setReceiveBufferSize(bufferSize);
+				socket.setSendBufferSize(bufferSize);
+			}
+			return socket;
+		} catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// nothing more we can do
+				}
+			}
+			if (e instanceof SocketException)
+				throw (SocketException) e;
+			throw new SocketException(e.getMessage());
+		}
+	}
+
+	// throws away packets left over from the socket's last transfer and resets it for the next one
+	private boolean drain(DatagramSocket socket) {
+		DatagramChannel channel = socket.getChannel();
+		try {
+			synchronized (drainBuf) {
+				channel.configureBlocking(false);
+				while (true) {
+					drainBuf.clear();
+					if (channel.receive(drainBuf) == null)
+						break;
+					stalePackets.incrementAndGet();
+				}
+			}
+			channel.configureBlocking(true);
+			socket.setSoTimeout(0);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * StagedFile.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import tftp.exception.TFTPException;
+
+/**
+ * A file being received into a temporary file next to the one it will replace.
+ * Once the whole file has been written it is published: moved over the target in
+ * one step, so the target is either the old file or the new one, never half of
+ * each. Anyone who already has the old file open keeps reading the old contents.
+ * If the transfer fails the temporary file is discarded and the target is untouched.
+ */
+public class StagedFile {
+
+	private File target;
+	private File temp;
+	private boolean published = false;
+
+	/**
+	 * Creates the temporary file to receive into.
+	 *
+	 *  @param target			the file to replace (or create) once the transfer succeeds
+	 *  @throws TFTPException	if the temporary file can't be created
+	 */
+	public StagedFile(File target) throws TFTPException {
+		this.target = target;
+		// in the same directory, so moving it over the target is a rename
+		File dir = target.getAbsoluteFile().getParentFile();
+		try {
+			temp = File.createTempFile("." + target.getName() + ".", ".part", dir);
+		} catch (IOException e) {
+			throw new TFTPException(e.getMessage(), PacketUtil.ERR_UNDEFINED);
+		}
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	public File getTempFile() {
+		return temp;
+	}
+
+	/**
+	 * Moves the temporary file over the target. The temporary file must be closed.
+	 *
+	 *  @throws TFTPException	with ERR_ACCESS_VIOLATION if the target can't be replaced,
+	 *  						e.g. on platforms that won't replace a file that is open
+	 */
+	public void publish() throws TFTPException {
+		try {
+			try {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new TFTPException("Could not replace " + target.getName() + ": " + e.getMessage(),
+					PacketUtil.ERR_ACCESS_VIOLATION);
+		}
+		published = true;
+	}
+
+	public boolean isPublished() {
+		return published;
+	}
+
+	/**
+	 * Deletes the temporary file, unless it has been published. Safe to call more than once.
+	 */
+	public void discard() {
+		if (!published)
+			temp.delete();
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * TransferOptions.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tftp.exception.TFTPException;
+
+/**
+ * The TFTP options (RFC 2347) carried by a request or OACK packet.
+ * Option names are case-insensitive and are stored in lower case, in the order
+ * they appeared in the packet.
+ */
+public class TransferOptions {
+
+	// RFC 2348 block size option
+	public static final String BLKSIZE = "blksize";
+	public static final int DEFAULT_BLOCK_SIZE = 512;
+	public static final int MIN_BLOCK_SIZE = 8;
+	public static final int MAX_BLOCK_SIZE = 65464;
+	
+	// RFC 7440 window size option
+	public static final String WINDOWSIZE = "windowsize";
+	public static final int DEFAULT_WINDOW_SIZE = 1;
+	public static final int MAX_WINDOW_SIZE = 65535;
+	// largest window the server will agree to, which bounds the blocks it buffers per transfer
+	public static final int SERVER_MAX_WINDOW_SIZE = 64;
+	
+	// block number rollover option: the block number that follows 65535 (0 or 1)
+	public static final String ROLLOVER = "rollover";
+	public static final int DEFAULT_ROLLOVER = 0;
+	
+	// RFC 2349 transfer size option: the size of the file in bytes
+	public static final String TSIZE = "tsize";
+	
+	// RFC 2349 timeout option: the retransmission timeout in seconds
+	public static final String TIMEOUT = "timeout";
+	public static final int MIN_TIMEOUT = 1;
+	public static final int MAX_TIMEOUT = 255;
+
+	private LinkedHashMap<String, String> options;
+
+	/**
+	 * Constructs an empty set of options (i.e. a plain RFC 1350 transfer).
+	 */
+	public TransferOptions() {
+		options = new LinkedHashMap<String, String>();
+	}
+
+	/**
+	 * Adds an option to this set, as read from a packet.
+	 *
+	 *  @param name		the option name
+	 *  @param value	the option value
+	 *  @throws TFTPException	if the option appears twice
+	 */
+	public void put(String name, String value) throws TFTPException {
+		name = name.toLowerCase();
+		if (options.containsKey(name))
+			throw new TFTPException("option " + name + " specified more than once", PacketUtil.ERR_OPTION_NEGOTIATION);
+		options.put(name, value);
+	}
+
+	public boolean isEmpty() {
+		return options.isEmpty();
+	}
+
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+	
+	/**
+	 * Removes an option, e.g. one an engine doesn't support, so it is left out of the OACK.
+	 */
+	public void remove(String name) {
+		options.remove(name);
+	}
+
+	/**
+	 * Returns the options in packet order (name -> value).
+	 */
+	public Map<String, String> asMap() {
+		return Collections.unmodifiableMap(options);
+	}
+
+	/**
+	 * Returns the block size in effect, which is the default unless the blksize option is set.
+	 */
+	public int getBlockSize() {
+		if (!options.containsKey(BLKSIZE))
+			return DEFAULT_BLOCK_SIZE;
+		return Integer.parseInt(options.get(BLKSIZE));
+	}
+
+	public void setBlockSize(int blockSize) {
+		options.put(BLKSIZE, Integer.toString(blockSize));
+	}
+	
+	/**
+	 * Returns the number of blocks that may be sent before waiting for an ACK, 
+	 * which is 1 (lock-step) unless the windowsize option is set.
+	 */
+	public int getWindowSize() {
+		if (!options.containsKey(WINDOWSIZE))
+			return DEFAULT_WINDOW_SIZE;
+		return Integer.parseInt(options.get(WINDOWSIZE));
+	}
+	
+	public void setWindowSize(int windowSize) {
+		options.put(WINDOWSIZE, Integer.toString(windowSize));
+	}
+	
+	/**
+	 * Returns the block number that follows block 65535, which is 0 unless 
+	 * the rollover option is set.
+	 */
+	public int getRollover() {
+		if (!options.containsKey(ROLLOVER))
+			return DEFAULT_ROLLOVER;
+		return Integer.parseInt(options.get(ROLLOVER));
+	}
+	
+	public void setRollover(int rolloverBlock) {
+		options.put(ROLLOVER, Integer.toString(rolloverBlock));
+	}
+	
+	/**
+	 * Returns the size of the file being transferred, or -1 if the tsize option isn't set.
+	 * In a read request the value is 0, asking the server to fill in the size.
+	 */
+	public long getTransferSize() {
+		if (!options.containsKey(TSIZE))
+			return -1;
+		return Long.parseLong(options.get(TSIZE));
+	}
+	
+	public void setTransferSize(long transferSize) {
+		options.put(TSIZE, Long.toString(transferSize));
+	}
+	
+	/**
+	 * Returns the agreed retransmission timeout in seconds, or -1 if the timeout 
+	 * option isn't set (the timeout is then adapted to the measured round trip time).
+	 */
+	public int getTimeout() {
+		if (!options.containsKey(TIMEOUT))
+			return -1;
+		return Integer.parseInt(options.get(TIMEOUT));
+	}
+	
+	public void setTimeout(int seconds) {
+		options.put(TIMEOUT, Integer.toString(seconds));
+	}
+
+	/**
+	 * Decides which of the options requested by a client the server will use.
+	 * Unknown options are dropped, which tells the client they are not in effect.
+	 *
+	 *  @return		the options to acknowledge in an OACK (empty if no OACK should be sent)
+	 *  @throws TFTPException	if a requested option value is unacceptable
+	 */
+	public TransferOptions negotiate() throws TFTPException {
+		TransferOptions accepted = new TransferOptions();
+
+		if (has(BLKSIZE)) {
+			int requested = parseNumber(BLKSIZE);
+			if (requested < MIN_BLOCK_SIZE)
+				throw new TFTPException("invalid blksize " + requested, PacketUtil.ERR_OPTION_NEGOTIATION);
+			accepted.setBlockSize(Math.min(requested, MAX_BLOCK_SIZE));
+		}
+		
+		if (has(WINDOWSIZE)) {
+			int requested = parseNumber(WINDOWSIZE);
+			if (requested < 1 || requested > MAX_WINDOW_SIZE)
+				throw new TFTPException("invalid windowsize " + requested, PacketUtil.ERR_OPTION_NEGOTIATION);
+			accepted.setWindowSize(Math.min(requested, SERVER_MAX_WINDOW_SIZE));
+		}
+		
+		if (has(ROLLOVER)) {
+			int requested = parseNumber(ROLLOVER);
+			if (requested != 0 && requested != 1)
+				throw new TFTPException("invalid rollover " + requested, PacketUtil.ERR_OPTION_NEGOTIATION);
+			accepted.setRollover(requested);
+		}
+		
+		// an out of range timeout is declined by leaving it out of the OACK, as RFC 2349 allows
+		if (has(TIMEOUT)) {
+			int requested = parseNumber(TIMEOUT);
+			if (requested >= MIN_TIMEOUT && requested <= MAX_TIMEOUT)
+				accepted.setTimeout(requested);
+		}
+		
+		// the size is echoed back for a WRQ; for an RRQ the caller replaces it with the file's size
+		if (has(TSIZE)) {
+			long requested = parseSize();
+			if (requested < 0)
+				throw new TFTPException("invalid tsize " + requested, PacketUtil.ERR_OPTION_NEGOTIATION);
+			accepted.setTransferSize(requested);
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Checks the options in an OACK received in response to a request carrying these options.
+	 *
+	 *  @param reply	the options contained in the OACK
+	 *  @throws TFTPException	if the server acknowledged something that wasn't requested
+	 * 							or chose a value it isn't allowed to
+	 */
+	public void checkReply(TransferOptions reply) throws TFTPException {
+		for (String name : reply.options.keySet()) {
+			if (!has(name))
+				throw new TFTPException("unrequested option " + name + " in OACK", PacketUtil.ERR_OPTION_NEGOTIATION);
+		}
+
+		if (reply.has(BLKSIZE)) {
+			int blockSize = reply.parseNumber(BLKSIZE);
+			if (blockSize < MIN_BLOCK_SIZE || blockSize > getBlockSize())
+				throw new TFTPException("invalid blksize " + blockSize + " in OACK", PacketUtil.ERR_OPTION_NEGOTIATION);
+		}
+		
+		if (reply.has(WINDOWSIZE)) {
+			int windowSize = reply.parseNumber(WINDOWSIZE);
+			if (windowSize < 1 || windowSize > getWindowSize())
+				throw new TFTPException("invalid windowsize " + windowSize + " in OACK", PacketUtil.ERR_OPTION_NEGOTIATION);
+		}
+		
+		if (reply.has(ROLLOVER)) {
+			if (reply.parseNumber(ROLLOVER) != getRollover())
+				throw new TFTPException("invalid rollover in OACK", PacketUtil.ERR_OPTION_NEGOTIATION);
+		}
+		
+		if (reply.has(TIMEOUT)) {
+			if (reply.parseNumber(TIMEOUT) != getTimeout())
+				throw new TFTPException("invalid timeout in OACK", PacketUtil.ERR_OPTION_NEGOTIATION);
+		}
+		
+		if (reply.has(TSIZE)) {
+			if (reply.parseSize() < 0)
+				throw new TFTPException("invalid tsize in OACK", PacketUtil.ERR_OPTION_NEGOTIATION);
+		}
+	}
+
+	private int parseNumber(String name) throws TFTPException {
+		try {
+			return Integer.parseInt(options.get(name));
+		} catch (NumberFormatException e) {
+			throw new TFTPException("invalid value for option " + name, PacketUtil.ERR_OPTION_NEGOTIATION);
+		}
+	}
+
+	private long parseSize() throws TFTPException {
+		try {
+			return Long.parseLong(options.get(TSIZE));
+		} catch (NumberFormatException e) {
+			throw new TFTPException("invalid value for option " + TSIZE, PacketUtil.ERR_OPTION_NEGOTIATION);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return options.toString();
+	}
+}
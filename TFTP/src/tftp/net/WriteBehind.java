@@ -0,0 +1,209 @@
+/*
+ * WriteBehind.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.net;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import tftp.exception.TFTPException;
+
+/**
+ * Writes a file being received without making the receiving thread wait for the disk.
+ *
+ * DATA payloads are copied into a large pooled buffer, and each full buffer is
+ * written to the file by a background I/O thread with a single channel write,
+ * rather than one write per packet. The receiving thread only waits when the
+ * buffers queued for writing (by all transfers together) exceed the memory budget,
+ * which holds back its next ACK until the disk catches up.
+ *
+ * One WriteBehind belongs to the thread receiving one file, so it is not thread safe.
+ */
+public class WriteBehind {
+
+	// size of the buffers payloads are gathered in; a multiple of the usual file system page size
+	public static final int CHUNK_SIZE = 256 * 1024;
+	// bytes that may be waiting for the I/O thread before receivers are held back
+	public static final long DEFAULT_MEMORY_BUDGET = 32 * 1024 * 1024;
+
+	private static final Object queueLock = new Object();
+	private static long memoryBudget = DEFAULT_MEMORY_BUDGET;
+	private static long queuedBytes = 0;	// guarded by queueLock
+
+	private static ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static ExecutorService ioThread = null;
+
+	private FileOutputStream stream;
+	private FileChannel channel;
+	private ByteBuffer current = null;		// buffer being filled
+	private Future<?> lastWrite = null;		// last buffer handed to the I/O thread
+	private volatile IOException failure = null;
+	private boolean closed = false;
+
+	/**
+	 * Takes over writing to a newly opened file. The stream is closed by close().
+	 */
+	public WriteBehind(FileOutputStream stream) {
+		this.stream = stream;
+		channel = stream.getChannel();
+	}
+
+	/**
+	 * Sets the most bytes that may wait to be written before receivers are held back.
+	 */
+	public static void setMemoryBudget(long bytes) {
+		synchronized (queueLock) {
+			memoryBudget = bytes;
+			queueLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes waiting for the I/O thread, across all transfers.
+	 */
+	public static long getQueuedBytes() {
+		synchronized (queueLock) {
+			return queuedBytes;
+		}
+	}
+
+	/**
+	 * Appends data to the file. Returns once the data has been copied, which is
+	 * usually before it is written.
+	 *
+	 *  @throws TFTPException	if an earlier write failed
+	 */
+	public void write(byte[] src, int offset, int length) throws TFTPException {
+		checkFailure();
+		while (length > 0) {
+			if (current == null)
+				current = takeBuffer();
+			int n = Math.min(length, current.remaining());
+			current.put(src, offset, n);
+			offset += n;
+			length -= n;
+			if (!current.hasRemaining())
+				queueCurrent();
+		}
+	}
+
+	/**
+	 * Writes whatever is still buffered, waits for the I/O thread to finish with
+	 * this file and closes it. Safe to call more than once.
+	 *
+	 *  @throws TFTPException	if any part of the file couldn't be written
+	 */
+	public void close() throws TFTPException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (current != null && current.position() > 0)
+				queueCurrent();
+			if (lastWrite != null)
+				lastWrite.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TFTPException("Interrupted while writing file", PacketUtil.ERR_UNDEFINED);
+		} catch (ExecutionException e) {
+			throw new TFTPException("Error writing file: " + e.getCause().getMessage(), PacketUtil.ERR_UNDEFINED);
+		} finally {
+			if (current != null)
+				giveBack(current);
+			current = null;
+			try {
+				stream.close();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws TFTPException {
+		if (failure != null)
+			throw new TFTPException("Error writing file: " + failure.getMessage(), PacketUtil.ERR_UNDEFINED);
+	}
+
+	// hands the current buffer to the I/O thread, first waiting for room in the memory budget
+	private void queueCurrent() throws TFTPException {
+		final ByteBuffer buf = current;
+		current = null;
+		final int size = buf.position();
+
+		synchronized (queueLock) {
+			try {
+				while (queuedBytes > 0 && queuedBytes + size > memoryBudget)
+					queueLock.wait();
+			} catch (InterruptedException e) {
+				giveBack(buf);
+				Thread.currentThread().interrupt();
+				throw new TFTPException("Interrupted while writing file", PacketUtil.ERR_UNDEFINED);
+			}
+			queuedBytes += size;
+		}
+
+		buf.flip();
+		lastWrite = getIoThread().submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// once a write has failed the rest of the file is pointless
+					while (failure == null && buf.hasRemaining())
+						channel.write(buf);
+				} catch (IOException e) {
+					failure = e;
+				} finally {
+					giveBack(buf);
+					synchronized (queueLock) {
+						queuedBytes -= size;
+						queueLock.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	private static ByteBuffer takeBuffer() {
+		ByteBuffer buf = bufferPool.poll();
+		if (buf == null)
+			buf = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		return buf;
+	}
+
+	private static void giveBack(ByteBuffer buf) {
+		buf.clear();
+		// keep no more idle buffers than the budget could ever have queued
+		if (bufferPool.size() < memoryBudget / CHUNK_SIZE)
+			bufferPool.offer(buf);
+	}
+
+	private static synchronized ExecutorService getIoThread() {
+		if (ioThread == null) {
+			ioThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "WriteBehind-IO");
+					// don't keep the process alive, close() waits for anything that matters
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return ioThread;
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * RequestIntake.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import tftp.net.PacketUtil;
+
+/**
+ * Drains the server's listening socket on a thread of its own, so a burst of
+ * requests waits in memory instead of overflowing the socket's receive buffer
+ * (where the kernel drops them without telling anyone). The intake thread does
+ * nothing but receive: requests are parsed and handed to workers by the thread
+ * calling take.
+ *
+ * Requests are received into a spare packet, which is then swapped into a fixed ring
+ * of packets, so intake doesn't allocate; take copies each request out before its
+ * slot is reused. The ring has a single producer (the intake thread) and a single
+ * consumer (the dispatching thread) and needs no locks. Whether there is room is
+ * only decided once a request has arrived, so slots freed while the intake thread
+ * was waiting are used; if the ring is still full, the request is dropped, and
+ * counted, rather than left for the kernel to drop.
+ */
+public class RequestIntake {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+	// asked of the kernel for the listening socket, it may give less
+	public static final int LISTEN_BUFFER_SIZE = 4 * 1024 * 1024;
+	// how long the dispatching thread sleeps between checks when it missed a wakeup
+	private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final DatagramSocket socket;
+	private final DatagramPacket[] slots;
+	private final int mask;
+	private DatagramPacket spare;				// received into, then swapped into the ring if there is room
+	private volatile long tail = 0;				// next slot to fill, only written by the intake thread
+	private volatile long head = 0;				// next slot to take, only written by the dispatching thread
+	private volatile Thread waiting = null;		// the dispatching thread, while it is parked
+	private volatile boolean closed = false;
+	private Thread intakeThread;
+
+	private AtomicLong received = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private volatile int peakDepth = 0;
+
+	/**
+	 * @param socket		the listening socket, which this takes over receiving from
+	 * @param capacity		how many requests may wait, rounded up to a power of two
+	 */
+	public RequestIntake(DatagramSocket socket, int capacity) {
+		this.socket = socket;
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new DatagramPacket[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = new DatagramPacket(new byte[PacketUtil.BUF_SIZE], PacketUtil.BUF_SIZE);
+		mask = size - 1;
+		spare = new DatagramPacket(new byte[PacketUtil.BUF_SIZE], PacketUtil.BUF_SIZE);
+
+		try {
+			socket.setReceiveBufferSize(LISTEN_BUFFER_SIZE);
+		} catch (SocketException e) {
+			// the default buffer will have to do
+		}
+	}
+
+	/**
+	 * Starts the intake thread. It stops when the socket is closed.
+	 *
+	 *  @param threadName	the name of the intake thread, e.g. to tell shards apart
+	 */
+	public void start(String threadName) {
+		intakeThread = new Thread(threadName) {
+			@Override
+			public void run() {
+				receiveRequests();
+			}
+		};
+		intakeThread.setDaemon(true);
+		intakeThread.setPriority(Thread.MAX_PRIORITY);
+		intakeThread.start();
+	}
+
+	/**
+	 * Waits for the next request. Only one thread may call this.
+	 *
+	 *  @return		a copy of the request, or null once the socket has been closed
+	 */
+	public DatagramPacket take() {
+		while (true) {
+			long h = head;
+			if (h < tail) {
+				DatagramPacket slot = slots[(int) h & mask];
+				DatagramPacket request = new DatagramPacket(copyOf(slot), slot.getLength(),
+						slot.getAddress(), slot.getPort());
+				// the slot may be received into again from now on
+				head = h + 1;
+				return request;
+			}
+			if (closed)
+				return null;
+			waiting = Thread.currentThread();
+			// check again, the intake thread may have added a request before seeing waiting
+			if (head == tail && !closed)
+				LockSupport.parkNanos(this, IDLE_PARK_NS);
+			waiting = null;
+		}
+	}
+
+	// runs on the intake thread
+	private void receiveRequests() {
+		while (true) {
+			spare.setLength(PacketUtil.BUF_SIZE);
+			try {
+				socket.receive(spare);
+			} catch (IOException e) {
+				// likely the socket was closed because the server is shutting down
+				break;
+			}
+
+			received.incrementAndGet();
+			long t = tail;
+			if (t - head >= slots.length) {
+				dropped.incrementAndGet();
+				continue;
+			}
+			// the slot is free, so take its packet as the next spare
+			int i = (int) t & mask;
+			DatagramPacket request = spare;
+			spare = slots[i];
+			slots[i] = request;
+			tail = t + 1;
+			int depth = (int) (t + 1 - head);
+			if (depth > peakDepth)
+				peakDepth = depth;
+
+			Thread w = waiting;
+			if (w != null)
+				LockSupport.unpark(w);
+		}
+		closed = true;
+		Thread w = waiting;
+		if (w != null)
+			LockSupport.unpark(w);
+	}
+
+	private static byte[] copyOf(DatagramPacket packet) {
+		byte[] data = new byte[packet.getLength()];
+		System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+		return data;
+	}
+
+	// the number of requests received from the socket, including dropped ones
+	public long getReceived() {return received.get();}
+	// the number of requests dropped because the queue was full
+	public long getDropped() {return dropped.get();}
+	// the number of requests waiting to be dispatched right now
+	public int getDepth() {return (int) Math.max(0, tail - head);}
+	public int getPeakDepth() {return peakDepth;}
+	public int getCapacity() {return slots.length;}
+
+	/**
+	 * Returns the number of datagrams the kernel dropped because the listening socket's
+	 * receive buffer was full, or -1 if the system doesn't say (it is read from
+	 * /proc/net/udp, so Linux only). The count covers every socket bound to the port.
+	 */
+	public long getKernelDrops() {
+		String port = String.format(":%04X", socket.getLocalPort());
+		long drops = -1;
+		for (String table : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+			long tableDrops = readDrops(table, port);
+			if (tableDrops >= 0)
+				drops = Math.max(drops, 0) + tableDrops;
+		}
+		return drops;
+	}
+
+	// sums the drops column of the sockets bound to a port, -1 if the table can't be read
+	private static long readDrops(String table, String port) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(table));
+			String line = reader.readLine();	// column headings
+			long drops = 0;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+");
+				// sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+				if (fields.length >= 13 && fields[1].endsWith(port))
+					drops += Long.parseLong(fields[12]);
+			}
+			return drops;
+		} catch (IOException e) {
+			return -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// nothing more we can do
+				}
+			}
+		}
+	}
+}
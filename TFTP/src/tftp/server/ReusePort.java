@@ -0,0 +1,81 @@
+/*
+ * ReusePort.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Binds several sockets to the same port with SO_REUSEPORT, so the kernel spreads
+ * the requests arriving on the port across them (by hashing the sender's address
+ * and port, so a client always lands on the same socket). The project is compiled
+ * for older Java versions, so the option (Java 9+) is looked up reflectively, and
+ * not every platform supports it.
+ */
+public class ReusePort {
+
+	private static SocketOption<Boolean> soReusePort;	// StandardSocketOptions.SO_REUSEPORT
+	private static Boolean supported = null;
+
+	static {
+		try {
+			@SuppressWarnings("unchecked")
+			SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class
+					.getField("SO_REUSEPORT").get(null);
+			soReusePort = option;
+		} catch (ReflectiveOperationException e) {
+			soReusePort = null;
+		}
+	}
+
+	/**
+	 * Returns true if this JVM and platform can bind several sockets to one port.
+	 */
+	public static synchronized boolean isSupported() {
+		if (supported == null) {
+			supported = false;
+			if (soReusePort != null) {
+				try {
+					DatagramChannel channel = DatagramChannel.open();
+					supported = channel.supportedOptions().contains(soReusePort);
+					channel.close();
+				} catch (IOException e) {
+					// not supported then
+				}
+			}
+		}
+		return supported;
+	}
+
+	/**
+	 * Binds a socket with SO_REUSEPORT set. Every socket sharing the port must be bound this way.
+	 *
+	 *  @param port		the port to bind, or 0 for an ephemeral port (bind the others to the port it gets)
+	 *  @throws IOException		if the port could not be bound
+	 *  @throws UnsupportedOperationException	if isSupported is false
+	 */
+	public static DatagramSocket bind(int port) throws IOException {
+		if (!isSupported())
+			throw new UnsupportedOperationException("SO_REUSEPORT is not supported here");
+
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.setOption(soReusePort, true);
+			channel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel.socket();
+	}
+}
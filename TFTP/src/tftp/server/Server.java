@@ -12,11 +12,17 @@ package tftp.server;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import tftp.exception.TFTPException;
+import tftp.log.Log;
 import tftp.net.PacketUtil;
+import tftp.net.SocketPool;
+import tftp.server.nio.NioServerEngine;
+import tftp.server.thread.BlockCache;
+import tftp.server.thread.ExecutionMode;
+import tftp.server.thread.HandlerPool;
+import tftp.server.thread.SessionTable;
 import tftp.server.thread.WorkerThread;
 import tftp.server.thread.WorkerThreadFactory;
 
@@ -29,90 +35,297 @@ public class Server {
 	
 	public static final int SERVER_PORT = 69; 
 	
+	// limits on the threaded engine's handler pool
+	public static final int DEFAULT_MAX_TRANSFERS = 200;
+	public static final int DEFAULT_PENDING_REQUESTS = 1000;
+	// virtual threads aren't pooled, so far more transfers may run at once on them
+	public static final int DEFAULT_MAX_VIRTUAL_TRANSFERS = 20000;
+	
+	// transfer sockets kept bound by the threaded engine (0 for the first port means ephemeral ports)
+	public static final int DEFAULT_FIRST_TRANSFER_PORT = 0;
+	public static final int DEFAULT_LAST_TRANSFER_PORT = 0;
+	
+	// number of sockets the threaded engine listens on, see setListenerShards
+	public static final int DEFAULT_LISTENER_SHARDS = 1;
+	
+	// number of event loops used by the NIO engine
+	public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	
 	//private variables
-	private DatagramPacket receivePacket;
 	private DatagramSocket receiveSocket;
+	// every socket bound to the listening port, receiveSocket first
+	private DatagramSocket[] listenSockets;
 	
 	private WorkerThreadFactory threadFactory;
-	private HashSet<WorkerThread> activatedThreads;
+	private HandlerPool handlerPool;
+	private int maxConcurrentTransfers;
+	private int pendingQueueSize;
+	private SocketPool socketPool;
+	private volatile RequestIntake[] intakes;
+	// the threads dispatching for the listening sockets after the first
+	private volatile Thread[] dispatchers = new Thread[0];
+	private SessionTable<WorkerThread> sessions = new SessionTable<WorkerThread>();
+	private int intakeQueueSize;
+	private int firstTransferPort;
+	private int lastTransferPort;
+	private int socketPoolSize;
+	private int socketBufferSize;
 	private boolean acceptNewConnections;
-	private int threadCount;
+	private AtomicInteger threadCount = new AtomicInteger(1);
 	private String directory;
 	
+	private ServerEngine engine;
+	private NioServerEngine nioEngine;
+	
 	public Server()
 	{
+		this(ServerEngine.THREADED);
+	}
+	
+	public Server(ServerEngine engine)
+	{
+		this(engine, ExecutionMode.PLATFORM, SERVER_PORT);
+	}
+	
+	/**
+	 * Constructs a Server and binds its listening port.
+	 * 
+	 * @param engine			the engine used to process requests
+	 * @param executionMode		the kind of thread handlers run on (THREADED engine only)
+	 * @param port				the port to listen on (0 binds an ephemeral port, see getPort)
+	 */
+	public Server(ServerEngine engine, ExecutionMode executionMode, int port)
+	{
+		this(engine, executionMode, port, DEFAULT_LISTENER_SHARDS);
+	}
+	
+	/**
+	 * Constructs a Server and binds its listening port.
+	 * 
+	 * With the THREADED engine, the port can be bound by several sockets at once
+	 * (SO_REUSEPORT), each with its own intake and dispatching thread, so a burst of
+	 * requests is taken in on several cores. The kernel spreads requests across the
+	 * sockets by client TID. Where SO_REUSEPORT isn't available a single socket is used.
+	 * 
+	 * @param engine			the engine used to process requests
+	 * @param executionMode		the kind of thread handlers run on (THREADED engine only)
+	 * @param port				the port to listen on (0 binds an ephemeral port, see getPort)
+	 * @param listenerShards	the number of sockets to listen on (THREADED engine only)
+	 */
+	public Server(ServerEngine engine, ExecutionMode executionMode, int port, int listenerShards)
+	{
+		this.engine = engine;
 		try {
-			receiveSocket = new DatagramSocket(SERVER_PORT);
-		} catch (SocketException se) {
+			if (engine == ServerEngine.NIO)
+				nioEngine = new NioServerEngine(port, DEFAULT_EVENT_LOOPS);
+			else
+				bindListenSockets(port, listenerShards);
+		} catch (IOException se) {
 			se.printStackTrace();
 			System.exit(1);
 		}
 		
-		threadFactory = new WorkerThreadFactory();
+		threadFactory = new WorkerThreadFactory(executionMode);
 		
-		activatedThreads = new HashSet<WorkerThread>();
+		if (threadFactory.getExecutionMode() == ExecutionMode.VIRTUAL)
+			maxConcurrentTransfers = DEFAULT_MAX_VIRTUAL_TRANSFERS;
+		else
+			maxConcurrentTransfers = DEFAULT_MAX_TRANSFERS;
+		pendingQueueSize = DEFAULT_PENDING_REQUESTS;
+		firstTransferPort = DEFAULT_FIRST_TRANSFER_PORT;
+		lastTransferPort = DEFAULT_LAST_TRANSFER_PORT;
+		socketPoolSize = SocketPool.DEFAULT_SIZE;
+		socketBufferSize = SocketPool.DEFAULT_BUFFER_SIZE;
+		intakeQueueSize = RequestIntake.DEFAULT_QUEUE_CAPACITY;
 		acceptNewConnections = true;
-		threadCount = 1;
+	}
+	
+	private void bindListenSockets(int port, int shards) throws IOException {
+		if (shards > 1 && !ReusePort.isSupported()) {
+			System.out.println("SO_REUSEPORT is not supported here, listening on a single socket");
+			shards = 1;
+		}
+		if (shards <= 1) {
+			receiveSocket = new DatagramSocket(port);
+			listenSockets = new DatagramSocket[] { receiveSocket };
+			return;
+		}
+		
+		listenSockets = new DatagramSocket[shards];
+		try {
+			listenSockets[0] = ReusePort.bind(port);
+			// with port 0 the first socket picks the port, the others join it
+			for (int i = 1; i < shards; i++)
+				listenSockets[i] = ReusePort.bind(listenSockets[0].getLocalPort());
+		} catch (IOException e) {
+			for (DatagramSocket socket : listenSockets) {
+				if (socket != null)
+					socket.close();
+			}
+			throw e;
+		}
+		receiveSocket = listenSockets[0];
 	}
 
 	public void cleanup() {
-		// close the socket
-		receiveSocket.close();
+		// close the sockets
+		if (engine == ServerEngine.NIO)
+			nioEngine.cleanup();
+		else {
+			for (DatagramSocket socket : listenSockets)
+				socket.close();
+		}
 	}
 
 	public void serveRequests()
 	{
+		if (engine == ServerEngine.NIO) {
+			nioEngine.serveRequests(directory);
+			return;
+		}
+		
+		// the socket reports no port once it is closed
+		int port = getPort();
+		
+		// bind the transfer sockets up front, so requests don't wait for a bind
+		socketPool = SocketPool.configure(firstTransferPort, lastTransferPort, socketPoolSize, socketBufferSize);
+		handlerPool = new HandlerPool(maxConcurrentTransfers, pendingQueueSize, threadFactory);
+		
+		// a thread of its own keeps each listening socket drained, and another hands its requests
+		// to workers; this thread dispatches for the first socket
+		RequestIntake[] started = new RequestIntake[listenSockets.length];
+		for (int i = 0; i < listenSockets.length; i++) {
+			started[i] = new RequestIntake(listenSockets[i], intakeQueueSize);
+			started[i].start("TFTP-Intake-" + (i + 1));
+		}
+		intakes = started;
+		Thread[] others = new Thread[intakes.length - 1];
+		for (int i = 1; i < intakes.length; i++) {
+			final RequestIntake intake = intakes[i];
+			others[i - 1] = new Thread("TFTP-Dispatch-" + (i + 1)) {
+				@Override
+				public void run() {
+					dispatchRequests(intake);
+				}
+			};
+			others[i - 1].start();
+		}
+		dispatchers = others;
+		
+		dispatchRequests(intakes[0]);
+		joinDispatchers();
+		System.out.printf("Stopped listening on port %d.\n", port);
+	}
+	
+	// waits for the other dispatching threads, which stop once their sockets are closed
+	private void joinDispatchers() {
+		try {
+			for (Thread dispatcher : dispatchers)
+				dispatcher.join();
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted while waiting for dispatching threads to stop");
+		}
+	}
+	
+	/**
+	 * Hands the requests taken in from one listening socket to workers, until the
+	 * socket is closed.
+	 */
+	private void dispatchRequests(RequestIntake intake) {
 		while(acceptNewConnections) {
-			byte data[] = new byte[PacketUtil.BUF_SIZE];
-			receivePacket = new DatagramPacket(data, data.length);			
-			receivePacket.getLength();
-
 			// wait for request to come in
-			try {
-				receiveSocket.receive(receivePacket);				
-			} catch (SocketException e) { 
-				// likely the socket was closed because the server is shutting down
-				System.out.printf("Stopped listening on port %d.\n", SERVER_PORT);
+			DatagramPacket receivePacket = intake.take();
+			if (receivePacket == null) {
+				// the socket was closed because the server is shutting down
 				return;
-			} catch (IOException e) {
-				System.out.println("IOexception listening for packets in main server thread");
-				e.printStackTrace();
-				System.exit(1);
 			}
 			
-			System.out.println( (String.format("Request received. Creating handler thread %d", threadCount++)) );
-			// spawn a thread to process request
+			// a client retransmits its request if the reply is slow, its worker will answer it
+			if (sessions.get(receivePacket.getAddress(), receivePacket.getPort()) != null) {
+				sessions.duplicateDropped();
+				Log.summary("Duplicate request from %s:%d ignored, its transfer is in progress",
+						receivePacket.getAddress().getHostAddress(), receivePacket.getPort());
+				continue;
+			}
+			
+			Log.summary("Request received. Creating handler thread %d", threadCount.getAndIncrement());
+			// queue a worker to process request
 			WorkerThread worker = null;
 			try {
 				
 				worker = threadFactory.createWorkerThread(receivePacket);	
 				worker.setDirectory(directory);
-				worker.start();	
+				// a client's TID always lands on the same socket, so only this thread adds its
+				// workers and nothing was added since the check above
+				sessions.putIfAbsent(receivePacket.getAddress(), receivePacket.getPort(), worker);
+				worker.setSessionTable(sessions);
+				if (!handlerPool.submit(worker)) {
+					// too many transfers in progress, fail fast rather than queueing without bound
+					worker.reject(PacketUtil.ERR_UNDEFINED, "SERVER BUSY, try again later");
+				}
 			} catch (TFTPException e) {
-				System.out.println("ERROR: (" + e.getErrorCode() + ")" + " " + e.getMessage());				
+				Log.summary("ERROR: (%d) %s", e.getErrorCode(), e.getMessage());				
 			}
-			activatedThreads.add(worker);
 		}
 	}
 
 	
 	public void finishProcessing() {
 		acceptNewConnections = false;
-		for (Thread t : activatedThreads) {			
-			try {
-				// wait for threads to finish - those blocked while waiting to receive packet should time out
-				t.join();
-			} catch (InterruptedException e) {
-				System.out.printf("Thread %s was interrupted and did not finish processing\n", t.getName());				
-			}
+		if (engine == ServerEngine.NIO) {
+			nioEngine.finishProcessing();
+			return;
 		}
+		// stop taking requests before the pools are shut down, so none are dispatched to them
 		cleanup();
+		joinDispatchers();
+		if (handlerPool != null)
+			handlerPool.shutdown();
+		if (socketPool != null)
+			socketPool.shutdown();
 	}
 	
 	//Server get functions
 	public String getDirectory(){return directory;}
+	public ServerEngine getEngine(){return engine;}
+	public ExecutionMode getExecutionMode(){return threadFactory.getExecutionMode();}
+	public int getPort(){
+		if (engine == ServerEngine.NIO)
+			return nioEngine.getPort();
+		return receiveSocket.getLocalPort();
+	}
+	
+	public int getMaxConcurrentTransfers(){return maxConcurrentTransfers;}
+	public int getPendingQueueSize(){return pendingQueueSize;}
+	public HandlerPool getHandlerPool(){return handlerPool;}
+	public SocketPool getSocketPool(){return socketPool;}
+	// one per listening socket (THREADED engine only, null until serveRequests is called)
+	public RequestIntake[] getRequestIntakes(){return intakes;}
+	public int getListenerShards(){
+		if (engine == ServerEngine.NIO)
+			return 1;
+		return listenSockets.length;
+	}
+	public SessionTable<?> getSessionTable(){
+		if (engine == ServerEngine.NIO)
+			return nioEngine.getSessionTable();
+		return sessions;
+	}
+	// the block cache is shared by every server in this process
+	public BlockCache getBlockCache(){return BlockCache.getInstance();}
 	
 	//Server set functions
 	public void setDirectory(String aDirectory){directory = aDirectory;}
+	// the pool limits take effect the next time serveRequests is called
+	public void setMaxConcurrentTransfers(int max){maxConcurrentTransfers = max;}
+	public void setPendingQueueSize(int size){pendingQueueSize = size;}
+	// the socket pool settings take effect the next time serveRequests is called
+	public void setTransferPortRange(int first, int last){firstTransferPort = first; lastTransferPort = last;}
+	public void setSocketPoolSize(int size){socketPoolSize = size;}
+	public void setSocketBufferSize(int bytes){socketBufferSize = bytes;}
+	// the number of requests that may wait to be dispatched, takes effect the next time serveRequests is called
+	public void setIntakeQueueSize(int size){intakeQueueSize = size;}
+	// 0 turns the block cache off
+	public void setBlockCacheCapacity(long bytes){BlockCache.getInstance().setCapacity(bytes);}
 	
 }
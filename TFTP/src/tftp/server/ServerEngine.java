@@ -0,0 +1,15 @@
+/*
+ * ServerEngine.java
+ * 
+ * Authors: TEAM 1
+ * 
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server;
+
+// the ways the server can process requests
+public enum ServerEngine {
+	THREADED,	// one WorkerThread (and blocking socket) per request
+	NIO			// transfers multiplexed over a few selector-driven event loops
+}
@@ -13,6 +13,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Scanner;
 
+import tftp.log.Log;
+import tftp.net.SocketPool;
+import tftp.server.thread.BlockCache;
+import tftp.server.thread.ExecutionMode;
+
 public class ServerUI {
 
 	private Scanner keyboard;
@@ -25,7 +30,11 @@ public class ServerUI {
 	public void showUI() {
 		System.out.println("TFTP server running [v1.0 - LOCALHOST ONLY] (press Q to terminate) ");		
 		
-		st = new ServerThread();
+		ServerEngine engine = promptEngine();
+		ExecutionMode mode = ExecutionMode.PLATFORM;
+		if (engine == ServerEngine.THREADED)
+			mode = promptExecutionMode();
+		st = new ServerThread(engine, mode);
 		
 		promptDirectory();
 		
@@ -39,10 +48,60 @@ public class ServerUI {
 			{
 				System.out.println("\nFinishing remaining transfers and terminating...");
 				st.shutdown();
+				Log.flush();
+				BlockCache cache = st.getServer().getBlockCache();
+				System.out.printf("Block cache: %d hits, %d misses, %d coalesced, %d evictions\n",
+						cache.getHits(), cache.getMisses(), cache.getCoalesced(), cache.getEvictions());
+				System.out.printf("Duplicate requests ignored: %d\n", st.getServer().getSessionTable().getDuplicates());
+				RequestIntake[] intakes = st.getServer().getRequestIntakes();
+				if (intakes != null) {
+					long received = 0, dropped = 0;
+					int peak = 0;
+					for (RequestIntake intake : intakes) {
+						received += intake.getReceived();
+						dropped += intake.getDropped();
+						peak = Math.max(peak, intake.getPeakDepth());
+					}
+					// the kernel counts drops for the port, whichever socket they were meant for
+					System.out.printf("Request intake: %d sockets, %d received, peak queue depth %d of %d, %d dropped, %d dropped by the kernel\n",
+							intakes.length, received, peak, intakes[0].getCapacity(), dropped, intakes[0].getKernelDrops());
+				}
+				SocketPool sockets = st.getServer().getSocketPool();
+				if (sockets != null)
+					System.out.printf("Socket pool: %d sockets, %d leases, peak %d in use, %d overflows, %d stale packets dropped\n",
+							sockets.getSize(), sockets.getLeases(), sockets.getPeakInUse(), sockets.getOverflows(),
+							sockets.getStalePackets());
 			}
 		
 	}
 	
+	private ServerEngine promptEngine() {
+		while (true) {
+			System.out.println("Use the event-driven (NIO) server engine instead of one thread per request? y/n?");
+			String useNio = keyboard.nextLine();
+			
+			if (useNio.toLowerCase().equals("yes") || useNio.toLowerCase().equals("y"))
+			{
+				System.out.println("Using event-driven server engine!");
+				return ServerEngine.NIO;
+			}
+			if (useNio.toLowerCase().equals("no") || useNio.toLowerCase().equals("n"))
+				return ServerEngine.THREADED;
+		}
+	}
+	
+	private ExecutionMode promptExecutionMode() {
+		while (true) {
+			System.out.println("Run request handlers on virtual threads (Java 21+)? y/n?");
+			String useVirtual = keyboard.nextLine();
+			
+			if (useVirtual.toLowerCase().equals("yes") || useVirtual.toLowerCase().equals("y"))
+				return ExecutionMode.VIRTUAL;
+			if (useVirtual.toLowerCase().equals("no") || useVirtual.toLowerCase().equals("n"))
+				return ExecutionMode.PLATFORM;
+		}
+	}
+	
 	private void promptDirectory() {
 		boolean check = true; 
 		Server server = st.getServer();
@@ -92,9 +151,11 @@ public class ServerUI {
 	class ServerThread extends Thread {
 		private Server server;
 		
-		public ServerThread() {
+		public ServerThread(ServerEngine engine, ExecutionMode mode) {
 			super("TFTPServer");
-			server = new Server();
+			// -Dtftp.listeners=N listens on N sockets sharing the port (THREADED engine, needs SO_REUSEPORT)
+			server = new Server(engine, mode, Server.SERVER_PORT,
+					Integer.getInteger("tftp.listeners", Server.DEFAULT_LISTENER_SHARDS));
 		}
 		
 		@Override
@@ -0,0 +1,160 @@
+/*
+ * EventLoop.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.nio;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import tftp.log.Log;
+import tftp.net.PacketUtil;
+
+/**
+ * A thread that multiplexes many TransferSessions over a single Selector.
+ * Packets arriving on any session's channel are dispatched to that session.
+ * Session deadlines are kept in a TimerWheel, so neither waking up for the next
+ * timeout nor expiring timeouts has to look at every session.
+ */
+public class EventLoop extends Thread {
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<TransferSession> pendingSessions;
+	private Set<TransferSession> sessions;
+	private TimerWheel timers = new TimerWheel();
+	private volatile boolean running;
+
+	// receive buffer shared by every session on this loop
+	private byte[] data = new byte[PacketUtil.MAX_PACKET_SIZE];
+	private ByteBuffer receiveBuf = ByteBuffer.wrap(data);
+
+	public EventLoop(String name) throws IOException {
+		super(name);
+		selector = Selector.open();
+		pendingSessions = new ConcurrentLinkedQueue<TransferSession>();
+		sessions = new HashSet<TransferSession>();
+		running = true;
+	}
+
+	/**
+	 * Hands a new session to this loop. Safe to call from any thread; the session
+	 * is registered and started on the loop's own thread.
+	 */
+	public void submit(TransferSession session) {
+		pendingSessions.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Number of sessions currently owned by this loop (including ones not yet started).
+	 */
+	public int getSessionCount() {
+		return sessions.size() + pendingSessions.size();
+	}
+
+	/**
+	 * Asks this loop to exit once all of its sessions have finished.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running || !sessions.isEmpty() || !pendingSessions.isEmpty()) {
+				selector.select(timers.nextWakeup(System.currentTimeMillis()));
+
+				registerPendingSessions();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid() && key.isReadable())
+						readPackets((TransferSession) key.attachment());
+				}
+
+				timers.expire(System.currentTimeMillis());
+			}
+		} catch (IOException e) {
+			Log.summary("%s: IOException in event loop: %s", getName(), e.getMessage());
+		} finally {
+			for (TransferSession s : new ArrayList<TransferSession>(sessions))
+				s.finish();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing more we can do
+			}
+		}
+	}
+
+	private void registerPendingSessions() {
+		TransferSession session;
+		while ((session = pendingSessions.poll()) != null) {
+			try {
+				session.getChannel().register(selector, SelectionKey.OP_READ, session);
+			} catch (ClosedChannelException e) {
+				session.finish();
+				continue;
+			}
+			sessions.add(session);
+			session.attach(this);
+			session.start();
+		}
+	}
+
+	/**
+	 * Drains every datagram currently queued on a session's channel.
+	 */
+	private void readPackets(TransferSession session) {
+		while (!session.isDone()) {
+			// no need to zero the buffer, packets are only ever parsed up to their length
+			receiveBuf.clear();
+
+			SocketAddress source;
+			try {
+				source = session.getChannel().receive(receiveBuf);
+			} catch (IOException e) {
+				Log.summary("%s: IOException receiving packet: %s", session.getName(), e.getMessage());
+				session.finish();
+				return;
+			}
+			if (source == null)
+				return; // nothing left to read
+
+			InetSocketAddress sourceAddress = (InetSocketAddress) source;
+			session.onPacket(new DatagramPacket(data, receiveBuf.position(), 
+					sourceAddress.getAddress(), sourceAddress.getPort()));
+		}
+	}
+
+	TimerWheel getTimers() {
+		return timers;
+	}
+
+	/**
+	 * Forgets a session that has finished. Called by the session itself.
+	 */
+	void sessionFinished(TransferSession session, TimerWheel.Timeout timeout) {
+		timers.cancel(timeout);
+		sessions.remove(session);
+	}
+}
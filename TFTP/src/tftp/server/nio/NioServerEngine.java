@@ -0,0 +1,197 @@
+/*
+ * NioServerEngine.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.nio;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import tftp.log.Log;
+import tftp.net.PacketUtil;
+import tftp.net.ProcessType;
+import tftp.server.thread.SessionTable;
+
+/**
+ * An event-driven alternative to the thread-per-request server. Requests arriving
+ * on the well-known port are turned into TransferSessions, which are spread across
+ * a small, fixed number of EventLoop threads instead of getting a thread each.
+ */
+public class NioServerEngine {
+
+	private DatagramChannel listenChannel;
+	private Selector listenSelector;
+	private EventLoop[] loops;
+	private int nextLoop = 0;
+	private int port;
+	private volatile boolean acceptNewConnections = true;
+	private SessionTable<TransferSession> sessions = new SessionTable<TransferSession>();
+
+	/**
+	 * Constructs a NioServerEngine and binds the well-known port.
+	 *
+	 * @param  port			the port to listen for requests on
+	 * @param  loopCount	the number of event loop threads to multiplex transfers over
+	 * @throws IOException	if the port could not be bound
+	 */
+	public NioServerEngine(int port, int loopCount) throws IOException {
+		listenChannel = DatagramChannel.open();
+		listenChannel.bind(new InetSocketAddress(port));
+		this.port = listenChannel.socket().getLocalPort();
+		listenChannel.configureBlocking(false);
+
+		listenSelector = Selector.open();
+		listenChannel.register(listenSelector, SelectionKey.OP_READ);
+
+		loops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++)
+			loops[i] = new EventLoop("EventLoop-" + (i + 1));
+	}
+
+	/**
+	 * Receives requests until the engine is shut down, handing each to an event loop.
+	 * Runs on the calling thread.
+	 *
+	 * @param directory	the server directory files are read from / written to
+	 */
+	public void serveRequests(String directory) {
+		for (EventLoop loop : loops)
+			loop.start();
+
+		while (acceptNewConnections) {
+			try {
+				listenSelector.select();
+			} catch (ClosedSelectorException e) {
+				break;
+			} catch (IOException e) {
+				System.out.println("IOexception waiting for requests in event-driven server");
+				break;
+			}
+			if (!listenSelector.isOpen())
+				break;
+			listenSelector.selectedKeys().clear();
+
+			acceptRequests(directory);
+		}
+		System.out.printf("Stopped listening on port %d.\n", port);
+	}
+
+	/**
+	 * Drains every request currently queued on the well-known port.
+	 */
+	private void acceptRequests(String directory) {
+		while (acceptNewConnections) {
+			byte data[] = new byte[PacketUtil.BUF_SIZE];
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			SocketAddress source;
+			try {
+				source = listenChannel.receive(buf);
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				System.out.println("IOexception listening for packets in event-driven server: " + e.getMessage());
+				return;
+			}
+			if (source == null)
+				return;
+
+			DatagramPacket reqPacket = new DatagramPacket(data, buf.position(), 
+					((InetSocketAddress) source).getAddress(), ((InetSocketAddress) source).getPort());
+
+			// a client retransmits its request if the reply is slow, its session will answer it
+			if (sessions.get(reqPacket.getAddress(), reqPacket.getPort()) != null) {
+				sessions.duplicateDropped();
+				Log.summary("Duplicate request from %s:%d ignored, its transfer is in progress",
+						reqPacket.getAddress().getHostAddress(), reqPacket.getPort());
+				continue;
+			}
+
+			TransferSession session;
+			try {
+				session = createSession(reqPacket, directory);
+			} catch (IOException e) {
+				Log.summary("Couldn't open channel for request: %s", e.getMessage());
+				continue;
+			}
+			if (session == null)
+				continue;
+			// only this thread adds sessions, so nothing was added since the check above
+			sessions.putIfAbsent(reqPacket.getAddress(), reqPacket.getPort(), session);
+			session.setSessionTable(sessions);
+
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			Log.summary("Request received. Assigning %s to %s", session.getName(), loop.getName());
+			loop.submit(session);
+		}
+	}
+
+	/**
+	 * Creates the session type matching the request's opcode, or replies with an
+	 * ERROR packet and returns null if the packet isn't a request.
+	 */
+	private TransferSession createSession(DatagramPacket reqPacket, String directory) throws IOException {
+		byte[] data = reqPacket.getData();
+		if (data[1] == PacketUtil.READ_FLAG)
+			return new ReadSession(reqPacket, directory);
+		else if (data[1] == PacketUtil.WRITE_FLAG)
+			return new WriteSession(reqPacket, directory);
+
+		Log.summary("ERROR: (%d) expected a request packet", PacketUtil.ERR_ILLEGAL_OP);
+		DatagramPacket errPacket = new PacketUtil(reqPacket.getAddress(), reqPacket.getPort())
+				.formErrorPacket(PacketUtil.ERR_ILLEGAL_OP, "expected a request packet");
+		PacketUtil.sendPacketToProcess("", listenChannel, errPacket, ProcessType.CLIENT, "ERROR");
+		return null;
+	}
+
+	/**
+	 * Stops accepting requests and waits for every in-progress transfer to finish.
+	 */
+	public void finishProcessing() {
+		acceptNewConnections = false;
+		cleanup();
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+			try {
+				loop.join();
+			} catch (InterruptedException e) {
+				System.out.printf("%s was interrupted and did not finish processing\n", loop.getName());
+			}
+		}
+	}
+
+	/**
+	 * Returns the port requests are received on.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public SessionTable<TransferSession> getSessionTable() {
+		return sessions;
+	}
+
+	/**
+	 * Closes the well-known port.
+	 */
+	public void cleanup() {
+		try {
+			listenSelector.close();
+			listenChannel.close();
+		} catch (IOException e) {
+			// shutting down anyway
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * ReadSession.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import tftp.exception.ErrorReceivedException;
+import tftp.exception.TFTPException;
+import tftp.net.BlockNumber;
+import tftp.net.PacketUtil;
+import tftp.net.TransferOptions;
+import tftp.server.thread.BlockCache;
+import tftp.server.thread.CachedBlockSource;
+
+/**
+ * Non-blocking equivalent of ReadHandlerThread + Sender. Sends the requested file
+ * one DATA block at a time, advancing whenever the matching ACK arrives.
+ */
+public class ReadSession extends TransferSession {
+
+	private CachedBlockSource source = null;
+	private byte[] sendBuf;
+	private long blockNum = 1;			// 64-bit so the transfer can go on past block 65535
+	private int rolloverBlock;
+	private boolean lastBlockSent = false;
+
+	public ReadSession(DatagramPacket reqPacket, String directory) throws IOException {
+		super("NioReadSession-" + id++, reqPacket, directory);
+	}
+
+	@Override
+	public void start() {
+
+		// parse the request packet to ensure it is correct before starting the transfer
+		TransferOptions options;
+		try {
+			filename = packetParser.parseRRQPacket(reqPacket);
+			options = packetParser.getRequestOptions().negotiate();
+			// this engine runs transfers in lock-step, so leaving windowsize out of the OACK declines it
+			options.remove(TransferOptions.WINDOWSIZE);
+		} catch (TFTPException e) {
+			abort(e);
+			return;
+		}
+
+		File f = new File(directory.concat("\\" + filename));
+		if (!f.exists()) {
+			abort(new TFTPException("SERVER: FILE(" + filename + ") NOT FOUND", PacketUtil.ERR_FILE_NOT_FOUND));
+			return;
+		}
+		if (!Files.isReadable(Paths.get(directory.concat("\\" + filename)))) {
+			abort(new TFTPException("ACCESS VIOLATION", PacketUtil.ERR_ACCESS_VIOLATION));
+			return;
+		}
+
+		// the version of the file opened now is the one sent, even if an upload replaces it meanwhile
+		try {
+			source = new CachedBlockSource(f, options.getBlockSize(), BlockCache.getInstance());
+		} catch (TFTPException e) {
+			abort(e);
+			return;
+		}
+
+		// answer tsize with the size of the file
+		if (options.has(TransferOptions.TSIZE))
+			options.setTransferSize(source.getLength());
+
+		sendBuf = new byte[options.getBlockSize()];
+		rolloverBlock = options.getRollover();
+		if (options.getTimeout() > 0)
+			timer.setFixedTimeout(options.getTimeout());
+		packetParser.setRollover(rolloverBlock);
+		
+		// options must be acknowledged by the client (ACK 0) before DATA 1 is sent
+		if (!options.isEmpty()) {
+			blockNum = 0;
+			sendAndWait(packetUtil.formOackPacket(options), "OACK");
+			return;
+		}
+		
+		sendNextBlock();
+	}
+
+	/**
+	 * Reads the next block of the file and sends it as a DATA packet.
+	 */
+	private void sendNextBlock() {
+		int bytesRead;
+		try {
+			bytesRead = source.readBlock(blockNum, sendBuf, 0);
+		} catch (TFTPException e) {
+			abort(e);
+			return;
+		}
+		if (bytesRead < sendBuf.length)
+			lastBlockSent = true;
+
+		sendAndWait(packetUtil.formDataPacket(sendBuf, bytesRead, BlockNumber.toWire(blockNum, rolloverBlock)), "DATA");
+	}
+
+	@Override
+	protected void handlePacket(DatagramPacket packet) {
+		boolean duplicate;
+		try {
+			duplicate = packetParser.parseAckPacket(packet, blockNum);
+		} catch (ErrorReceivedException e) {
+			// the other side sent an error packet, don't send a response
+			printToConsole(String.format("ERROR packet received from client! (%d) %s", e.getErrorCode(), e.getMessage()));
+			finish();
+			return;
+		} catch (TFTPException e) {
+			printToConsole(String.format("ERROR: (%d) %s", e.getErrorCode(), e.getMessage()));
+			sendError(e.getErrorCode(), e.getMessage(), packet.getAddress(), packet.getPort());
+			// keep waiting for the right ACK if the packet came from an unknown TID
+			if (e.getErrorCode() != PacketUtil.ERR_UNKNOWN_TID)
+				finish();
+			return;
+		}
+
+		// duplicate ACKs are ignored, the timeout will take care of lost DATA
+		if (duplicate)
+			return;
+		responseReceived();
+
+		if (lastBlockSent) {
+			printToConsole("Finished read request for file: " + filename);
+			finish();
+			return;
+		}
+
+		blockNum++;
+		sendNextBlock();
+	}
+
+	@Override
+	protected void handleFinalTimeout() {
+		printToConsole(String.format("ERROR: (%d) No response received after %d retries, aborting request",
+				PacketUtil.ERR_UNDEFINED, timer.getRetries()));
+		finish();
+	}
+
+	@Override
+	protected void releaseResources() {
+		if (source != null)
+			source.close();
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * TimerWheel.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel holding the retransmit, give-up and dally deadlines of
+ * every session on an EventLoop. Time is cut into ticks, and each deadline goes
+ * in the bucket of its tick (modulo the number of buckets), so scheduling,
+ * rescheduling and cancelling a timeout take constant time however many sessions
+ * there are. Expiring only looks at the buckets of the ticks that have passed.
+ *
+ * Each session keeps one Timeout and moves it whenever its deadline changes, so
+ * sending a packet doesn't allocate anything. Deadlines fire within one tick of
+ * being due. Not thread-safe: a wheel belongs to the thread of its EventLoop.
+ */
+public class TimerWheel {
+
+	public static final long DEFAULT_TICK_MS = 10;
+	public static final int DEFAULT_BUCKETS = 512;		// a turn of the wheel is 5.12 s with the default tick
+
+	/**
+	 * Something to do when a timeout expires.
+	 */
+	public interface Task {
+		void expired(long now);
+	}
+
+	private final long tickMs;
+	private final int mask;
+	private final Timeout[] buckets;	// head of each bucket's list
+	private long currentTick;			// earliest tick that may still have timeouts due
+	private int size = 0;
+	private final List<Timeout> due = new ArrayList<Timeout>();
+
+	public TimerWheel() {
+		this(DEFAULT_TICK_MS, DEFAULT_BUCKETS);
+	}
+
+	/**
+	 * @param tickMs	the length of a tick, i.e. how late a timeout may fire
+	 * @param buckets	the number of buckets, rounded up to a power of 2
+	 */
+	public TimerWheel(long tickMs, int buckets) {
+		this.tickMs = tickMs;
+		int n = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+		this.buckets = new Timeout[n];
+		this.mask = n - 1;
+		this.currentTick = System.currentTimeMillis() / tickMs;
+	}
+
+	/**
+	 * Creates a timeout for a task. It isn't scheduled until schedule is called.
+	 */
+	public Timeout newTimeout(Task task) {
+		return new Timeout(task);
+	}
+
+	/**
+	 * Schedules a timeout to expire at a deadline, moving it if it was already scheduled.
+	 *
+	 *  @param deadline		when to expire, in milliseconds (System.currentTimeMillis)
+	 */
+	public void schedule(Timeout timeout, long deadline) {
+		if (timeout.isScheduled())
+			unlink(timeout);
+		timeout.deadline = deadline;
+		// a deadline in a tick already passed is picked up by the next call to expire
+		timeout.tick = Math.max(deadline / tickMs, currentTick);
+		int bucket = (int) (timeout.tick & mask);
+		timeout.bucket = bucket;
+		timeout.prev = null;
+		timeout.next = buckets[bucket];
+		if (timeout.next != null)
+			timeout.next.prev = timeout;
+		buckets[bucket] = timeout;
+		size++;
+	}
+
+	/**
+	 * Unschedules a timeout. Does nothing if it isn't scheduled.
+	 */
+	public void cancel(Timeout timeout) {
+		if (timeout.isScheduled())
+			unlink(timeout);
+	}
+
+	/**
+	 * Runs the task of every timeout whose deadline has passed. Timeouts are
+	 * unscheduled before their task runs, so a task may schedule its timeout again.
+	 *
+	 *  @return		the number of timeouts that expired
+	 */
+	public int expire(long now) {
+		long nowTick = now / tickMs;
+		// a full turn of the wheel covers every bucket, there's no need to go round again
+		long from = Math.max(currentTick, nowTick - mask);
+		for (long tick = from; tick <= nowTick && size > 0; tick++) {
+			Timeout t = buckets[(int) (tick & mask)];
+			while (t != null) {
+				Timeout next = t.next;
+				// timeouts for a later turn of the wheel share the bucket
+				if (t.deadline <= now) {
+					unlink(t);
+					due.add(t);
+				}
+				t = next;
+			}
+		}
+		// the current tick isn't over, timeouts may still be scheduled in it
+		currentTick = nowTick;
+
+		int expired = due.size();
+		for (int i = 0; i < expired; i++)
+			due.get(i).task.expired(now);
+		due.clear();
+		return expired;
+	}
+
+	/**
+	 * Returns how long to wait until the next timeout may expire, at least 1 ms, or 0
+	 * if nothing is scheduled (wait for something else to happen).
+	 */
+	public long nextWakeup(long now) {
+		if (size == 0)
+			return 0;
+		// the nearest deadline is in the first bucket holding one for the tick it stands for
+		for (long tick = currentTick; tick <= currentTick + mask; tick++) {
+			long earliest = Long.MAX_VALUE;
+			for (Timeout t = buckets[(int) (tick & mask)]; t != null; t = t.next) {
+				if (t.tick <= tick)
+					earliest = Math.min(earliest, t.deadline);
+			}
+			if (earliest != Long.MAX_VALUE)
+				return Math.max(1, earliest - now);
+		}
+		// every timeout is at least a turn of the wheel away, look again after one turn
+		return Math.max(1, (currentTick + mask + 1) * tickMs - now);
+	}
+
+	/**
+	 * Returns the number of scheduled timeouts.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			buckets[timeout.bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		size--;
+	}
+
+	/**
+	 * A task's place in the wheel, reused each time the task is scheduled.
+	 */
+	public static final class Timeout {
+
+		private final Task task;
+		private long deadline;
+		private long tick;
+		private int bucket = -1;		// -1 when not scheduled
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Task task) {
+			this.task = task;
+		}
+
+		public boolean isScheduled() {
+			return bucket >= 0;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+	}
+}
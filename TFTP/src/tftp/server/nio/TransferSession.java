@@ -0,0 +1,263 @@
+/*
+ * TransferSession.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.nio;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import tftp.exception.TFTPException;
+import tftp.log.Log;
+import tftp.net.PacketParser;
+import tftp.net.PacketUtil;
+import tftp.net.ProcessType;
+import tftp.net.RetransmitTimer;
+import tftp.server.thread.FileLeaseTable;
+import tftp.server.thread.SessionTable;
+
+/**
+ * A non-blocking state machine for a single TFTP transfer handled by the event-driven
+ * server engine. A session never blocks: it reacts to packets delivered by its
+ * EventLoop and to timeouts detected by that loop. Its current deadline is kept in
+ * the loop's TimerWheel.
+ */
+public abstract class TransferSession implements TimerWheel.Task {
+
+	/**
+	 * The initial request packet.
+	 */
+	protected DatagramPacket reqPacket;
+
+	/**
+	 * A channel which is created and used only for the request to which this session is assigned.
+	 * Its local port is the server's TID for this transfer.
+	 */
+	protected DatagramChannel channel;
+
+	/**
+	 * The last DATA/ACK packet sent, kept so it can be retransmitted on timeout.
+	 */
+	protected DatagramPacket lastSent;
+
+	protected InetAddress clientIP;
+	protected int clientPort;
+
+	protected PacketUtil packetUtil;
+	protected PacketParser packetParser;
+	protected FileLeaseTable leases;
+	protected RetransmitTimer timer = new RetransmitTimer();
+	protected String directory;
+	protected String filename = null;
+
+	private String name;
+	private String label;
+	private long deadline;		// time (ms) at which the current wait times out
+	private EventLoop loop = null;
+	private TimerWheel.Timeout timeout = null;	// the deadline's place in the loop's timer wheel
+	private long sent = 0;		// number of packets sent with sendAndWait, used to time the responses
+	private boolean done = false;
+	private SessionTable<TransferSession> sessions = null;
+
+	protected static int id = 1;
+
+	/**
+	 * Constructs a TransferSession and opens the channel to be used for the transfer.
+	 *
+	 * @param  name			a name identifying this session in console output
+	 * @param  reqPacket	the packet containing the client's request
+	 * @param  directory	the server directory files are read from / written to
+	 * @throws IOException	if the transfer channel could not be opened
+	 */
+	protected TransferSession(String name, DatagramPacket reqPacket, String directory) throws IOException {
+		this.name = name;
+		this.label = name + ": ";
+		this.reqPacket = reqPacket;
+		this.directory = directory;
+		clientIP = reqPacket.getAddress();
+		clientPort = reqPacket.getPort();
+
+		packetUtil = new PacketUtil(clientIP, clientPort);
+		packetParser = new PacketParser(clientIP, clientPort);
+		leases = FileLeaseTable.getInstance();
+
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(0));
+		channel.configureBlocking(false);
+	}
+
+	/**
+	 * Validates the request and sends the first packet of the transfer.
+	 * Called once by the owning EventLoop after the channel is registered.
+	 */
+	public abstract void start();
+
+	/**
+	 * Handles a packet received on this session's channel.
+	 *
+	 * @param packet	the received packet
+	 */
+	protected abstract void handlePacket(DatagramPacket packet);
+
+	/**
+	 * Called when the wait for the next packet has expired and all retransmissions
+	 * have been used up, or when the session was waiting without retransmitting (e.g. dallying).
+	 */
+	protected abstract void handleFinalTimeout();
+
+	/**
+	 * Releases any file locks and streams held by this session.
+	 */
+	protected abstract void releaseResources();
+
+	/**
+	 * Hands this session to the EventLoop that will run it. Called by the loop before start.
+	 */
+	void attach(EventLoop loop) {
+		this.loop = loop;
+		timeout = loop.getTimers().newTimeout(this);
+	}
+
+	@Override
+	public void expired(long now) {
+		checkTimeout(now);
+	}
+
+	/**
+	 * Delivers a received packet to this session.
+	 */
+	public void onPacket(DatagramPacket packet) {
+		if (done)
+			return;
+		PacketUtil.printReceivedPacket(label, packet);
+		handlePacket(packet);
+	}
+
+	/**
+	 * Checks whether the current wait has timed out, retransmitting the last packet if so.
+	 *
+	 * @param now	the current time in milliseconds
+	 */
+	public void checkTimeout(long now) {
+		if (done)
+			return;
+		if (now < deadline) {
+			setDeadline(deadline); // not due yet, wait for it again
+			return;
+		}
+
+		if (lastSent == null || !timer.backOff()) {
+			handleFinalTimeout();
+			return;
+		}
+
+		printToConsole("Error: Timed out while waiting for response, resending...");
+		PacketUtil.sendPacketToProcess(label, channel, lastSent, ProcessType.CLIENT, PacketUtil.getPacketType(lastSent).name());
+		setDeadline(now + timer.getTimeout());
+	}
+
+	/**
+	 * Sends a DATA/ACK/OACK packet and starts waiting for the response to it.
+	 */
+	protected void sendAndWait(DatagramPacket packet, String packetStr) {
+		PacketUtil.sendPacketToProcess(label, channel, packet, ProcessType.CLIENT, packetStr);
+		lastSent = packet;
+		timer.packetSent(++sent);
+		setDeadline(System.currentTimeMillis() + timer.getTimeout());
+	}
+
+	/**
+	 * Sends the last packet again, e.g. in answer to a duplicate, without restarting the wait.
+	 */
+	protected void resendLastPacket() {
+		PacketUtil.sendPacketToProcess(label, channel, lastSent, ProcessType.CLIENT, PacketUtil.getPacketType(lastSent).name());
+		timer.packetRetransmitted();
+	}
+
+	/**
+	 * Records that the packet we were waiting for arrived, so its round trip time
+	 * can be measured. Called by subclasses for packets that advance the transfer.
+	 */
+	protected void responseReceived() {
+		timer.responseReceived(sent);
+	}
+
+	/**
+	 * Starts a wait during which nothing will be retransmitted (used for the final dally).
+	 */
+	protected void waitWithoutRetransmit() {
+		lastSent = null;
+		setDeadline(System.currentTimeMillis() + timer.getDallyTimeout());
+	}
+
+	private void setDeadline(long deadline) {
+		this.deadline = deadline;
+		if (!done && loop != null)
+			loop.getTimers().schedule(timeout, deadline);
+	}
+
+	/**
+	 * Sends an ERROR packet to the given destination.
+	 */
+	protected void sendError(int errCode, String errMsg, InetAddress ip, int port) {
+		DatagramPacket errPacket = packetUtil.formErrorPacket(errCode, errMsg, ip, port);
+		PacketUtil.sendPacketToProcess(label, channel, errPacket, ProcessType.CLIENT, "ERROR");
+	}
+
+	/**
+	 * Sends an ERROR packet to the client and ends the session.
+	 */
+	protected void abort(TFTPException e) {
+		printToConsole(String.format("ERROR: (%d) %s", e.getErrorCode(), e.getMessage()));
+		sendError(e.getErrorCode(), e.getMessage(), clientIP, clientPort);
+		finish();
+	}
+
+	/**
+	 * Marks this session as finished and closes its resources.
+	 */
+	protected void finish() {
+		if (done)
+			return;
+		done = true;
+		if (loop != null)
+			loop.sessionFinished(this, timeout);
+		if (sessions != null)
+			sessions.remove(clientIP, clientPort, this);
+		releaseResources();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			printToConsole("IOException closing transfer channel: " + e.getMessage());
+		}
+	}
+
+	public boolean isDone() { return done; }
+
+	/**
+	 * Sets the table this session was added to, so it is removed again once the transfer is over.
+	 */
+	void setSessionTable(SessionTable<TransferSession> table) { sessions = table; }
+
+	public long getDeadline() { return deadline; }
+
+	public DatagramChannel getChannel() { return channel; }
+
+	public String getName() { return name; }
+
+	protected String getLabel() { return label; }
+
+	/**
+	 * Logs a summary message which is prepended with this session's name.
+	 */
+	protected void printToConsole(String message) {
+		Log.summary("%s: %s", name, message);
+	}
+}
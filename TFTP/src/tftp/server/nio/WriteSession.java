@@ -0,0 +1,225 @@
+/*
+ * WriteSession.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.nio;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+import tftp.exception.ErrorReceivedException;
+import tftp.exception.TFTPException;
+import tftp.net.BlockNumber;
+import tftp.net.DiskSpaceLedger;
+import tftp.net.PacketType;
+import tftp.net.PacketUtil;
+import tftp.net.ProcessType;
+import tftp.net.TransferOptions;
+import tftp.server.thread.FileLeaseTable;
+import tftp.server.thread.Upload;
+
+/**
+ * Non-blocking equivalent of WriteHandlerThread + Receiver. Acknowledges each DATA
+ * block as it arrives and dallies after the final ACK in case it was lost.
+ */
+public class WriteSession extends TransferSession {
+
+	private FileOutputStream fileWriter = null;
+	private File file;
+	private long blockNum = 0;			// last block acknowledged (64-bit, the wire number rolls over)
+	private int rolloverBlock;
+	private boolean dallying = false;
+	private FileLeaseTable.Lease lease = null;
+	private Upload upload = null;		// the file is received next to the one it replaces
+	private DiskSpaceLedger.Reservation reservation = null;
+	private int blockSize;
+
+	public WriteSession(DatagramPacket reqPacket, String directory) throws IOException {
+		super("NioWriteSession-" + id++, reqPacket, directory);
+	}
+
+	@Override
+	public void start() {
+
+		// parse the request packet to ensure it is correct before starting the transfer
+		TransferOptions options;
+		try {
+			filename = packetParser.parseWRQPacket(reqPacket);
+			options = packetParser.getRequestOptions().negotiate();
+			// this engine runs transfers in lock-step, so leaving windowsize out of the OACK declines it
+			options.remove(TransferOptions.WINDOWSIZE);
+		} catch (ErrorReceivedException e) {
+			printToConsole("ERROR packet received from client!");
+			finish();
+			return;
+		} catch (TFTPException e) {
+			abort(e);
+			return;
+		}
+
+		lease = leases.tryAcquireWrite(filename);
+		if (lease == null) {
+			abort(new TFTPException("ACCESS VIOLATION, File is locked, can not access", PacketUtil.ERR_ACCESS_VIOLATION));
+			return;
+		}
+
+		file = new File(directory.concat("\\" + filename));
+		if (file.exists() && !file.canWrite()) {
+			abort(new TFTPException("ACCESS VIOLATION: No Write Permission of Server side File(" + filename + ")",
+					PacketUtil.ERR_ACCESS_VIOLATION));
+			return;
+		}
+
+		// if the client told us the file size (tsize), reserve the space now so a full disk
+		// is reported before the transfer starts; otherwise space is reserved as the file grows
+		try {
+			reservation = DiskSpaceLedger.getInstance().reserve(file, Math.max(options.getTransferSize(), 0));
+		} catch (TFTPException e) {
+			abort(e);
+			return;
+		}
+
+		try {
+			upload = new Upload(file, lease);
+			fileWriter = new FileOutputStream(upload.getTempFile());
+		} catch (TFTPException e) {
+			abort(e);
+			return;
+		} catch (FileNotFoundException e) {
+			abort(new TFTPException(e.getMessage(), PacketUtil.ERR_UNDEFINED));
+			return;
+		}
+
+		blockSize = options.getBlockSize();
+		packetParser.setBlockSize(blockSize);
+		rolloverBlock = options.getRollover();
+		if (options.getTimeout() > 0)
+			timer.setFixedTimeout(options.getTimeout());
+		// the lease lasts as long as the upload keeps going
+		lease.renewWith(timer);
+		packetParser.setRollover(rolloverBlock);
+		
+		// request is good, send ACK 0 (or an OACK if the client asked for options we support)
+		if (options.isEmpty())
+			sendAndWait(lastAck(), "ACK");
+		else
+			sendAndWait(packetUtil.formOackPacket(options), "OACK");
+	}
+
+	@Override
+	protected void handlePacket(DatagramPacket packet) {
+
+		if (dallying) {
+			// the final ACK was lost if the client retransmits its last DATA
+			if (PacketUtil.getPacketType(packet) == PacketType.DATA)
+				PacketUtil.sendPacketToProcess(getLabel(), channel, lastAck(), ProcessType.CLIENT, "ACK");
+			return;
+		}
+
+		boolean duplicate;
+		try {
+			duplicate = packetParser.parseDataPacket(packet, blockNum + 1);
+		} catch (ErrorReceivedException e) {
+			// the other side sent an error packet, don't send a response
+			printToConsole(String.format("ERROR packet received from client! (%d) %s", e.getErrorCode(), e.getMessage()));
+			finish();
+			return;
+		} catch (TFTPException e) {
+			printToConsole(String.format("ERROR: (%d) %s", e.getErrorCode(), e.getMessage()));
+			sendError(e.getErrorCode(), e.getMessage(), packet.getAddress(), packet.getPort());
+			// keep waiting for the right DATA if the packet came from an unknown TID
+			if (e.getErrorCode() != PacketUtil.ERR_UNKNOWN_TID)
+				finish();
+			return;
+		}
+
+		if (duplicate) {
+			// re-acknowledge the last block we wrote
+			resendLastPacket();
+			return;
+		}
+		responseReceived();
+
+		int dataLength = packet.getLength() - 4;
+		try {
+			reservation.consume(dataLength);
+		} catch (TFTPException e) {
+			abort(new TFTPException("DISK FULL", PacketUtil.ERR_DISK_FULL));
+			return;
+		}
+		try {
+			fileWriter.write(packet.getData(), 4, dataLength);
+		} catch (IOException e) {
+			abort(new TFTPException(e.getMessage(), PacketUtil.ERR_UNDEFINED));
+			return;
+		}
+
+		blockNum++;
+		boolean done = packet.getLength() < blockSize + 4;
+		if (done) {
+			// publish the new file before the final ACK, so the client is only told
+			// the transfer succeeded once readers get the new file
+			try {
+				fileWriter.close();
+				fileWriter = null;
+				upload.publish();
+			} catch (IOException e) {
+				abort(new TFTPException(e.getMessage(), PacketUtil.ERR_UNDEFINED));
+				return;
+			} catch (TFTPException e) {
+				abort(e);
+				return;
+			}
+		}
+		sendAndWait(lastAck(), "ACK");
+
+		if (done) {
+			// listen for retransmitted DATA in case final ACK was lost
+			dallying = true;
+			waitWithoutRetransmit();
+			printToConsole("Finished write request for file: " + filename);
+		}
+	}
+
+	private DatagramPacket lastAck() {
+		return packetUtil.formAckPacket(BlockNumber.toWire(blockNum, rolloverBlock));
+	}
+
+	@Override
+	protected void handleFinalTimeout() {
+		if (!dallying)
+			printToConsole(String.format("ERROR: (%d) No response received after %d retries, aborting request",
+					PacketUtil.ERR_UNDEFINED, timer.getRetries()));
+		finish();
+	}
+
+	private void closeFileWriter() {
+		if (fileWriter == null)
+			return;
+		try {
+			fileWriter.flush();
+			fileWriter.close();
+		} catch (IOException e) {
+			printToConsole("Error closing FileOutputStream: " + e.getMessage());
+		}
+		fileWriter = null;
+	}
+
+	@Override
+	protected void releaseResources() {
+		closeFileWriter();
+		if (reservation != null)
+			reservation.release();
+		if (upload != null)
+			upload.discard(); // unless it was published
+		if (lease != null)
+			lease.release();
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * BlockCache.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tftp.exception.TFTPException;
+import tftp.net.PacketUtil;
+
+/**
+ * Keeps the blocks of recently read files in memory, so a file requested by many
+ * clients (e.g. a boot image) is read from disk once rather than once per transfer.
+ *
+ * Blocks are keyed by file, file version (see FileMetadataCache), block size and
+ * block index, so blocks of a file that has since been rewritten are never served.
+ * The cache holds at most a fixed number of bytes, evicted with a segmented LRU
+ * policy: a block starts out on probation and is only protected once it is read a
+ * second time, so a single large transfer passing through can't flush the blocks
+ * of the files that are requested over and over.
+ *
+ * Loads are single-flight: when several transfers miss the same block at once
+ * (e.g. hundreds of clients starting on the same boot image), only the first one
+ * reads it from disk and the others wait for that read and share its result,
+ * whether or not the block then fits in the cache.
+ */
+public class BlockCache {
+
+	public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+	// share of the capacity set aside for blocks that have been read more than once
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private static BlockCache instance = null;
+
+	// both segments are kept in access order, least recently used first
+	private LinkedHashMap<Key, byte[]> probation;
+	private LinkedHashMap<Key, byte[]> protectedSegment;
+	private long probationBytes = 0;
+	private long protectedBytes = 0;
+	private long capacity = DEFAULT_CAPACITY;
+	// blocks being read from disk right now, so other transfers wait rather than read them again
+	private HashMap<Key, Load> loading = new HashMap<Key, Load>();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Reads a block that isn't cached, e.g. from the file.
+	 */
+	public interface Loader {
+		byte[] load(long blockIndex) throws TFTPException;
+	}
+
+	public static synchronized BlockCache getInstance() {
+		if (instance == null)
+			instance = new BlockCache();
+		return instance;
+	}
+
+	private BlockCache() {
+		probation = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+		protectedSegment = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+	}
+
+	/**
+	 * Sets the most bytes of file data the cache may hold. 0 disables the cache.
+	 */
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns a cached block, or null if it isn't cached. The returned array
+	 * must not be modified.
+	 */
+	public synchronized byte[] get(File file, long version, int blockSize, long blockIndex) {
+		byte[] block = lookup(new Key(file.getAbsolutePath(), version, blockSize, blockIndex));
+		if (block == null)
+			misses.incrementAndGet();
+		return block;
+	}
+
+	/**
+	 * Returns a block, loading it if it isn't cached. If another transfer is already
+	 * loading the same block, this waits for that load instead of starting another.
+	 * The returned array must not be modified.
+	 *
+	 *  @param loader	reads the block if this caller has to load it
+	 *  @throws TFTPException	if this caller's load failed
+	 */
+	public byte[] getOrLoad(File file, long version, int blockSize, long blockIndex, Loader loader) throws TFTPException {
+		Key key = new Key(file.getAbsolutePath(), version, blockSize, blockIndex);
+		Load load;
+		boolean leader = false;
+
+		synchronized (this) {
+			byte[] block = lookup(key);
+			if (block != null)
+				return block;
+			load = loading.get(key);
+			if (load == null) {
+				load = new Load();
+				loading.put(key, load);
+				leader = true;
+				misses.incrementAndGet();
+			} else {
+				coalesced.incrementAndGet();
+			}
+		}
+
+		if (!leader) {
+			byte[] block = load.await();
+			if (block != null)
+				return block;
+			// the load failed, so try it ourselves (a failure on our side is reported to our client)
+			return loader.load(blockIndex);
+		}
+
+		byte[] block = null;
+		try {
+			block = loader.load(blockIndex);
+			return block;
+		} finally {
+			synchronized (this) {
+				loading.remove(key);
+				if (block != null)
+					put(key, block);
+			}
+			load.complete(block);
+		}
+	}
+
+	// returns a cached block (moving it to the protected segment if it was on probation), or null
+	private byte[] lookup(Key key) {
+		byte[] block = protectedSegment.get(key);
+		if (block == null) {
+			block = probation.remove(key);
+			if (block == null)
+				return null;
+			// read again while on probation, so it is worth keeping
+			probationBytes -= block.length;
+			protectedSegment.put(key, block);
+			protectedBytes += block.length;
+			demote();
+		}
+		hits.incrementAndGet();
+		return block;
+	}
+
+	/**
+	 * Adds a block read from disk. The array must not be modified afterwards.
+	 */
+	public synchronized void put(File file, long version, int blockSize, long blockIndex, byte[] block) {
+		put(new Key(file.getAbsolutePath(), version, blockSize, blockIndex), block);
+	}
+
+	private void put(Key key, byte[] block) {
+		if (block.length > capacity)
+			return;
+		if (protectedSegment.containsKey(key) || probation.containsKey(key))
+			return; // another transfer got there first
+		probation.put(key, block);
+		probationBytes += block.length;
+		evict();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of misses that waited for another transfer's load instead of reading the disk.
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of bytes of file data in the cache.
+	 */
+	public synchronized long getSize() {
+		return probationBytes + protectedBytes;
+	}
+
+	// moves the least recently used protected blocks back to probation while the protected segment is over its share
+	private void demote() {
+		long limit = (long) (capacity * PROTECTED_SHARE);
+		Iterator<Map.Entry<Key, byte[]>> it = protectedSegment.entrySet().iterator();
+		while (protectedBytes > limit && it.hasNext()) {
+			Map.Entry<Key, byte[]> eldest = it.next();
+			it.remove();
+			protectedBytes -= eldest.getValue().length;
+			probation.put(eldest.getKey(), eldest.getValue());
+			probationBytes += eldest.getValue().length;
+		}
+		evict();
+	}
+
+	// evicts least recently used blocks, taking those on probation first, until the cache fits its capacity
+	private void evict() {
+		Iterator<Map.Entry<Key, byte[]>> it = probation.entrySet().iterator();
+		while (probationBytes + protectedBytes > capacity && it.hasNext()) {
+			probationBytes -= it.next().getValue().length;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+		it = protectedSegment.entrySet().iterator();
+		while (probationBytes + protectedBytes > capacity && it.hasNext()) {
+			protectedBytes -= it.next().getValue().length;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	// a block being loaded by one transfer, which the others missing it wait on
+	private static class Load {
+
+		private boolean done = false;
+		private byte[] block = null;	// null if the load failed
+
+		private synchronized void complete(byte[] block) {
+			this.block = block;
+			done = true;
+			notifyAll();
+		}
+
+		private synchronized byte[] await() throws TFTPException {
+			try {
+				while (!done)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TFTPException("Interrupted while reading file", PacketUtil.ERR_UNDEFINED);
+			}
+			return block;
+		}
+	}
+
+	private static class Key {
+
+		private final String path;
+		private final long version;
+		private final int blockSize;
+		private final long index;
+
+		private Key(String path, long version, int blockSize, long index) {
+			this.path = path;
+			this.version = version;
+			this.blockSize = blockSize;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return index == other.index && version == other.version
+					&& blockSize == other.blockSize && path.equals(other.path);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = path.hashCode();
+			h = 31 * h + (int) (version ^ (version >>> 32));
+			h = 31 * h + blockSize;
+			h = 31 * h + (int) (index ^ (index >>> 32));
+			return h;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * CachedBlockSource.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+import java.io.File;
+import java.util.Arrays;
+
+import tftp.exception.TFTPException;
+import tftp.net.BlockSource;
+import tftp.net.BlockSources;
+
+/**
+ * Reads the blocks of a file through the server's BlockCache. The file is opened
+ * when the transfer starts and kept open, so the transfer sends the version it
+ * started with even if an upload replaces the file midway. It is only read from
+ * if this transfer has to load a block: one that isn't cached and that no other
+ * transfer is loading already.
+ */
+public class CachedBlockSource implements BlockSource {
+
+	private File file;
+	private int blockSize;
+	private long version;
+	private long length;			// size of the version being sent
+	private BlockCache cache;
+	private BlockSource fileSource;
+	private BlockCache.Loader loader = new BlockCache.Loader() {
+		@Override
+		public byte[] load(long blockIndex) throws TFTPException {
+			return loadBlock(blockIndex);
+		}
+	};
+
+	/**
+	 * @param file			the file to send
+	 * @param blockSize		the negotiated block size
+	 * @param cache			the cache to read blocks from and add blocks to
+	 * @throws TFTPException	with ERR_FILE_NOT_FOUND if the file can't be opened
+	 */
+	public CachedBlockSource(File file, int blockSize, BlockCache cache) throws TFTPException {
+		this.file = file;
+		this.blockSize = blockSize;
+		this.cache = cache;
+		open();
+	}
+
+	// opens the file, finding out which version was opened: the version is read before and
+	// after opening, and if an upload was published in between the file is opened again
+	private void open() throws TFTPException {
+		FileMetadataCache metadata = FileMetadataCache.getInstance();
+		while (true) {
+			long before = metadata.awaitVersion(file);
+			BlockSource source = BlockSources.open(file, blockSize);
+			FileMetadataCache.Metadata opened = metadata.get(file);
+			if (opened.getVersion() == before && metadata.getVersion(file) == before) {
+				fileSource = source;
+				version = before;
+				length = opened.getLength();
+				return;
+			}
+			source.close();
+		}
+	}
+
+	/**
+	 * Returns the size of the version of the file being sent, e.g. to answer tsize.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public int readBlock(long blockIndex, byte[] buf, int offset) throws TFTPException {
+		byte[] block = cache.getOrLoad(file, version, blockSize, blockIndex, loader);
+		System.arraycopy(block, 0, buf, offset, block.length);
+		return block.length;
+	}
+
+	// reads a block from the file, for the cache to share with any transfer waiting on it
+	private byte[] loadBlock(long blockIndex) throws TFTPException {
+		byte[] buf = new byte[blockSize];
+		int n = fileSource.readBlock(blockIndex, buf, 0);
+		return n == blockSize ? buf : Arrays.copyOf(buf, n);
+	}
+
+	@Override
+	public void close() {
+		fileSource.close();
+	}
+}
@@ -0,0 +1,15 @@
+/*
+ * ExecutionMode.java
+ * 
+ * Authors: TEAM 1
+ * 
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+// the kinds of threads request handlers can be run on
+public enum ExecutionMode {
+	PLATFORM,	// each WorkerThread is started as its own OS thread
+	VIRTUAL		// each WorkerThread is run on a Java virtual thread (Java 21+)
+}
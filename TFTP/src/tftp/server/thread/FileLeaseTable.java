@@ -0,0 +1,251 @@
+/*
+ * FileLeaseTable.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tftp.net.RetransmitTimer;
+
+/**
+ * Keeps track of which files are being read or written, so a file is never
+ * written while it is being read or written by another transfer. Any number of
+ * transfers may read a file at once.
+ *
+ * Acquiring and releasing is lock-free: each file has an atomic counter (the
+ * number of readers, or WRITER) in a ConcurrentHashMap, so checks on different
+ * files never contend and checks on the same file only retry a compare-and-set.
+ * Checking and acquiring are a single step, so two requests can't both see a file
+ * as free and both take it.
+ *
+ * A lease lasts for the lease time, and the transfer holding it renews it whenever
+ * it makes progress or retransmits. If a transfer hangs, or ends without releasing
+ * its lease, the lease expires and is reclaimed the next time it stands in the way
+ * of another transfer. Handlers run on pooled threads that never die, so a lease
+ * can't be tied to the life of the thread that took it.
+ */
+public class FileLeaseTable {
+
+	private static final int WRITER = -1;
+	// an entry that has been taken out of the table, a new one must be made
+	private static final int REMOVED = Integer.MIN_VALUE;
+	// entries of files nobody holds are kept for reuse until the table has this many
+	private static final int MAX_IDLE_ENTRIES = 1024;
+	// how long a lease lasts without being renewed, longer than any adaptive retransmission timeout
+	public static final long DEFAULT_LEASE_TIME_MS = 2L * RetransmitTimer.MAX_TIMEOUT_MS;
+
+	private static final FileLeaseTable instance = new FileLeaseTable();
+
+	private ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile long leaseTimeMs = DEFAULT_LEASE_TIME_MS;
+
+	public static FileLeaseTable getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Creates a table of its own, e.g. for a benchmark. The server uses getInstance().
+	 */
+	public FileLeaseTable() {
+	}
+
+	/**
+	 * Takes a read lease on a file, unless it is being written.
+	 *
+	 *  @return		the lease, or null if the file is being written
+	 */
+	public Lease tryAcquireRead(String filename) {
+		while (true) {
+			Entry entry = entryFor(filename);
+			int state = entry.state.get();
+			if (state == REMOVED)
+				continue;
+			if (state == WRITER) {
+				if (entry.reclaimExpired())
+					continue;
+				return null;
+			}
+			if (entry.state.compareAndSet(state, state + 1))
+				return entry.add(new Lease(this, filename, entry, false));
+		}
+	}
+
+	/**
+	 * Takes a write lease on a file, unless it is being read or written.
+	 *
+	 *  @return		the lease, or null if the file is in use
+	 */
+	public Lease tryAcquireWrite(String filename) {
+		while (true) {
+			Entry entry = entryFor(filename);
+			int state = entry.state.get();
+			if (state == REMOVED)
+				continue;
+			if (state != 0) {
+				if (entry.reclaimExpired())
+					continue;
+				return null;
+			}
+			if (entry.state.compareAndSet(0, WRITER))
+				return entry.add(new Lease(this, filename, entry, true));
+		}
+	}
+
+	/**
+	 * Sets how long leases taken from now on last without being renewed.
+	 */
+	public void setLeaseTime(long ms) {
+		leaseTimeMs = ms;
+	}
+
+	public long getLeaseTime() {
+		return leaseTimeMs;
+	}
+
+	/**
+	 * Returns the number of transfers reading a file.
+	 */
+	public int getReaders(String filename) {
+		Entry entry = entries.get(filename);
+		int state = entry == null ? 0 : entry.state.get();
+		return state > 0 ? state : 0;
+	}
+
+	/**
+	 * Returns true if a transfer is writing a file.
+	 */
+	public boolean isBeingWritten(String filename) {
+		Entry entry = entries.get(filename);
+		return entry != null && entry.state.get() == WRITER;
+	}
+
+	private Entry entryFor(String filename) {
+		Entry entry = entries.get(filename);
+		if (entry == null || entry.state.get() == REMOVED) {
+			Entry fresh = new Entry();
+			if (entry == null) {
+				entry = entries.putIfAbsent(filename, fresh);
+				if (entry == null)
+					entry = fresh;
+			} else if (entries.replace(filename, entry, fresh)) {
+				entry = fresh;
+			} else {
+				entry = entries.get(filename);
+				if (entry == null)
+					return entryFor(filename);
+			}
+		}
+		return entry;
+	}
+
+	// gives up a lease, once: a lease is only in its entry's holders until it is released
+	private void release(String filename, Entry entry, Lease lease) {
+		if (!entry.holders.remove(lease))
+			return; // already released, or reclaimed after it expired
+		if (lease.write)
+			entry.state.set(0);
+		else
+			entry.state.decrementAndGet();
+		// files are usually requested again, so only take unused entries out of a large table
+		if (entries.size() > MAX_IDLE_ENTRIES && entry.state.compareAndSet(0, REMOVED))
+			entries.remove(filename, entry);
+	}
+
+	// the leases held on one file
+	private static class Entry {
+
+		private final AtomicInteger state = new AtomicInteger();	// readers, WRITER or REMOVED
+		private final Set<Lease> holders = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+
+		private Lease add(Lease lease) {
+			holders.add(lease);
+			return lease;
+		}
+
+		// releases leases that have expired, returning true if any were
+		private boolean reclaimExpired() {
+			boolean reclaimed = false;
+			for (Lease lease : holders) {
+				if (lease.isExpired()) {
+					lease.release();
+					reclaimed = true;
+				}
+			}
+			return reclaimed;
+		}
+	}
+
+	/**
+	 * A transfer's right to read or write a file, until it is released.
+	 */
+	public static final class Lease {
+
+		private final FileLeaseTable table;
+		private final String filename;
+		private final Entry entry;
+		private final boolean write;
+		private final long leaseTimeNanos;
+		private volatile long deadline;		// System.nanoTime() at which the lease expires
+
+		private Lease(FileLeaseTable table, String filename, Entry entry, boolean write) {
+			this.table = table;
+			this.filename = filename;
+			this.entry = entry;
+			this.write = write;
+			this.leaseTimeNanos = TimeUnit.MILLISECONDS.toNanos(table.leaseTimeMs);
+			this.deadline = System.nanoTime() + leaseTimeNanos;
+		}
+
+		/**
+		 * Keeps the lease from expiring for the lease time, or for twice the given wait
+		 * if that is longer (e.g. a negotiated timeout).
+		 *
+		 *  @param waitMs	how long the transfer may wait before it is heard from again
+		 */
+		public void renew(long waitMs) {
+			deadline = System.nanoTime() + Math.max(leaseTimeNanos, TimeUnit.MILLISECONDS.toNanos(2 * waitMs));
+		}
+
+		/**
+		 * Renews the lease now, and whenever the transfer using the given timer makes
+		 * progress or retransmits. Call it once the timer's timeout has been set.
+		 */
+		public void renewWith(final RetransmitTimer timer) {
+			renew(timer.getTimeout());
+			timer.setProgressListener(new Runnable() {
+				@Override
+				public void run() {
+					renew(timer.getTimeout());
+				}
+			});
+		}
+
+		/**
+		 * Gives up the lease. Safe to call more than once.
+		 */
+		public void release() {
+			table.release(filename, entry, this);
+		}
+
+		public boolean isWrite() {
+			return write;
+		}
+
+		/**
+		 * Returns true if the lease is still held but hasn't been renewed in time.
+		 */
+		public boolean isExpired() {
+			return System.nanoTime() - deadline > 0 && entry.holders.contains(this);
+		}
+	}
+}
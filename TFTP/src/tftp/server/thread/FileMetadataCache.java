@@ -0,0 +1,176 @@
+/*
+ * FileMetadataCache.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the size and modification time of files served by the server, so a read
+ * request can be answered (e.g. with tsize) without querying the file system each
+ * time. Each file has a version, which lets other caches tell whether what they
+ * hold for a file is still current; entries are dropped whenever it changes.
+ *
+ * An upload replacing a file bumps the version once before the new file is moved
+ * into place and once after, so the version is odd while it is being replaced (see
+ * isReplacing). Anyone who reads the same even version before and after opening a
+ * file knows which version they opened.
+ *
+ * Only files that have been replaced need a version of their own, the others are at
+ * a shared base version. So the versions don't pile up as files are written, once
+ * there are too many they are all dropped and the base version is raised above every
+ * one of them: each file then moves to a version it has never had before.
+ */
+public class FileMetadataCache {
+
+	// files with a version of their own kept before they are all moved to the base version
+	private static final int MAX_VERSIONS = 4096;
+
+	private static FileMetadataCache instance = null;
+
+	private ConcurrentHashMap<String, Metadata> entries;
+	private ConcurrentHashMap<String, Long> versions;
+	private volatile long baseVersion = 0;		// the version of files not in versions, always even
+
+	public static synchronized FileMetadataCache getInstance() {
+		if (instance == null)
+			instance = new FileMetadataCache();
+		return instance;
+	}
+
+	private FileMetadataCache() {
+		entries = new ConcurrentHashMap<String, Metadata>();
+		versions = new ConcurrentHashMap<String, Long>();
+	}
+
+	/**
+	 * Returns the metadata of a file, reading it from the file system if it isn't cached.
+	 */
+	public Metadata get(File file) {
+		String key = file.getAbsolutePath();
+		Metadata metadata = entries.get(key);
+		if (metadata == null) {
+			long version = getVersion(key);
+			metadata = new Metadata(file.length(), file.lastModified(), version);
+			// the file may be the old one or the new one, so don't keep it
+			if (isReplacing(version))
+				return metadata;
+			entries.put(key, metadata);
+			// don't keep what we read if the file was rewritten in the meantime
+			if (metadata.getVersion() != getVersion(key))
+				entries.remove(key, metadata);
+		}
+		return metadata;
+	}
+
+	/**
+	 * Marks a file as about to be replaced by an upload. Must be followed by endReplace,
+	 * and only one upload may replace a file at a time.
+	 */
+	public synchronized void beginReplace(File file) {
+		String key = file.getAbsolutePath();
+		versions.put(key, getVersion(key) + 1);
+		entries.remove(key);
+	}
+
+	/**
+	 * Marks a file as replaced, forgetting what was cached for the old one, and wakes
+	 * up anyone waiting in awaitVersion.
+	 */
+	public synchronized void endReplace(File file) {
+		String key = file.getAbsolutePath();
+		versions.put(key, getVersion(key) + 1);
+		entries.remove(key);
+		if (versions.size() > MAX_VERSIONS)
+			dropVersions();
+		notifyAll();
+	}
+
+	/**
+	 * Returns the current version of a file, without reading its metadata.
+	 */
+	public long getVersion(File file) {
+		return getVersion(file.getAbsolutePath());
+	}
+
+	/**
+	 * Returns the current version of a file, first waiting for any upload replacing
+	 * it to finish. By then the upload is only renaming the file, so the wait is short.
+	 */
+	public long awaitVersion(File file) {
+		String key = file.getAbsolutePath();
+		long version = getVersion(key);
+		if (!isReplacing(version))
+			return version;
+
+		boolean interrupted = false;
+		synchronized (this) {
+			while (isReplacing(version = getVersion(key))) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return version;
+	}
+
+	/**
+	 * Returns true if a version was read while the file was being replaced.
+	 */
+	public static boolean isReplacing(long version) {
+		return (version & 1) != 0;
+	}
+
+	private long getVersion(String key) {
+		Long version = versions.get(key);
+		return version == null ? baseVersion : version;
+	}
+
+	// moves every file that isn't being replaced to a new base version, above any version
+	// handed out so far; the base is raised first, so a file never reads an old version
+	private void dropVersions() {
+		long highest = baseVersion;
+		for (Long version : versions.values())
+			highest = Math.max(highest, version);
+		baseVersion = (highest + 2) & ~1L;
+		for (Map.Entry<String, Long> version : versions.entrySet()) {
+			if (!isReplacing(version.getValue()))
+				versions.remove(version.getKey(), version.getValue());
+		}
+		// the cached metadata is of the versions just dropped
+		entries.clear();
+	}
+
+	/**
+	 * A snapshot of a file's metadata.
+	 */
+	public static class Metadata {
+
+		private final long length;
+		private final long lastModified;
+		private final long version;
+
+		public Metadata(long length, long lastModified, long version) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.version = version;
+		}
+
+		public long getLength() { return length; }
+
+		public long getLastModified() { return lastModified; }
+
+		public long getVersion() { return version; }
+	}
+}
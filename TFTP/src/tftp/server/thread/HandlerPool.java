@@ -0,0 +1,141 @@
+/*
+ * HandlerPool.java
+ * 
+ * Authors: TEAM 1
+ * 
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs WorkerThreads on behalf of the server, with at most maxConcurrentTransfers
+ * requests processed at once. Anything beyond the limit is rejected so the server
+ * can reply "busy" straight away instead of creating more threads.
+ * 
+ * With platform threads, the workers run on a bounded, pre-warmed pool of threads, 
+ * and up to pendingQueueSize requests wait in a queue for a free one. Virtual threads
+ * are cheap to start and not worth pooling, so in VIRTUAL mode each worker is started
+ * on a virtual thread of its own, and a semaphore limits how many run at once.
+ */
+public class HandlerPool {
+	
+	private ThreadPoolExecutor executor;			// PLATFORM mode only
+	private WorkerThreadFactory threadFactory;
+	private Semaphore admission;					// VIRTUAL mode only
+	private int maxConcurrentTransfers;
+	private volatile boolean shutdown = false;
+	private AtomicLong rejectedCount = new AtomicLong();
+	private AtomicLong completedCount = new AtomicLong();
+	
+	/**
+	 * Constructs a HandlerPool and, with platform threads, starts all of its threads.
+	 * 
+	 * @param  maxConcurrentTransfers	the number of requests that may be processed at once
+	 * @param  pendingQueueSize			the number of requests that may wait for a free thread (PLATFORM mode only)
+	 * @param  threadFactory			the factory deciding which kind of thread workers run on
+	 */
+	public HandlerPool(int maxConcurrentTransfers, int pendingQueueSize, final WorkerThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+		this.maxConcurrentTransfers = maxConcurrentTransfers;
+		if (threadFactory.getExecutionMode() == ExecutionMode.VIRTUAL) {
+			admission = new Semaphore(maxConcurrentTransfers);
+			return;
+		}
+		
+		ThreadFactory poolThreads = new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger(1);
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				return threadFactory.newHandlerThread(r, "HandlerPool-" + count.getAndIncrement());
+			}
+		};
+		
+		executor = new ThreadPoolExecutor(maxConcurrentTransfers, maxConcurrentTransfers, 0L, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(pendingQueueSize), poolThreads, new ThreadPoolExecutor.AbortPolicy()) {
+			@Override
+			protected void afterExecute(Runnable r, Throwable t) {
+				// however the worker returned, its socket and its session table entry are released
+				((WorkerThread) r).cleanup();
+			}
+		};
+		executor.prestartAllCoreThreads();
+	}
+	
+	/**
+	 * Queues a worker to be run by the pool, or in VIRTUAL mode starts it on a new virtual thread. 
+	 * 
+	 * @param  worker	the worker to run
+	 * @return 			false if the pool and its queue are full (or the pool is shut down)
+	 */
+	public boolean submit(final WorkerThread worker) {
+		if (admission != null) {
+			if (shutdown || !admission.tryAcquire()) {
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						worker.run();
+					} finally {
+						completedCount.incrementAndGet();
+						admission.release();
+					}
+				}
+			};
+			threadFactory.newHandlerThread(task, worker.getName()).start();
+			return true;
+		}
+		
+		try {
+			executor.execute(worker);
+			return true;
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+	}
+	
+	/**
+	 * Stops accepting workers and waits for queued and running workers to finish.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		try {
+			if (admission != null) {
+				// every permit is back once the last worker has finished
+				admission.acquire(maxConcurrentTransfers);
+				admission.release(maxConcurrentTransfers);
+				return;
+			}
+			executor.shutdown();
+			// workers blocked while waiting to receive packet should time out
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+				;
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted while waiting for handler threads to finish processing");
+		}
+	}
+	
+	public int getActiveCount() {
+		if (admission != null)
+			return maxConcurrentTransfers - admission.availablePermits();
+		return executor.getActiveCount();
+	}
+	// always 0 in VIRTUAL mode, workers are started straight away or rejected
+	public int getQueuedCount() { return admission != null ? 0 : executor.getQueue().size(); }
+	public long getCompletedCount() { return admission != null ? completedCount.get() : executor.getCompletedTaskCount(); }
+	public long getRejectedCount() { return rejectedCount.get(); }
+}
@@ -3,7 +3,12 @@ package tftp.server.thread;
 import java.util.HashMap;
 import java.util.HashSet;
 
-
+/**
+ * The server's original file lock table, replaced by FileLeaseTable, whose check
+ * and acquire are one atomic step. Kept so LeaseContentionBenchmark can compare
+ * the two.
+ */
+@Deprecated
 public class LockCollection {
 
 	HashMap<String, Integer> readLock ;	
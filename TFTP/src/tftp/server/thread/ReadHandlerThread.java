@@ -11,13 +11,17 @@ package tftp.server.thread;
 import java.nio.file.*;
 import java.io.File;
 import java.net.DatagramPacket;
+import java.net.SocketTimeoutException;
 import java.nio.file.Paths;
 
+import tftp.exception.ErrorReceivedException;
 import tftp.exception.TFTPException;
 import tftp.net.OPcodeError;
 import tftp.net.PacketUtil;
 import tftp.net.ProcessType;
+import tftp.net.RetransmitTimer;
 import tftp.net.Sender;
+import tftp.net.TransferOptions;
 
 /**
  * A specialized thread that processes TFTP read requests received by a TFTP server.
@@ -38,18 +42,19 @@ public class ReadHandlerThread extends WorkerThread {
 	}	
 
 	/**
-	 * Runs this thread, which processes a TFTP read request and starts a 
-	 * file transfer.
+	 * Processes a TFTP read request and starts a file transfer.
 	 */
 	@Override
-	public void run() {
+	protected void handleRequest() {
 		
 		PacketUtil packetUtil = new PacketUtil(reqPacket.getAddress(), reqPacket.getPort());
 		String filename = null;
+		TransferOptions options = null;
 		
 		// parse the request packet to ensure it is correct before starting the transfer
 		try {
 			filename = packetParser.parseRRQPacket(reqPacket);		
+			options = packetParser.getRequestOptions().negotiate();
 		} catch (TFTPException e) {
 			printToConsole(String.format("ERROR: (%d) %s\n", e.getErrorCode(), e.getMessage()));
 			// send error packet
@@ -58,18 +63,6 @@ public class ReadHandlerThread extends WorkerThread {
 			return;
 		}
 		
-		if(lock.isWriteLock(filename)){
-			printToConsole(String.format("ERROR: (%d) %s\n", PacketUtil.ERR_ACCESS_VIOLATION, "ACCESS VIOLATION, File is locked, can not access"));
-			// send error packet
-			DatagramPacket errPacket = packetUtil.formErrorPacket(PacketUtil.ERR_ACCESS_VIOLATION, "ACCESS VIOLATION, File is locked, can not access");
-			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, errPacket, ProcessType.CLIENT, "ERROR");
-			return;
-		}
-		
-		if (!lock.isReadLock(filename)){
-			lock.addReader(filename);
-		}
-		
 		//\\//\\//\\ File Not Found - Error Code 1 //\\//\\//\\
 
 		//Opens an input stream
@@ -80,14 +73,11 @@ public class ReadHandlerThread extends WorkerThread {
 
 			byte errorCode = PacketUtil.ERR_FILE_NOT_FOUND;   //error code 1 : file not found
 			DatagramPacket error= OPcodeError.OPerror("SERVER: FILE(" + filename + ") NOT FOUND",errorCode);  //create error packet
-		System.out.println(getDirectory());
+		printToConsole(getDirectory());
 			error.setAddress(reqPacket.getAddress());
 			error.setPort(reqPacket.getPort());
 			
 			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, error, ProcessType.CLIENT, "ERROR");
-			
-			cleanup();
-			lock.deleteReader(filename);
 			return;
 		}
 		
@@ -99,33 +89,104 @@ public class ReadHandlerThread extends WorkerThread {
 			error.setPort(reqPacket.getPort());		
 
 			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, error, ProcessType.CLIENT, "ERROR");			
-			
-			cleanup();	
-			lock.deleteReader(filename);
+			return;
+		}
+		
+		// the version of the file opened now is the one sent, even if an upload replaces it meanwhile
+		CachedBlockSource source;
+		try {
+			source = new CachedBlockSource(f, options.getBlockSize(), BlockCache.getInstance());
+		} catch (TFTPException e) {
+			printToConsole(String.format("ERROR: (%d) %s\n", e.getErrorCode(), e.getMessage()));
+			DatagramPacket errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage());
+			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, errPacket, ProcessType.CLIENT, "ERROR");
 			return;
 		}
 		
 		// request is good if we made it here
+		// answer tsize with the size of the file
+		if (options.has(TransferOptions.TSIZE))
+			options.setTransferSize(source.getLength());
+		
+		// the retransmission timeout adapts to the client's round trip time, unless one was agreed
+		RetransmitTimer timer = new RetransmitTimer();
+		if (options.getTimeout() > 0)
+			timer.setFixedTimeout(options.getTimeout());
+		
+		// if the client asked for options we support, they must be acknowledged before the transfer starts
+		if (!options.isEmpty() && !sendOack(packetUtil, options, timer)) {
+			source.close();
+			return;
+		}
+		
 		// read request, so start a file transfer
 		Sender s = new Sender(this, ProcessType.CLIENT, sendReceiveSocket,clientIP, clientPort);
+		s.setBlockSize(options.getBlockSize());
+		s.setWindowSize(options.getWindowSize());
+		s.setRollover(options.getRollover());
+		s.setTimer(timer);
+		s.setBlockSource(source);
 		try {			
 			s.sendFile(f);
 			printToConsole("Finished read request for file: " + f.getName());
 		} catch (TFTPException e) {
 			printToConsole(String.format("ERROR: (%d) %s\n", e.getErrorCode(), e.getMessage()));
-			if (e.getErrorCode() != PacketUtil.ERR_UNKNOWN_TID) {
-				cleanup();
-				lock.deleteReader(filename);
-				return;
-			}
 		}
-		
-		lock.deleteReader(filename);
-		
-		cleanup();
 
 	}
 
+	/**
+	 * Sends an OACK for the accepted options and waits for the client's ACK 0.
+	 * 
+	 * @param  packetUtil	used to form packets addressed to the client
+	 * @param  options		the options accepted by the server
+	 * @param  timer		decides when to retransmit the OACK
+	 * @return 				true if the client acknowledged the OACK
+	 */
+	private boolean sendOack(PacketUtil packetUtil, TransferOptions options, RetransmitTimer timer) {
+		DatagramPacket oack = packetUtil.formOackPacket(options);
+		PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, oack, ProcessType.CLIENT, "OACK");
+		timer.packetSent(0);
+		
+		while (true) {
+			DatagramPacket reply = null;
+			
+			while (reply == null) {
+				try {
+					timer.applyTo(sendReceiveSocket);
+					reply = PacketUtil.receivePacketOrTimeout(getName()+": ", sendReceiveSocket, ProcessType.CLIENT, "ACK");
+				} catch (SocketTimeoutException e) {
+					printToConsole("Error: Timed out while waiting for ACK Packet");
+					if (!timer.backOff()) {
+						printToConsole("Maximum retries reached with no response, can not complete transfer");
+						return false;
+					}
+					printToConsole("possible OACK packet loss, resending...");
+					PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, oack, ProcessType.CLIENT, "OACK");
+				}
+			}
+			
+			try {
+				packetParser.parseAckPacket(reply, 0);
+				timer.responseReceived(0);
+				return true;
+			} catch (ErrorReceivedException e) {
+				// the client rejected the options (or otherwise gave up), don't send a response
+				printToConsole(String.format("ERROR: (%d) %s", e.getErrorCode(), e.getMessage()));
+				return false;
+			} catch (TFTPException e) {
+				printToConsole(String.format("ERROR: (%d) %s", e.getErrorCode(), e.getMessage()));
+				DatagramPacket errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage(),
+						reply.getAddress(), reply.getPort());
+				PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, errPacket, ProcessType.CLIENT, "ERROR");
+				
+				// keep waiting for the right ACK if the packet came from an unknown TID
+				if (e.getErrorCode() != PacketUtil.ERR_UNKNOWN_TID)
+					return false;
+			}
+		}
+	}
+
 	//get functions
 	public String getDirectory(){return directory;}
 	
@@ -0,0 +1,211 @@
+/*
+ * SessionTable.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The transfers in progress on a server, keyed by the client's TID (address and
+ * port), so a request the client retransmitted because the first reply was slow
+ * or lost is recognised as a duplicate instead of starting a second transfer
+ * that fights the first one for the same client.
+ *
+ * An IPv4 address and a port fit in one long, so sessions are kept in open
+ * addressing tables of primitive keys: a lookup hashes the long and probes an
+ * array, with no boxing and no entry objects. The tables are split into segments
+ * with a lock each, so transfers finishing on many threads don't contend with
+ * the thread dispatching requests. Clients with IPv6 addresses, which don't fit
+ * in a long, are kept in an ordinary map.
+ *
+ *  @param <S>	the type of the sessions (a WorkerThread or an NIO TransferSession)
+ */
+public class SessionTable<S> {
+
+	private static final int SEGMENTS = 16;			// a power of two
+	private static final int INITIAL_SEGMENT_SIZE = 16;	// a power of two
+	private static final long EMPTY = -1L;			// never a key, keys only use 48 bits
+
+	private final Segment[] segments;
+	private final ConcurrentHashMap<InetSocketAddress, S> others = new ConcurrentHashMap<InetSocketAddress, S>();
+	private AtomicLong duplicates = new AtomicLong();
+
+	public SessionTable() {
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment();
+	}
+
+	/**
+	 * Returns the session of a client TID, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public S get(InetAddress address, int port) {
+		if (!(address instanceof Inet4Address))
+			return others.get(new InetSocketAddress(address, port));
+		long key = key(address, port);
+		int hash = hash(key);
+		return (S) segmentFor(hash).get(key, hash);
+	}
+
+	/**
+	 * Adds the session of a client TID, unless it already has one.
+	 *
+	 *  @return		the session already there, or null if this one was added
+	 */
+	@SuppressWarnings("unchecked")
+	public S putIfAbsent(InetAddress address, int port, S session) {
+		if (!(address instanceof Inet4Address))
+			return others.putIfAbsent(new InetSocketAddress(address, port), session);
+		long key = key(address, port);
+		int hash = hash(key);
+		return (S) segmentFor(hash).putIfAbsent(key, hash, session);
+	}
+
+	/**
+	 * Removes the session of a client TID, if it is still the given one.
+	 *
+	 *  @return		true if it was removed
+	 */
+	public boolean remove(InetAddress address, int port, S session) {
+		if (!(address instanceof Inet4Address))
+			return others.remove(new InetSocketAddress(address, port), session);
+		long key = key(address, port);
+		int hash = hash(key);
+		return segmentFor(hash).remove(key, hash, session);
+	}
+
+	/**
+	 * Counts a duplicate request that was recognised and dropped.
+	 */
+	public void duplicateDropped() {
+		duplicates.incrementAndGet();
+	}
+
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Returns the number of sessions in the table.
+	 */
+	public int size() {
+		int size = others.size();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	// the address in the high 32 bits of 48, the port in the low 16
+	private static long key(InetAddress address, int port) {
+		byte[] ip = address.getAddress();
+		long a = ((ip[0] & 0xffL) << 24) | ((ip[1] & 0xffL) << 16) | ((ip[2] & 0xffL) << 8) | (ip[3] & 0xffL);
+		return (a << 16) | (port & 0xffff);
+	}
+
+	// spreads the bits of a key, clients on one host differ only in the port
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments[(hash >>> 28) & (SEGMENTS - 1)];
+	}
+
+	// an open addressing table with linear probing, kept at most half full
+	private static final class Segment {
+
+		private long[] keys;
+		private Object[] values;
+		private int size = 0;
+
+		Segment() {
+			keys = new long[INITIAL_SEGMENT_SIZE];
+			values = new Object[INITIAL_SEGMENT_SIZE];
+			Arrays.fill(keys, EMPTY);
+		}
+
+		synchronized Object get(long key, int hash) {
+			int mask = keys.length - 1;
+			for (int i = hash & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+				if (keys[i] == key)
+					return values[i];
+			}
+			return null;
+		}
+
+		synchronized Object putIfAbsent(long key, int hash, Object value) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+				if (keys[i] == key)
+					return values[i];
+			}
+			keys[i] = key;
+			values[i] = value;
+			if (++size > keys.length / 2)
+				resize();
+			return null;
+		}
+
+		synchronized boolean remove(long key, int hash, Object value) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			for (; keys[i] != key; i = (i + 1) & mask) {
+				if (keys[i] == EMPTY)
+					return false;
+			}
+			if (values[i] != value)
+				return false;
+
+			// shift later entries of the probe run back, so no lookup stops early at the hole
+			int hole = i;
+			for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+				int home = hash(keys[j]) & mask;
+				// move the entry unless its home slot lies cyclically after the hole, up to j
+				boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+				if (!stays) {
+					keys[hole] = keys[j];
+					values[hole] = values[j];
+					hole = j;
+				}
+			}
+			keys[hole] = EMPTY;
+			values[hole] = null;
+			size--;
+			return true;
+		}
+
+		private void resize() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new Object[oldKeys.length * 2];
+			Arrays.fill(keys, EMPTY);
+			int mask = keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] == EMPTY)
+					continue;
+				int i = hash(oldKeys[j]) & mask;
+				while (keys[i] != EMPTY)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Upload.java
+ *
+ * Authors: TEAM 1
+ *
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+import java.io.File;
+
+import tftp.exception.TFTPException;
+import tftp.net.StagedFile;
+
+/**
+ * A file being written to the server. It is received next to the file it replaces
+ * and published in one step, so transfers already reading the file carry on with
+ * the old version while new transfers get the new one straight away.
+ *
+ * The upload holds the file's write lease until it is published or discarded, so
+ * the next upload of the file doesn't wait for this transfer to finish dallying.
+ */
+public class Upload extends StagedFile {
+
+	private FileLeaseTable.Lease lease;
+
+	/**
+	 * @param target		the file to replace (or create)
+	 * @param lease			the write lease on the file, released once the upload is published or discarded
+	 */
+	public Upload(File target, FileLeaseTable.Lease lease) throws TFTPException {
+		super(target);
+		this.lease = lease;
+	}
+
+	/**
+	 * Moves the new file into place, bumping its version around the move so
+	 * FileMetadataCache and BlockCache never mix up the old file and the new one.
+	 * Cached blocks of the old version are left to age out of the BlockCache, as
+	 * transfers still sending the old version may ask for them.
+	 */
+	@Override
+	public void publish() throws TFTPException {
+		FileMetadataCache metadata = FileMetadataCache.getInstance();
+		metadata.beginReplace(getTarget());
+		try {
+			super.publish();
+		} finally {
+			metadata.endReplace(getTarget());
+			lease.release();
+		}
+	}
+
+	@Override
+	public void discard() {
+		super.discard();
+		lease.release();
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * VirtualThreads.java
+ * 
+ * Authors: TEAM 1
+ * 
+ * This file was created specifically for the course SYSC 3303.
+ */
+
+package tftp.server.thread;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates Java virtual threads when the running JVM supports them (Java 21+).
+ * The project is compiled for older Java versions, so the virtual thread API is
+ * looked up reflectively instead of being referenced directly.
+ */
+public class VirtualThreads {
+	
+	private static Method ofVirtual;	// Thread.ofVirtual()
+	private static Method name;			// Thread.Builder.name(String)
+	private static Method unstarted;	// Thread.Builder.unstarted(Runnable)
+	
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			ofVirtual = null;
+		}
+	}
+	
+	/**
+	 * Returns true if this JVM can create virtual threads.
+	 */
+	public static boolean isSupported() {
+		return ofVirtual != null;
+	}
+	
+	/**
+	 * Creates an unstarted virtual thread which will run the given task.
+	 * 
+	 *  @param task			the task to run
+	 *  @param threadName	the name of the new thread
+	 *  @return 			a new, unstarted virtual thread
+	 *  @throws UnsupportedOperationException	if this JVM does not support virtual threads
+	 */
+	public static Thread newThread(Runnable task, String threadName) {
+		if (!isSupported())
+			throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+		
+		try {
+			Object builder = ofVirtual.invoke(null);
+			name.invoke(builder, threadName);
+			return (Thread) unstarted.invoke(builder, task);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("couldn't create virtual thread", e);
+		}
+	}
+}
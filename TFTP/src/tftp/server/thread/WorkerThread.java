@@ -13,7 +13,12 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 
+import tftp.exception.TFTPException;
+import tftp.log.Log;
 import tftp.net.PacketParser;
+import tftp.net.PacketUtil;
+import tftp.net.ProcessType;
+import tftp.net.SocketPool;
 import tftp.sim.ErrorSimulator;
 
 public abstract class WorkerThread extends Thread {
@@ -34,7 +39,8 @@ public abstract class WorkerThread extends Thread {
 	protected DatagramPacket receivePacket;
 	
 	/**
-	 * A socket which is created and used only for the request to which this thread is assigned.
+	 * A socket which is leased and used only for the request to which this thread is assigned.
+	 * It is leased when the worker starts running, so requests waiting to run don't hold one.
 	 */
 	protected DatagramSocket sendReceiveSocket;	
 	
@@ -55,7 +61,11 @@ public abstract class WorkerThread extends Thread {
 	
 	protected String directory;
 	
-	protected LockCollection lock; 
+	protected FileLeaseTable leases;
+	
+	protected SocketPool sockets;
+	
+	private SessionTable<WorkerThread> sessions = null;
 	/**
 	 * Constructs a WorkerThread. 
 	 *
@@ -68,47 +78,103 @@ public abstract class WorkerThread extends Thread {
 		clientPort = reqPacket.getPort();
 		setDefaultTimeout(ErrorSimulator.TIMEOUT_MS);
 		
-		lock = LockCollection.getInstance();
+		leases = FileLeaseTable.getInstance();
 
+		sockets = SocketPool.getInstance();
+		
+		packetParser = new PacketParser(reqPacket.getAddress(), reqPacket.getPort());
+	}
+	
+	/**
+	 * Replies to the request with an ERROR packet and releases this worker without running it.
+	 * Used when the server cannot take on the request (e.g. because it is too busy).
+	 *
+	 * @param  errCode	the TFTP error code to send
+	 * @param  errMsg	the error message to send
+	 */
+	public void reject(int errCode, String errMsg) {
+		printToConsole(String.format("ERROR: (%d) %s", errCode, errMsg));
+		try {
+			openSocket();
+			DatagramPacket errPacket = new PacketUtil(clientIP, clientPort).formErrorPacket(errCode, errMsg);
+			PacketUtil.sendPacketToProcess(getName() + ": ", sendReceiveSocket, errPacket, ProcessType.CLIENT, "ERROR");
+		} catch (TFTPException e) {
+			printToConsole(String.format("ERROR: (%d) %s", e.getErrorCode(), e.getMessage()));
+		} finally {
+			cleanup();
+		}
+	}
+	
+	/**
+	 * Leases the socket of this transfer from the pool, so its port is the TID of the transfer.
+	 *
+	 * @throws TFTPException  if no socket could be leased
+	 */
+	private void openSocket() throws TFTPException {
 		try {
-			sendReceiveSocket = new DatagramSocket();
+			sendReceiveSocket = sockets.acquire();
 			sendReceiveSocket.setSoTimeout(getDefaultTimeout());
-			
 		} catch (SocketException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			if (sendReceiveSocket != null) {
+				sockets.release(sendReceiveSocket);
+				sendReceiveSocket = null;
+			}
+			throw new TFTPException("no transfer socket available: " + e.getMessage(), PacketUtil.ERR_UNDEFINED);
 		}
-		
-		packetParser = new PacketParser(reqPacket.getAddress(), reqPacket.getPort());
 	}
 	
 	/**
-	 * Closes the resources used by this thread.
+	 * Releases the resources used by this thread. Safe to call more than once.
 	 */
 	protected void cleanup() {
-		sendReceiveSocket.close();
+		if (sendReceiveSocket != null) {
+			sockets.release(sendReceiveSocket);
+			sendReceiveSocket = null;
+		}
+		if (sessions != null) {
+			sessions.remove(clientIP, clientPort, this);
+			sessions = null;
+		}
 	}
 	
 	/**
-	 * Prints a message to standard output which is prepended with this thread's name.
+	 * Logs a summary message which is prepended with this thread's name.
 	 */
 	protected void printToConsole(String message) {
-		System.out.printf("%s: %s\n", this.getName(), message);
+		Log.summary("%s: %s", this.getName(), message);
 	}
 		
 	/**
-	 * Overrides Thread's run method (to be implemented by subclasses).
+	 * Overrides Thread's run method. However the request is handled, the socket
+	 * and the session table entry of this worker are released when it returns.
 	 */	
+	@Override
+	public void run() {
+		try {
+			openSocket();
+			handleRequest();
+		} catch (TFTPException e) {
+			// without a socket there is no way to answer the client, so the request is dropped
+			printToConsole(String.format("ERROR: (%d) %s", e.getErrorCode(), e.getMessage()));
+		} finally {
+			cleanup();
+		}
+	}
+	
+	/**
+	 * Processes the request (to be implemented by subclasses).
+	 */
+	protected abstract void handleRequest();
 	
 	//get functions
 	protected int getDefaultTimeout(){return defaultTimeout;}
 	
 	//set functions
 	protected void setDefaultTimeout(int aDefaultTimeout){defaultTimeout = aDefaultTimeout;}
-	@Override
-	public abstract void run();
 	
 	public void setDirectory(String Directory){this.directory = Directory;}
+	// the table this worker was added to, so it is removed again once the transfer is over
+	public void setSessionTable(SessionTable<WorkerThread> table){this.sessions = table;}
 	
 
 }
@@ -18,6 +18,26 @@ import tftp.net.PacketUtil;
  * A factory class for creating WorkerThread instances.
  */
 public class WorkerThreadFactory {	
+	
+	private ExecutionMode executionMode;
+	
+	public WorkerThreadFactory() {
+		this(ExecutionMode.PLATFORM);
+	}
+	
+	/**
+	 * Constructs a WorkerThreadFactory whose workers are started using the given mode.
+	 * Falls back to platform threads if virtual threads are not supported by this JVM.
+	 * 
+	 * @param  executionMode  the kind of thread workers should run on
+	 */
+	public WorkerThreadFactory(ExecutionMode executionMode) {
+		if (executionMode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported()) {
+			System.out.println("Virtual threads are not supported by this JVM, using platform threads");
+			executionMode = ExecutionMode.PLATFORM;
+		}
+		this.executionMode = executionMode;
+	}
 
 	/**
 	 * Creates and returns a WorkerThread. The type of WorkerThread returned
@@ -29,13 +49,31 @@ public class WorkerThreadFactory {
 	public WorkerThread createWorkerThread(DatagramPacket reqPacket) throws TFTPException {		
 		
 		byte[] data = reqPacket.getData();
+		int opcode = reqPacket.getLength() < 2 ? -1 : data[reqPacket.getOffset() + 1];
 		
-		if (data[1] == PacketUtil.READ_FLAG) {
+		if (opcode == PacketUtil.READ_FLAG) {
 			return new ReadHandlerThread(reqPacket);
-		} else if (data[1] == PacketUtil.WRITE_FLAG) {
+		} else if (opcode == PacketUtil.WRITE_FLAG) {
 			return new WriteHandlerThread(reqPacket);
 		} else {
 			throw new TFTPException("expected a request packet", PacketUtil.ERR_ILLEGAL_OP);
 		}			
 	}
+	
+	/**
+	 * Creates an unstarted thread for running request handlers. In PLATFORM mode
+	 * this is an ordinary thread; in VIRTUAL mode it is a virtual thread.
+	 * 
+	 * @param  task		the task the thread should run
+	 * @param  name		the name of the new thread
+	 * @return			a new, unstarted thread
+	 */
+	public Thread newHandlerThread(Runnable task, String name) {
+		if (executionMode == ExecutionMode.VIRTUAL)
+			return VirtualThreads.newThread(task, name);
+		
+		return new Thread(task, name);
+	}
+	
+	public ExecutionMode getExecutionMode() { return executionMode; }
 }
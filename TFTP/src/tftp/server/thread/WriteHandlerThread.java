@@ -15,10 +15,14 @@ import java.util.Arrays;
 
 import tftp.exception.ErrorReceivedException;
 import tftp.exception.TFTPException;
+import tftp.net.DallyResponder;
+import tftp.net.DiskSpaceLedger;
 import tftp.net.OPcodeError;
 import tftp.net.PacketUtil;
 import tftp.net.ProcessType;
 import tftp.net.Receiver;
+import tftp.net.RetransmitTimer;
+import tftp.net.TransferOptions;
 
 /**
  * A specialized thread that processes TFTP write requests received by a TFTP server.
@@ -39,19 +43,19 @@ public class WriteHandlerThread extends WorkerThread {
 	}
 	
 	/**
-	 * Runs this thread, which processes a TFTP write request and starts a 
-	 * file transfer.
+	 * Processes a TFTP write request and starts a file transfer.
 	 */
 	@Override
-
-	public void run() {		
+	protected void handleRequest() {		
 				
 		PacketUtil packetUtil = new PacketUtil(reqPacket.getAddress(), reqPacket.getPort());
 		String filename = null;
+		TransferOptions options = null;
 		
 		// parse the request packet to ensure it is correct before starting the transfer
 		try {
 			filename = packetParser.parseWRQPacket(reqPacket);
+			options = packetParser.getRequestOptions().negotiate();
 			
 		} catch (ErrorReceivedException e) {
 			// the other side sent an error packet, don't send response			
@@ -72,7 +76,9 @@ public class WriteHandlerThread extends WorkerThread {
 			return;
 		}
 		
-		if(lock.isWriteLock(filename) || lock.isReadLock(filename)){
+		// one upload replaces a file at a time, transfers reading it don't get in the way
+		FileLeaseTable.Lease lease = leases.tryAcquireWrite(filename);
+		if (lease == null) {
 			printToConsole(String.format("ERROR: (%d) %s\n", PacketUtil.ERR_ACCESS_VIOLATION, "ACCESS VIOLATION, File is locked, can not access"));
 			// send error packet
 			DatagramPacket errPacket = packetUtil.formErrorPacket(PacketUtil.ERR_ACCESS_VIOLATION, "ACCESS VIOLATION, File is locked, can not access");
@@ -80,8 +86,6 @@ public class WriteHandlerThread extends WorkerThread {
 			return;
 		}
 				
-		lock.addWriter(filename);
-			
 		File f = new File(getDirectory().concat("\\" + filename));
 		
 		if(f.exists() && !f.canWrite()){    // no write access
@@ -92,15 +96,57 @@ public class WriteHandlerThread extends WorkerThread {
 			error.setPort(reqPacket.getPort());		
 
 			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, error, ProcessType.CLIENT, "ERROR");			   
-			sendReceiveSocket.close();
-			lock.deleteWriter(filename);
+			lease.release();
+			return;
+		}
+
+		// if the client told us the file size (tsize), reserve the space now so a full disk
+		// is reported before the transfer starts; otherwise space is reserved as the file grows
+		DiskSpaceLedger.Reservation reservation;
+		try {
+			reservation = DiskSpaceLedger.getInstance().reserve(f, Math.max(options.getTransferSize(), 0));
+		} catch (TFTPException e) {
+			printToConsole(String.format("ERROR: (%d) %s\n", e.getErrorCode(), e.getMessage()));
+			DatagramPacket errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage());
+			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, errPacket, ProcessType.CLIENT, "ERROR");
+			lease.release();
+			return;
+		}
+
+		// the file is received next to the one it replaces, which keeps being read until the upload is published
+		Upload upload;
+		try {
+			upload = new Upload(f, lease);
+		} catch (TFTPException e) {
+			printToConsole(String.format("ERROR: (%d) %s\n", e.getErrorCode(), e.getMessage()));
+			DatagramPacket errPacket = packetUtil.formErrorPacket(e.getErrorCode(), e.getMessage());
+			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, errPacket, ProcessType.CLIENT, "ERROR");
+			reservation.release();
+			lease.release();
 			return;
 		}
 
 		// request is good if we made it here
-		// write request, so send an ACK 0		
-		DatagramPacket initAck = packetUtil.formAckPacket(0);
-		PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, initAck, ProcessType.CLIENT, "ACK");		
+		// write request, so send an ACK 0 (or an OACK if the client asked for options we support)
+		int blockSize = options.getBlockSize();
+		packetParser.setBlockSize(blockSize);
+		packetParser.setWindowSize(options.getWindowSize());
+		DatagramPacket initAck;
+		if (options.isEmpty()) {
+			initAck = packetUtil.formAckPacket(0);
+			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, initAck, ProcessType.CLIENT, "ACK");
+		} else {
+			initAck = packetUtil.formOackPacket(options);
+			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, initAck, ProcessType.CLIENT, "OACK");
+		}
+		
+		// the retransmission timeout adapts to the client's round trip time, unless one was agreed
+		RetransmitTimer timer = new RetransmitTimer();
+		if (options.getTimeout() > 0)
+			timer.setFixedTimeout(options.getTimeout());
+		// the lease lasts as long as the upload keeps going
+		lease.renewWith(timer);
+		timer.packetSent(0);
 		
 		// get the first data packet so we can set up receiver
 		
@@ -108,32 +154,36 @@ public class WriteHandlerThread extends WorkerThread {
         while (!correctData) {
 
         	boolean packetReceived = false;
-        	int retransmission = 0;
         	
-        	while (!packetReceived && retransmission <= PacketUtil.DEFAULT_RETRY_TRANSMISSION){
+        	while (!packetReceived){
 
         		try {
-        			receivePacket = PacketUtil.receivePacketOrTimeout(getName()+": ", sendReceiveSocket, ProcessType.CLIENT, "DATA");
+        			timer.applyTo(sendReceiveSocket);
+        			receivePacket = PacketUtil.receivePacketOrTimeout(getName()+": ", sendReceiveSocket, ProcessType.CLIENT, "DATA", blockSize + 4);
         			packetReceived = true;
 
         		} catch(SocketTimeoutException e){
 
         			printToConsole("Error: Timed out while waiting for DATA Packet");
 
-        			if (retransmission == PacketUtil.DEFAULT_RETRY_TRANSMISSION){
-        				System.out.println("Maximum retries reached with no response");
-        				System.out.println("Can not complete transfer");
-        				lock.deleteWriter(filename);
+        			if (!timer.backOff()){
+        				printToConsole("Maximum retries reached with no response");
+        				printToConsole("Can not complete transfer");
+        				reservation.release();
+        				upload.discard();
         				return;
         			}					
 
         			printToConsole("possible ACK packet loss, resending...");
-        			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, initAck, ProcessType.CLIENT, "ACK");
-        			
-        			retransmission++;
+        			PacketUtil.sendPacketToProcess(getName()+": ", sendReceiveSocket, initAck, ProcessType.CLIENT, 
+        					PacketUtil.getPacketType(initAck).name());
         		}
 
         	}
+        	
+        	// with a window, DATA 1 may be lost while later blocks arrive; wait for it to be resent
+        	if (packetParser.isOutOfOrderDataPacket(receivePacket, 1))
+        		continue;
         
 	        // parse the first DATA packet to ensure it is correct before continuing
 	        try {
@@ -143,7 +193,8 @@ public class WriteHandlerThread extends WorkerThread {
 	        	// the other side sent an error packet, don't send a response        	
 	        	printToConsole("ERROR packet received from client!");		
 	        	printToConsole(String.format("ERROR: (%d) %s\n", e.getErrorCode(), e.getMessage()));
-	        	lock.deleteWriter(filename);
+	        	reservation.release();
+	        	upload.discard();
 				return;        	
 	
 	        } catch (TFTPException e) {
@@ -160,25 +211,35 @@ public class WriteHandlerThread extends WorkerThread {
 	        	if (e.getErrorCode() == PacketUtil.ERR_UNKNOWN_TID)
 	        		continue;
 	        	else {
-	        		lock.deleteWriter(filename);
+	        		reservation.release();
+	        		upload.discard();
 	        		return;
 	        	}
 	        }
 	        
 	        // if we get here, DATA 1 is good
 	        correctData = true;
+	        timer.responseReceived(0);
         }
         
 		// set up receiver with request packet's port, as this is the client's TID
 		Receiver r = new Receiver(this, ProcessType.CLIENT, sendReceiveSocket,reqPacket.getAddress(), reqPacket.getPort());
+		r.setBlockSize(blockSize);
+		r.setWindowSize(options.getWindowSize());
+		r.setRollover(options.getRollover());
+		r.setReservation(reservation);
+		r.setTimer(timer);
+		// the worker is done once the final ACK is sent, the dally goes on in the background
+		r.setDallyResponder(DallyResponder.getInstance());
 		try {
-			r.receiveFile(receivePacket, f);
+			r.receiveFile(receivePacket, upload);
 			printToConsole("Finished write request for file: " + f.getName());
+			if (r.isSocketHandedOff())
+				sendReceiveSocket = null; // it belongs to the DallyResponder now
 		} catch (TFTPException e) {
 			printToConsole(String.format("ERROR: (%d) %s\n", e.getErrorCode(), e.getMessage()));
 		} finally {
-			lock.deleteWriter(filename);
-			cleanup();
+			lease.release();
 		}
 	}
 	
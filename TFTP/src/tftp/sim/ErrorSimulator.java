@@ -11,9 +11,12 @@ import java.net.UnknownHostException;
 import java.util.LinkedList;
 import java.util.Scanner;
 
+import tftp.log.Log;
+import tftp.log.LogLevel;
 import tftp.net.PacketType;
 import tftp.net.PacketUtil;
 import tftp.net.ProcessType;
+import tftp.net.SocketPool;
 import tftp.server.Server;
 
 /**
@@ -30,9 +33,14 @@ public class ErrorSimulator {
 
 	public static final int LISTEN_PORT = 78; // not using 68 due to its usage by windows DHCP service	
 
+	// one simulation runs at a time, so it never needs more than a couple of transfer sockets
+	private static final int SOCKET_POOL_SIZE = 4;
+
 	// sockets used for communicating with the client and server, respectively	
 	// new sockets
 	private DatagramSocket clientRecvSocket, serverSendRecvSocket;
+	// sockets standing in for the server's transfer sockets (and for unknown TIDs)
+	private SocketPool sockets;
 
 	// packet objects to use for sending and receiving messages
 	private DatagramPacket sendPacket, receivePacket;
@@ -64,6 +72,7 @@ public class ErrorSimulator {
 		try {
 			clientRecvSocket = new DatagramSocket(LISTEN_PORT);
 			serverSendRecvSocket = new DatagramSocket();
+			sockets = new SocketPool(0, 0, SOCKET_POOL_SIZE, 0);
 		} catch (SocketException e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -557,7 +566,7 @@ public class ErrorSimulator {
 		System.out.println("No error mode selected.");
 		System.out.println("Packets received from client will be forwarded to server, and vice versa.\n");
 
-		byte data[] = new byte[PacketUtil.BUF_SIZE];		
+		byte data[] = new byte[PacketUtil.MAX_PACKET_SIZE];		
 		receivePacket = new DatagramPacket(data, data.length);		
 
 		// listen for a client packet
@@ -579,7 +588,7 @@ public class ErrorSimulator {
 		// set up a new socket to use for sending DATA/ACK to the client (act as server thread)
 		DatagramSocket clientSendRecvSocket = null;
 		try {
-			clientSendRecvSocket = new DatagramSocket();
+			clientSendRecvSocket = sockets.acquire();
 		} catch (SocketException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -595,6 +604,7 @@ public class ErrorSimulator {
 				ProcessType.SERVER, serverSendRecvSocket, serverIP, serverTID);
 
 		printEndSimulation();
+		sockets.release(clientSendRecvSocket);
 	}
 
 	/**
@@ -611,7 +621,7 @@ public class ErrorSimulator {
 
 		System.out.println("\n==== EXECUTING SIMULATION ====\n");
 
-		byte data[] = new byte[PacketUtil.BUF_SIZE];
+		byte data[] = new byte[PacketUtil.MAX_PACKET_SIZE];
 		receivePacket = new DatagramPacket(data, data.length);
 
 		PacketType startingRequestType;
@@ -629,7 +639,7 @@ public class ErrorSimulator {
 		// create socket to send DATA/ACK to client
 		DatagramSocket clientSendRecvSocket = null;
 		try {
-			clientSendRecvSocket = new DatagramSocket();
+			clientSendRecvSocket = sockets.acquire();
 		} catch (SocketException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -686,7 +696,7 @@ public class ErrorSimulator {
 					ProcessType.SERVER, serverSendRecvSocket, serverIP, serverTID);
 
 			printEndSimulation();
-			clientSendRecvSocket.close();
+			sockets.release(clientSendRecvSocket);
 			return;
 		}
 
@@ -729,13 +739,13 @@ public class ErrorSimulator {
 					// send the packet from a new socket (new TID)
 					DatagramSocket unknownTIDSocket = null;
 					try {						
-						unknownTIDSocket = new DatagramSocket();
+						unknownTIDSocket = sockets.acquire();
 					} catch (SocketException e1) {
 						e1.printStackTrace();
 					}
 
 					// save packet details so it can be resent
-					byte[] originalPacketData = new byte[PacketUtil.BUF_SIZE];
+					byte[] originalPacketData = new byte[PacketUtil.MAX_PACKET_SIZE];
 					int originalLength = receivePacket.getLength();
 					System.arraycopy(receivePacket.getData(), 0, originalPacketData, 0, originalLength);
 
@@ -748,6 +758,7 @@ public class ErrorSimulator {
 
 					// check result and display
 					printSimulationResult(ProcessType.SERVER, PacketUtil.ERR_UNKNOWN_TID);
+					sockets.release(unknownTIDSocket);
 
 					// send out the original server socket to finish transfer
 					System.out.println("\n\tFinishing transfer");
@@ -760,7 +771,7 @@ public class ErrorSimulator {
 
 					// end simulation
 					printEndSimulation();
-					clientSendRecvSocket.close();
+					sockets.release(clientSendRecvSocket);
 					return;
 				}
 			}
@@ -775,7 +786,7 @@ public class ErrorSimulator {
 				System.out.println("File was too small to send selected block number from unknown TID. [FAIL]");
 				System.out.println("Terminating simulation.");
 				printEndSimulation();
-				clientSendRecvSocket.close();
+				sockets.release(clientSendRecvSocket);
 				return;
 			}
 
@@ -799,13 +810,13 @@ public class ErrorSimulator {
 					// send the packet from a new socket (new TID)
 					DatagramSocket unknownTIDSocket = null;
 					try {						
-						unknownTIDSocket = new DatagramSocket();
+						unknownTIDSocket = sockets.acquire();
 					} catch (SocketException e1) {
 						e1.printStackTrace();
 					}
 
 					// save packet details so it can be resent
-					byte[] originalPacketData = new byte[PacketUtil.BUF_SIZE];
+					byte[] originalPacketData = new byte[PacketUtil.MAX_PACKET_SIZE];
 					int originalLength = receivePacket.getLength();
 					System.arraycopy(receivePacket.getData(), 0, originalPacketData, 0, originalLength);
 
@@ -822,6 +833,7 @@ public class ErrorSimulator {
 					// send ERROR packet to server from unknown TID					
 					sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), clientIP, clientPort);				
 					sendPacketToProcess(unknownTIDSocket, ProcessType.CLIENT, receivedPacketType.name());
+					sockets.release(unknownTIDSocket);
 
 					// send out the original server socket to finish transfer
 					System.out.println("\n\tFinishing transfer");
@@ -834,7 +846,7 @@ public class ErrorSimulator {
 
 					// end simulation
 					printEndSimulation();
-					clientSendRecvSocket.close();
+					sockets.release(clientSendRecvSocket);
 					return;
 				}
 			}			
@@ -849,7 +861,7 @@ public class ErrorSimulator {
 				System.out.println("File was too small to send selected block number from unknown TID. [FAIL]");
 				System.out.println("Terminating simulation.");
 				printEndSimulation();
-				clientSendRecvSocket.close();
+				sockets.release(clientSendRecvSocket);
 				return;
 			}
 		}
@@ -874,7 +886,7 @@ public class ErrorSimulator {
 
 		System.out.println("==== EXECUTING SIMULATION ====");
 
-		byte data[] = new byte[PacketUtil.BUF_SIZE];		
+		byte data[] = new byte[PacketUtil.MAX_PACKET_SIZE];		
 		receivePacket = new DatagramPacket(data, data.length);
 
 		// this variable is used to keep track of whether the client sent a RRQ or WRQ to start the exchange
@@ -895,7 +907,7 @@ public class ErrorSimulator {
 		// set up a new socket to send server packets to the client
 		DatagramSocket clientSendRecvSocket = null;
 		try {
-			clientSendRecvSocket = new DatagramSocket();
+			clientSendRecvSocket = sockets.acquire();
 		} catch (SocketException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -1256,7 +1268,7 @@ public class ErrorSimulator {
 
 		System.out.println("==== EXECUTING SIMULATION ====\n");
 
-		byte data[] = new byte[PacketUtil.BUF_SIZE];		
+		byte data[] = new byte[PacketUtil.MAX_PACKET_SIZE];		
 		receivePacket = new DatagramPacket(data, data.length);			
 		receivePacket.getLength();
 
@@ -1286,7 +1298,7 @@ public class ErrorSimulator {
 		// set up a new socket to send server packets to the client
 		DatagramSocket clientSendRecvSocket = null;
 		try {
-			clientSendRecvSocket = new DatagramSocket();
+			clientSendRecvSocket = sockets.acquire();
 		} catch (SocketException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -1343,7 +1355,7 @@ public class ErrorSimulator {
 
 					// end simulation
 					printEndSimulation();
-					clientSendRecvSocket.close();
+					sockets.release(clientSendRecvSocket);
 					return;
 				}
 
@@ -1375,7 +1387,7 @@ public class ErrorSimulator {
 
 				// end simulation
 				printEndSimulation();
-				clientSendRecvSocket.close();
+				sockets.release(clientSendRecvSocket);
 				return;
 			}
 
@@ -1529,7 +1541,7 @@ public class ErrorSimulator {
 
 					// end simulation
 					printEndSimulation();
-					clientSendRecvSocket.close();
+					sockets.release(clientSendRecvSocket);
 					return;	
 				}
 			} 
@@ -1614,7 +1626,7 @@ public class ErrorSimulator {
 
 					// end simulation
 					printEndSimulation();
-					clientSendRecvSocket.close();
+					sockets.release(clientSendRecvSocket);
 					return;	
 				}
 			}
@@ -1664,7 +1676,7 @@ public class ErrorSimulator {
 
 		System.out.println("==== EXECUTING SIMULATION ====\n");
 
-		byte data[] = new byte[PacketUtil.BUF_SIZE];		
+		byte data[] = new byte[PacketUtil.MAX_PACKET_SIZE];		
 		receivePacket = new DatagramPacket(data, data.length);			
 		receivePacket.getLength();
 
@@ -1694,7 +1706,7 @@ public class ErrorSimulator {
 		// set up a new socket to send server packets to the client
 		DatagramSocket clientSendRecvSocket = null;
 		try {
-			clientSendRecvSocket = new DatagramSocket();
+			clientSendRecvSocket = sockets.acquire();
 		} catch (SocketException e1) {
 			System.out.println("could not create socket for simulating server thread's socket");
 			e1.printStackTrace();
@@ -1708,12 +1720,12 @@ public class ErrorSimulator {
 			if (packetTypeSelection == PacketType.RRQ && receivedPacketType != PacketType.RRQ) {
 				System.out.println("Wrong packet type received from client! (expected RRQ)");
 				System.out.println("terminating simulation");
-				clientSendRecvSocket.close();
+				sockets.release(clientSendRecvSocket);
 				return;				
 			} else if (packetTypeSelection == PacketType.WRQ && receivedPacketType != PacketType.WRQ) { 
 				System.out.println("Wrong packet type received from client! (expected WRQ)");
 				System.out.println("terminating simulation");
-				clientSendRecvSocket.close();
+				sockets.release(clientSendRecvSocket);
 				return;
 			} else {				
 
@@ -1725,7 +1737,7 @@ public class ErrorSimulator {
 				} catch (InterruptedException e) {
 					System.out.println("Interrupted while simulating delayed packet!");
 					System.out.println("Terminating simulation");
-					clientSendRecvSocket.close();
+					sockets.release(clientSendRecvSocket);
 					return;
 				}
 
@@ -1790,7 +1802,7 @@ public class ErrorSimulator {
 
 				// end simulation
 				printEndSimulation();
-				clientSendRecvSocket.close();
+				sockets.release(clientSendRecvSocket);
 				return;
 			}
 
@@ -1841,7 +1853,7 @@ public class ErrorSimulator {
 					ProcessType.SERVER, serverSendRecvSocket, serverIP, serverTID);
 
 			printEndSimulation();
-			clientSendRecvSocket.close();
+			sockets.release(clientSendRecvSocket);
 			return;
 		}
 
@@ -1872,7 +1884,7 @@ public class ErrorSimulator {
 					} catch (InterruptedException e) {
 						System.out.println("Interrupted while simulating delayed packet!");
 						System.out.println("Terminating simulation");
-						clientSendRecvSocket.close();
+						sockets.release(clientSendRecvSocket);
 						return;
 					}
 
@@ -1930,7 +1942,7 @@ public class ErrorSimulator {
 
 					// end simulation
 					printEndSimulation();
-					clientSendRecvSocket.close();
+					sockets.release(clientSendRecvSocket);
 					return;	
 				}
 			} 
@@ -1953,7 +1965,7 @@ public class ErrorSimulator {
 					} catch (InterruptedException e) {
 						System.out.println("Interrupted while simulating delayed packet!");
 						System.out.println("Terminating simulation");
-						clientSendRecvSocket.close();
+						sockets.release(clientSendRecvSocket);
 						return;
 					}
 
@@ -1995,7 +2007,7 @@ public class ErrorSimulator {
 
 					// end simulation
 					printEndSimulation();
-					clientSendRecvSocket.close();
+					sockets.release(clientSendRecvSocket);
 					return;	
 				}
 			}
@@ -2007,7 +2019,7 @@ public class ErrorSimulator {
 
 		}
 
-		clientSendRecvSocket.close();
+		sockets.release(clientSendRecvSocket);
 
 
 	}
@@ -2043,7 +2055,7 @@ public class ErrorSimulator {
 
 		System.out.println("==== EXECUTING SIMULATION ====\n");
 
-		byte data[] = new byte[PacketUtil.BUF_SIZE];		
+		byte data[] = new byte[PacketUtil.MAX_PACKET_SIZE];		
 		receivePacket = new DatagramPacket(data, data.length);			
 		receivePacket.getLength();
 
@@ -2073,7 +2085,7 @@ public class ErrorSimulator {
 		// set up a new socket to send server packets to the client
 		DatagramSocket clientSendRecvSocket = null;
 		try {
-			clientSendRecvSocket = new DatagramSocket();
+			clientSendRecvSocket = sockets.acquire();
 		} catch (SocketException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -2094,7 +2106,7 @@ public class ErrorSimulator {
 
 				// received RRQ/WRQ, now it must be duplicated
 				// save packet details so it can be resent
-				byte[] originalReqData = new byte[PacketUtil.BUF_SIZE];
+				byte[] originalReqData = new byte[PacketUtil.MAX_PACKET_SIZE];
 				int originalReqLength = receivePacket.getLength();
 				PacketType originalReqType = receivedPacketType;
 				System.arraycopy(receivePacket.getData(), 0, originalReqData, 0, originalReqLength);
@@ -2129,7 +2141,7 @@ public class ErrorSimulator {
 								sendPacketToProcess(serverSendRecvSocket, ProcessType.SERVER, "ACK/ERROR");
 
 								receivePacketFromProcess(serverSendRecvSocket, ProcessType.SERVER, "DATA/ERROR");
-								byte[] store = new byte[PacketUtil.BUF_SIZE];
+								byte[] store = new byte[PacketUtil.MAX_PACKET_SIZE];
 								int storeLength = receivePacket.getLength();
 								System.arraycopy(receivePacket.getData(), 0, store, 0, storeLength);
 
@@ -2143,7 +2155,7 @@ public class ErrorSimulator {
 									}else{
 										System.out.println("Duplicate ACK Packet Test Failed");
 										printEndSimulation();
-										clientSendRecvSocket.close();
+										sockets.release(clientSendRecvSocket);
 										return;
 									}
 
@@ -2161,7 +2173,7 @@ public class ErrorSimulator {
 
 								System.out.println("Finished Test, Duplicate ACK Packet Test Success");
 								printEndSimulation();
-								clientSendRecvSocket.close();
+								sockets.release(clientSendRecvSocket);
 								return;
 							}
 							sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), clientIP, clientPort); 
@@ -2202,7 +2214,7 @@ public class ErrorSimulator {
 
 								receivePacketFromProcess(clientSendRecvSocket, ProcessType.CLIENT, "DATA/ERROR");
 
-								byte[] store = new byte[PacketUtil.BUF_SIZE];
+								byte[] store = new byte[PacketUtil.MAX_PACKET_SIZE];
 								int storeLength = receivePacket.getLength();
 								System.arraycopy(receivePacket.getData(), 0, store, 0, storeLength);
 
@@ -2217,7 +2229,7 @@ public class ErrorSimulator {
 									}else{
 										System.out.println("Duplicate ACK Packet Test Failed");
 										printEndSimulation();
-										clientSendRecvSocket.close();
+										sockets.release(clientSendRecvSocket);
 										return;
 									}
 
@@ -2234,7 +2246,7 @@ public class ErrorSimulator {
 
 								System.out.println("Finished Test, Duplicate ACK Packet Test Success");
 								printEndSimulation();
-								clientSendRecvSocket.close();
+								sockets.release(clientSendRecvSocket);
 								return;
 							}
 
@@ -2297,7 +2309,7 @@ public class ErrorSimulator {
 								}else{
 									System.out.println("Duplicate Data Packet Test Failed");
 									printEndSimulation();
-									clientSendRecvSocket.close();
+									sockets.release(clientSendRecvSocket);
 									return;
 								}
 								sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), 
@@ -2314,7 +2326,7 @@ public class ErrorSimulator {
 									ProcessType.CLIENT, clientSendRecvSocket, clientIP, clientPort);
 							System.out.println("Finished Test, Duplicate Data Packet Test Success");
 							printEndSimulation();
-							clientSendRecvSocket.close();
+							sockets.release(clientSendRecvSocket);
 							return;
 						}
 						// send received packet to other side		
@@ -2360,7 +2372,7 @@ public class ErrorSimulator {
 								}else{
 									System.out.println("Duplicate Data Packet Test Failed");
 									printEndSimulation();
-									clientSendRecvSocket.close();
+									sockets.release(clientSendRecvSocket);
 									return;
 								}
 								sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), 
@@ -2377,7 +2389,7 @@ public class ErrorSimulator {
 									ProcessType.SERVER, serverSendRecvSocket, serverIP, originalServerTID);
 							System.out.println("Finished Test, Duplicate Data Packet Test Success");
 							printEndSimulation();
-							clientSendRecvSocket.close();
+							sockets.release(clientSendRecvSocket);
 							return;
 						}
 
@@ -2425,7 +2437,7 @@ public class ErrorSimulator {
 
 				// end simulation
 				printEndSimulation();
-				clientSendRecvSocket.close();
+				sockets.release(clientSendRecvSocket);
 				return;
 			}
 
@@ -2497,6 +2509,7 @@ public class ErrorSimulator {
 	private void closeResources() {
 		clientRecvSocket.close();
 		serverSendRecvSocket.close();
+		sockets.shutdown();
 	}
 
 	/**
@@ -2692,7 +2705,7 @@ public class ErrorSimulator {
 			// create new socket to simulate new server TID
 			DatagramSocket unknownTIDSocket = null;
 			try {						
-				unknownTIDSocket = new DatagramSocket();
+				unknownTIDSocket = sockets.acquire();
 			} catch (SocketException e1) {
 				e1.printStackTrace();
 			}
@@ -2714,7 +2727,7 @@ public class ErrorSimulator {
 			sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), serverIP, secondThreadTID);				
 			sendPacketToProcess(serverSendRecvSocket, ProcessType.SERVER, receivedPacketType.name());
 
-			unknownTIDSocket.close();
+			sockets.release(unknownTIDSocket);
 			
 			// send response to delayed server packet
 
@@ -2737,7 +2750,7 @@ public class ErrorSimulator {
 				// create new socket to simulate new server TID
 				DatagramSocket unknownTIDSocket = null;
 				try {						
-					unknownTIDSocket = new DatagramSocket();
+					unknownTIDSocket = sockets.acquire();
 				} catch (SocketException e1) {
 					e1.printStackTrace();
 				}
@@ -2759,7 +2772,7 @@ public class ErrorSimulator {
 				sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), serverIP, secondThreadTID);				
 				sendPacketToProcess(serverSendRecvSocket, ProcessType.SERVER, receivedPacketType.name());
 
-				unknownTIDSocket.close();
+				sockets.release(unknownTIDSocket);
 			}
 		}
 
@@ -2804,7 +2817,7 @@ public class ErrorSimulator {
 			// create new socket to simulate new server TID
 			DatagramSocket unknownTIDSocket = null;
 			try {						
-				unknownTIDSocket = new DatagramSocket();
+				unknownTIDSocket = sockets.acquire();
 			} catch (SocketException e1) {
 				e1.printStackTrace();
 			}
@@ -2826,7 +2839,7 @@ public class ErrorSimulator {
 			sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), serverIP, secondThreadTID);				
 			sendPacketToProcess(serverSendRecvSocket, ProcessType.SERVER, receivedPacketType.name());
 
-			unknownTIDSocket.close();
+			sockets.release(unknownTIDSocket);
 
 		} else {
 
@@ -2847,7 +2860,7 @@ public class ErrorSimulator {
 				// create new socket to simulate new server TID
 				DatagramSocket unknownTIDSocket = null;
 				try {						
-					unknownTIDSocket = new DatagramSocket();
+					unknownTIDSocket = sockets.acquire();
 				} catch (SocketException e1) {
 					e1.printStackTrace();
 				}
@@ -2869,7 +2882,7 @@ public class ErrorSimulator {
 				sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), serverIP, secondThreadTID);				
 				sendPacketToProcess(serverSendRecvSocket, ProcessType.SERVER, receivedPacketType.name());
 
-				unknownTIDSocket.close();
+				sockets.release(unknownTIDSocket);
 			}
 		}
 
@@ -3140,7 +3153,7 @@ public class ErrorSimulator {
 			// create a new socket to simulate new server TID
 			DatagramSocket otherClientSendRecvSocket = null;
 			try {
-				otherClientSendRecvSocket = new DatagramSocket();
+				otherClientSendRecvSocket = sockets.acquire();
 			} catch (SocketException e1) {
 				e1.printStackTrace();
 			}		
@@ -3156,6 +3169,7 @@ public class ErrorSimulator {
 
 			// check if client sent unknown TID error
 			printSimulationResult(ProcessType.CLIENT, PacketUtil.ERR_UNKNOWN_TID);
+			sockets.release(otherClientSendRecvSocket);
 
 			// send error 5 to server (new packet in case the client didn't actually send ERROR 5)
 			PacketUtil packetUtil = new PacketUtil(serverIP, otherServerTID);
@@ -3174,6 +3188,10 @@ public class ErrorSimulator {
 	 *  @return			false if not an ERROR packet or error code is 5 (unknown TID)
 	 */
 	public static void main(String args[]) {
+		// the simulator is for watching packets, so trace every one, in order with its own output
+		if (System.getProperty("tftp.log") == null)
+			Log.setLevel(LogLevel.PACKET);
+		Log.setSynchronous(true);
 		ErrorSimulator sim = new ErrorSimulator();
 		try {
 			while (true) {